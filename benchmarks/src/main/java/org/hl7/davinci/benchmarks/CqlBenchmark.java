@@ -0,0 +1,133 @@
+package org.hl7.davinci.benchmarks;
+
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.davinci.endpoint.cql.CqlExecution;
+import org.hl7.davinci.endpoint.cql.CqlRule;
+import org.opencds.cqf.cql.execution.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Translation of the sample topic's CQL, building the execution context for R4 and STU3, and
+ * evaluating the statements CdsService reads from a rule.
+ *
+ * <p>A CqlRule holds its CQL as streams that a translation uses up, so the rules and everything
+ * built from them are set up again for every call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CqlBenchmark {
+
+  private static final String BASE_URL = "http://localhost:8090/";
+
+  private static final String[] STATEMENTS = {
+      "RULE_APPLIES", "RESULT_Summary", "RESULT_Details", "RESULT_InfoLink", "PRIORAUTH_REQUIRED",
+      "DOCUMENTATION_REQUIRED", "RESULT_QuestionnaireOrderUri", "RESULT_requestId" };
+
+  private static final GregorianCalendar BIRTH_DATE = new GregorianCalendar(1948, Calendar.JULY, 4);
+
+  static HashMap<String, org.hl7.fhir.r4.model.Resource> r4Params() {
+    HashMap<String, org.hl7.fhir.r4.model.Resource> params = new HashMap<>();
+    params.put("Patient", new org.hl7.fhir.r4.model.Patient().setBirthDate(BIRTH_DATE.getTime()));
+    params.put("device_request", new org.hl7.fhir.r4.model.DeviceRequest());
+    return params;
+  }
+
+  static HashMap<String, org.hl7.fhir.dstu3.model.Resource> stu3Params() {
+    HashMap<String, org.hl7.fhir.dstu3.model.Resource> params = new HashMap<>();
+    params.put("Patient", new org.hl7.fhir.dstu3.model.Patient().setBirthDate(BIRTH_DATE.getTime()));
+    params.put("device_request", new org.hl7.fhir.dstu3.model.DeviceRequest());
+    return params;
+  }
+
+  @State(Scope.Thread)
+  public static class TranslationState {
+    String cql;
+    ModelManager modelManager;
+    LibraryManager libraryManager;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+      cql = Fixtures.readString("CDS-Library/" + Fixtures.TOPIC + "/R4/files/" + Fixtures.TOPIC + "Rule-0.1.0.cql");
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+      modelManager = new ModelManager();
+      libraryManager = new LibraryManager(modelManager);
+      // FHIRHelpers is included by the rule
+      libraryManager.getLibrarySourceLoader().registerProvider(Fixtures.cqlRule("R4")
+          .getRawCqlLibrarySourceProvider(org.hl7.davinci.endpoint.cql.r4.CqlExecutionContextBuilder.CQL_VERSION));
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class RuleState {
+    HashMap<String, org.hl7.fhir.r4.model.Resource> r4Params = r4Params();
+    HashMap<String, org.hl7.fhir.dstu3.model.Resource> stu3Params = stu3Params();
+    CqlRule r4Rule;
+    CqlRule stu3Rule;
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+      r4Rule = Fixtures.cqlRule("R4");
+      stu3Rule = Fixtures.cqlRule("STU3");
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class EvaluationState {
+    Context context;
+
+    // expression caching is on, so each call needs a context that has not evaluated anything yet
+    @Setup(Level.Invocation)
+    public void setUpInvocation() {
+      context = org.hl7.davinci.endpoint.cql.r4.CqlExecutionContextBuilder
+          .getExecutionContext(Fixtures.cqlRule("R4"), r4Params(), BASE_URL);
+    }
+  }
+
+  @Benchmark
+  public Library translate(TranslationState state) throws Exception {
+    return CqlExecution.translate(state.cql, state.libraryManager, state.modelManager);
+  }
+
+  @Benchmark
+  public Context contextBuildR4(RuleState state) {
+    return org.hl7.davinci.endpoint.cql.r4.CqlExecutionContextBuilder
+        .getExecutionContext(state.r4Rule, state.r4Params, BASE_URL);
+  }
+
+  @Benchmark
+  public Context contextBuildStu3(RuleState state) {
+    return org.hl7.davinci.endpoint.cql.stu3.CqlExecutionContextBuilder
+        .getExecutionContext(state.stu3Rule, state.stu3Params, BASE_URL);
+  }
+
+  @Benchmark
+  public void evaluateResults(EvaluationState state, Blackhole blackhole) {
+    for (String statement : STATEMENTS) {
+      blackhole.consume(state.context.resolveExpressionRef(statement).evaluate(state.context));
+    }
+  }
+}
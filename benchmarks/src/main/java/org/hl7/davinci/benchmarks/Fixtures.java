@@ -0,0 +1,60 @@
+package org.hl7.davinci.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+import org.apache.commons.io.IOUtils;
+import org.hl7.davinci.endpoint.cql.CqlRule;
+
+/**
+ * Loads the sample CDS-Library topics and requests bundled with the benchmarks from the classpath.
+ */
+public class Fixtures {
+
+  public static final String TOPIC = "HomeOxygenTherapy";
+
+  /**
+   * Reads a file from the classpath.
+   */
+  public static byte[] read(String path) {
+    try (InputStream stream = Fixtures.class.getResourceAsStream("/" + path)) {
+      if (stream == null) {
+        throw new IllegalArgumentException("Fixture not found: " + path);
+      }
+      return IOUtils.toByteArray(stream);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  public static String readString(String path) {
+    return new String(read(path), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Gets the CQL files of the sample topic, the rule and FHIRHelpers.
+   *
+   * @param fhirVersion R4 or STU3.
+   */
+  public static HashMap<String, byte[]> cqlFiles(String fhirVersion) {
+    String helpers = fhirVersion.equals("R4") ? "FHIRHelpers-4.0.0.cql" : "FHIRHelpers-3.0.0.cql";
+    String rule = TOPIC + "Rule-0.1.0.cql";
+    HashMap<String, byte[]> cqlFiles = new HashMap<>();
+    cqlFiles.put(rule, read("CDS-Library/" + TOPIC + "/" + fhirVersion + "/files/" + rule));
+    cqlFiles.put(helpers, read("CDS-Library/Shared/" + fhirVersion + "/files/" + helpers));
+    return cqlFiles;
+  }
+
+  /**
+   * Builds the CqlRule of the sample topic. A CqlRule holds the CQL as streams that are used up by
+   * a translation, so every translation needs a new one.
+   *
+   * @param fhirVersion R4 or STU3.
+   */
+  public static CqlRule cqlRule(String fhirVersion) {
+    return new CqlRule(TOPIC + "Rule", cqlFiles(fhirVersion), fhirVersion);
+  }
+}
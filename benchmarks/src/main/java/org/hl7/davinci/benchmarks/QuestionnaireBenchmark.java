@@ -0,0 +1,121 @@
+package org.hl7.davinci.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.davinci.endpoint.cql.CqlRule;
+import org.hl7.davinci.endpoint.database.FhirResource;
+import org.hl7.davinci.endpoint.files.CommonFileStore;
+import org.hl7.davinci.endpoint.files.FileResource;
+import org.hl7.davinci.endpoint.files.QuestionnaireValueSetProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ByteArrayResource;
+
+/**
+ * Assembly of a root Questionnaire from two sub-questionnaires, as CommonFileStore does before
+ * caching it: merging the sub-questionnaires and embedding the ValueSets they reference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QuestionnaireBenchmark {
+
+  private static final String BASE_URL = "http://localhost:8090/";
+  private static final String ROOT = "benchmark-root-questionnaire-r4.json";
+
+  private FixtureFileStore fileStore;
+  private QuestionnaireValueSetProcessor valueSetProcessor;
+
+  @Setup
+  public void setUp() {
+    fileStore = new FixtureFileStore();
+    for (String file : new String[] { ROOT, "hospital-bed-questionnaire-r4.json",
+        "home-oxygen-questionnaire_2-r4.json" }) {
+      fileStore.addQuestionnaire(file, Fixtures.read("questionnaires/" + file));
+    }
+    valueSetProcessor = new QuestionnaireValueSetProcessor();
+  }
+
+  @Benchmark
+  public FileResource assemble() {
+    return fileStore.assemble(ROOT, valueSetProcessor);
+  }
+
+  /**
+   * CommonFileStore serving the fixture Questionnaires by id in place of the database and rule
+   * folder. ValueSets are not in the fixtures, so references to them are left as they are.
+   */
+  static class FixtureFileStore extends CommonFileStore {
+    private final Map<String, byte[]> byFile = new HashMap<>();
+    private final Map<String, byte[]> byId = new HashMap<>();
+
+    void addQuestionnaire(String file, byte[] data) {
+      byFile.put(file, data);
+      org.hl7.fhir.r4.model.Questionnaire questionnaire = (org.hl7.fhir.r4.model.Questionnaire)
+          new org.hl7.davinci.r4.FhirComponents().getJsonParser().parseResource(
+              new String(data, StandardCharsets.UTF_8));
+      byId.put(questionnaire.getIdElement().getIdPart(), data);
+      byId.put(questionnaire.getId(), data);
+    }
+
+    FileResource assemble(String file, QuestionnaireValueSetProcessor valueSetProcessor) {
+      FileResource resource = fileResource(file, byFile.get(file));
+      String output = assemblyQuestionnaire(resource, "R4", BASE_URL, true);
+      resource.setResource(new ByteArrayResource(output.getBytes(StandardCharsets.UTF_8)));
+      return valueSetProcessor.processResource(resource, this, BASE_URL);
+    }
+
+    private static FileResource fileResource(String name, byte[] data) {
+      FileResource resource = new FileResource();
+      resource.setFilename(name);
+      resource.setResource(new ByteArrayResource(data));
+      return resource;
+    }
+
+    @Override
+    public FileResource getFhirResourceById(String fhirVersion, String resourceType, String id, String baseUrl,
+        boolean isRoot) {
+      byte[] data = byId.get(id);
+      return data == null ? null : fileResource(id, data);
+    }
+
+    @Override
+    public FileResource getFhirResourceByUrl(String fhirVersion, String resourceType, String url, String baseUrl) {
+      return null;
+    }
+
+    @Override
+    public void reload() { }
+
+    @Override
+    public CqlRule getCqlRule(String topic, String fhirVersion) {
+      return null;
+    }
+
+    @Override
+    public FileResource getFile(String topic, String fileName, String fhirVersion, boolean convert) {
+      return null;
+    }
+
+    @Override
+    protected FileResource readFhirResourceFromFile(List<FhirResource> fhirResourceList, String fhirVersion,
+        String baseUrl) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package org.hl7.davinci.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.davinci.endpoint.database.RequestLog;
+import org.hl7.davinci.r4.JacksonBundleDeserializer;
+import org.hl7.davinci.r4.crdhook.orderreview.OrderReviewRequest;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading an R4 order-review request with a full prefetch: deserializing the request and one of
+ * its prefetch bundles, and filling a RequestLog from it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBenchmark {
+
+  private String requestJson;
+  private String bundleJson;
+  private ObjectReader requestReader;
+  private ObjectReader bundleReader;
+  private OrderReviewRequest request;
+
+  @Setup
+  public void setUp() throws IOException {
+    requestJson = Fixtures.readString("deviceRequestFullPrefetch_r4.json");
+    ObjectMapper mapper = new ObjectMapper();
+    requestReader = mapper.readerFor(OrderReviewRequest.class);
+    request = requestReader.readValue(requestJson);
+    bundleJson = mapper.readTree(requestJson).path("prefetch").path("deviceRequestBundle").toString();
+
+    SimpleModule module = new SimpleModule();
+    module.addDeserializer(Bundle.class, new JacksonBundleDeserializer());
+    bundleReader = new ObjectMapper().registerModule(module).readerFor(Bundle.class);
+  }
+
+  @Benchmark
+  public OrderReviewRequest deserializeRequest() throws IOException {
+    return requestReader.readValue(requestJson);
+  }
+
+  @Benchmark
+  public Bundle deserializeBundle() throws IOException {
+    return bundleReader.readValue(bundleJson);
+  }
+
+  @Benchmark
+  public String requestLogFromRequest() {
+    return new RequestLog().setFromRequest(request);
+  }
+}
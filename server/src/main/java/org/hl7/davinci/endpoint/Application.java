@@ -1,5 +1,6 @@
 package org.hl7.davinci.endpoint;
 
+import org.hl7.davinci.endpoint.cdshooks.services.crd.RuleWarmUp;
 import org.hl7.davinci.endpoint.files.FileStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +23,9 @@ public class Application {
   @Autowired
   FileStore fileStore;
 
+  @Autowired
+  RuleWarmUp ruleWarmUp;
+
   static final Logger logger =
       LoggerFactory.getLogger(Application.class);
 
@@ -32,7 +36,7 @@ public class Application {
 
 
   /**
-   * Load the rules into the database.
+   * Load the rules into the database, then warm them up if enabled.
    * @return
    */
   @Bean
@@ -40,6 +44,7 @@ public class Application {
   public CommandLineRunner setup() {
     return (args) -> {
       fileStore.reload();
+      ruleWarmUp.run();
     };
   }
 
@@ -0,0 +1,160 @@
+package org.hl7.davinci.endpoint;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the jti of every accepted JWT until the token expires, so a replayed token can be
+ * rejected as the CDS Hooks specification requires.
+ *
+ * <p>Tokens are put in a bucket by their exp, each bucket covering a fixed slice of time. Only the
+ * buckets that can still hold unexpired tokens exist, in a ring that is reused as time moves on, so
+ * memory is fixed at buckets times capacity longs. A bucket is an open addressing set of 64 bit
+ * hashes of iss and jti updated with compare and set, nothing is locked. A replay has the same exp
+ * and so is always looked for in the one bucket the original went into.
+ *
+ * <p>Expired tokens are rejected before they get here. Tokens that expire later than the window
+ * are rejected too, as they could not be remembered until they expire. The CDS Hooks specification
+ * recommends an expiry of 5 minutes. If a bucket fills up, new tokens expiring in that slice are
+ * rejected rather than accepted without being tracked.
+ */
+public class JtiReplayCache {
+
+  public static final long DEFAULT_BUCKET_MILLIS = TimeUnit.SECONDS.toMillis(30);
+  public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
+  public static final int DEFAULT_BUCKET_CAPACITY = 1 << 14;
+
+  private static final int MAX_PROBES = 64;
+
+  /**
+   * What add did with a token.
+   */
+  public enum Result {
+    ADDED,
+    REPLAYED,
+    // the bucket for the token's exp is full
+    FULL,
+    // the token expires later than the window
+    EXPIRES_TOO_LATE
+  }
+
+  private final long bucketMillis;
+  private final long windowMillis;
+  private final int bucketCount;
+  private final int capacity;
+  private final AtomicReferenceArray<Bucket> buckets;
+
+  public JtiReplayCache() {
+    this(DEFAULT_BUCKET_MILLIS, DEFAULT_WINDOW_MILLIS, DEFAULT_BUCKET_CAPACITY);
+  }
+
+  /**
+   * Creates a replay cache.
+   *
+   * @param bucketMillis Length of time covered by each bucket.
+   * @param windowMillis Longest time a token is remembered for, tokens that expire later are rejected.
+   * @param capacity Number of tokens each bucket can hold, rounded up to a power of two.
+   */
+  public JtiReplayCache(long bucketMillis, long windowMillis, int capacity) {
+    this.bucketMillis = bucketMillis;
+    this.windowMillis = windowMillis;
+    this.bucketCount = (int) ((windowMillis + bucketMillis - 1) / bucketMillis) + 1;
+    this.capacity = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+    this.buckets = new AtomicReferenceArray<>(bucketCount);
+  }
+
+  /**
+   * Records a token unless it has been seen before.
+   *
+   * @param issuer The iss claim.
+   * @param jti The jti claim.
+   * @param expiration The exp claim in milliseconds.
+   * @return ADDED if the token is new, otherwise why it was not recorded.
+   */
+  public Result add(String issuer, String jti, long expiration) {
+    return add(issuer, jti, expiration, System.currentTimeMillis());
+  }
+
+  Result add(String issuer, String jti, long expiration, long now) {
+    if (expiration - now > windowMillis) {
+      return Result.EXPIRES_TOO_LATE;
+    }
+    long epoch = Math.max(expiration, now) / bucketMillis;
+    return bucket(epoch).add(hash(issuer, jti));
+  }
+
+  private int slot(long epoch) {
+    return (int) (epoch % bucketCount);
+  }
+
+  /**
+   * Gets the bucket for a slice of time, replacing the expired bucket that used the same slot.
+   */
+  private Bucket bucket(long epoch) {
+    int slot = slot(epoch);
+    while (true) {
+      Bucket bucket = buckets.get(slot);
+      // a later bucket in the slot outlives this one, it is safe to remember the token longer
+      if (bucket != null && bucket.epoch >= epoch) {
+        return bucket;
+      }
+      Bucket replacement = new Bucket(epoch, capacity);
+      if (buckets.compareAndSet(slot, bucket, replacement)) {
+        return replacement;
+      }
+    }
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the issuer and jti, never 0 since 0 marks an empty entry.
+   */
+  private static long hash(String issuer, String jti) {
+    long hash = 0xcbf29ce484222325L;
+    hash = hash(hash, issuer == null ? "" : issuer);
+    hash = (hash ^ 0xffff) * 0x100000001b3L;
+    hash = hash(hash, jti == null ? "" : jti);
+    // spread the bits since the low bits pick the position in the table
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    return hash == 0 ? 1 : hash;
+  }
+
+  private static long hash(long hash, String value) {
+    for (int i = 0; i < value.length(); i++) {
+      hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  private static class Bucket {
+    private final long epoch;
+    private final AtomicLongArray hashes;
+    private final int mask;
+
+    private Bucket(long epoch, int capacity) {
+      this.epoch = epoch;
+      this.hashes = new AtomicLongArray(capacity);
+      this.mask = capacity - 1;
+    }
+
+    private Result add(long hash) {
+      int position = (int) hash & mask;
+      for (int probe = 0; probe < MAX_PROBES; probe++) {
+        int index = (position + probe) & mask;
+        long current = hashes.get(index);
+        if (current == 0) {
+          if (hashes.compareAndSet(index, 0, hash)) {
+            return Result.ADDED;
+          }
+          current = hashes.get(index);
+        }
+        if (current == hash) {
+          return Result.REPLAYED;
+        }
+      }
+      return Result.FULL;
+    }
+  }
+}
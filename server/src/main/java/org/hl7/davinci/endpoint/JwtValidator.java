@@ -0,0 +1,103 @@
+package org.hl7.davinci.endpoint;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jws;
+import io.jsonwebtoken.Jwts;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validates the bearer JWT of a CDS Hooks request. The token is decoded and parsed once by jjwt,
+ * which also verifies the signature with the key from the PublicKeyCache, and the header and claims
+ * required by rfc7515 and the CDS Hooks specification are checked on the parsed token. Tokens
+ * whose jti has already been used are rejected, as are tokens that expire too far ahead for their
+ * jti to be remembered until then.
+ */
+public class JwtValidator {
+
+  static final Logger logger = LoggerFactory.getLogger(JwtValidator.class);
+
+  private static final List<String> REQUIRED_HEADERS = Arrays.asList("alg", "typ", "kid");
+  private static final List<String> REQUIRED_CLAIMS = Arrays.asList("iss", "aud", "exp", "iat", "jti");
+
+  private final SigningKeyResolverCrd signingKeyResolver;
+  private final JtiReplayCache replayCache;
+
+  public JwtValidator(PublicKeyCache publicKeyCache) {
+    this(publicKeyCache, new JtiReplayCache());
+  }
+
+  public JwtValidator(PublicKeyCache publicKeyCache, JtiReplayCache replayCache) {
+    this.signingKeyResolver = new SigningKeyResolverCrd(publicKeyCache);
+    this.replayCache = replayCache;
+  }
+
+  /**
+   * Validates a token.
+   *
+   * @param token The JWT, without the "Bearer " prefix.
+   * @return The issuer of the token or null if the token was rejected.
+   */
+  public String validate(String token) {
+    Jws<Claims> jws;
+    try {
+      // The KeyResolver fetches the public key from the jku
+      // will throw an exception if the signature cannot be verified
+      JwtParser parser = Jwts.parser().setSigningKeyResolver(signingKeyResolver);
+      jws = parser.parseClaimsJws(token);
+    } catch (io.jsonwebtoken.SignatureException sigEx) {
+      logger.info("Failed to verify token signature, rejecting token.");
+      return null;
+    } catch (JwtException | IllegalArgumentException e) {
+      logger.warn("Invalid Bearer token - the token was not well formed: " + e.getMessage());
+      return null;
+    }
+
+    // we just want to make sure the json has the correct fields
+    // their contents aren't really important, if the contents are
+    // bad we can reject them later.
+    JwsHeader header = jws.getHeader();
+    Claims claims = jws.getBody();
+    if (header.keySet().containsAll(REQUIRED_HEADERS) && claims.keySet().containsAll(REQUIRED_CLAIMS)) {
+      // the jti must be unique, only checked once the signature is known to be good
+      if (claims.getExpiration() == null) {
+        logger.warn("Token rejected, exp is missing");
+        return null;
+      }
+      JtiReplayCache.Result result = replayCache.add(claims.getIssuer(), claims.getId(),
+          claims.getExpiration().getTime());
+      switch (result) {
+        case ADDED:
+          return claims.getIssuer();
+        case REPLAYED:
+          logger.warn("Token rejected, jti " + claims.getId() + " from " + claims.getIssuer() + " already used");
+          return null;
+        case EXPIRES_TOO_LATE:
+          logger.warn("Token rejected, exp " + claims.getExpiration() + " is too far ahead for the jti to be tracked");
+          return null;
+        default:
+          logger.warn("Token rejected, too many tokens expiring around " + claims.getExpiration()
+              + " to track jti " + claims.getId());
+          return null;
+      }
+    }
+
+    List<String> missingHeaders = new ArrayList<>(REQUIRED_HEADERS);
+    missingHeaders.removeAll(header.keySet());
+    if (!missingHeaders.isEmpty()) {
+      logger.warn("Token header rejected, missing required properties - " + missingHeaders);
+    }
+    List<String> missingClaims = new ArrayList<>(REQUIRED_CLAIMS);
+    missingClaims.removeAll(claims.keySet());
+    if (!missingClaims.isEmpty()) {
+      logger.warn("Token payload rejected, missing required properties - " + missingClaims);
+    }
+    return null;
+  }
+}
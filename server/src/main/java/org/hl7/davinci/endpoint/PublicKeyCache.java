@@ -0,0 +1,250 @@
+package org.hl7.davinci.endpoint;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.hl7.davinci.endpoint.database.PublicKeyRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Cache of the public keys used to verify JWT signatures, by key id. Keys come from the keystore
+ * (PublicKeyRepository) or, if not there, from the jku of the token and are kept for an hour. Keys
+ * about to expire are refreshed in the background while the cached key keeps being used. Key ids
+ * that could not be resolved are remembered for a minute so bad tokens do not hit the keystore or
+ * the jku every time. Only one lookup per key id runs at a time, other threads wait for its result.
+ * The kid comes from the token, so the cache is capped at MAX_KEYS and expired entries are dropped
+ * when it fills up.
+ */
+@Component
+public class PublicKeyCache {
+
+  static final Logger logger = LoggerFactory.getLogger(PublicKeyCache.class);
+
+  static final long KEY_TTL = TimeUnit.HOURS.toMillis(1);
+  static final long KEY_REFRESH = TimeUnit.MINUTES.toMillis(45);
+  static final long MISSING_KEY_TTL = TimeUnit.MINUTES.toMillis(1);
+  static final int MAX_KEYS = 1000;
+
+  private static final int JKU_TIMEOUT = 5000;
+
+  private final PublicKeyRepository publicKeyRepository;
+  private final RestTemplate restTemplate;
+
+  private final ConcurrentHashMap<String, CachedKey> keys = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CompletableFuture<CachedKey>> lookups = new ConcurrentHashMap<>();
+  // incremented by invalidate, a lookup that started before it does not cache what it found
+  private final AtomicLong invalidations = new AtomicLong();
+  private final ExecutorService refresher = Executors.newSingleThreadExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "public-key-refresh");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Autowired
+  public PublicKeyCache(PublicKeyRepository publicKeyRepository) {
+    this(publicKeyRepository, pooledRestTemplate());
+  }
+
+  public PublicKeyCache(PublicKeyRepository publicKeyRepository, RestTemplate restTemplate) {
+    this.publicKeyRepository = publicKeyRepository;
+    this.restTemplate = restTemplate;
+  }
+
+  private static RestTemplate pooledRestTemplate() {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(20);
+    connectionManager.setDefaultMaxPerRoute(5);
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(JKU_TIMEOUT)
+        .setSocketTimeout(JKU_TIMEOUT)
+        .setConnectionRequestTimeout(JKU_TIMEOUT)
+        .build();
+    return new RestTemplate(new HttpComponentsClientHttpRequestFactory(HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig)
+        .build()));
+  }
+
+  /**
+   * Gets the public key for a key id.
+   *
+   * @param keyId The kid of the token.
+   * @param jku The jku of the token, where the key is fetched from if it is not in the keystore.
+   * @return The key or null if it could not be found.
+   */
+  public PublicKey getKey(String keyId, String jku) {
+    if (keyId == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    CachedKey cached = keys.get(keyId);
+    if (cached != null && now < cached.expires) {
+      if (cached.key != null && now >= cached.refresh && !lookups.containsKey(keyId)) {
+        refresher.submit(() -> lookup(keyId, jku, true));
+      }
+      return cached.key;
+    }
+    return lookup(keyId, jku, false).key;
+  }
+
+  /**
+   * Forgets a key, for when it is changed or removed from the keystore.
+   *
+   * @param keyId The key id.
+   */
+  public void invalidate(String keyId) {
+    keys.compute(keyId, (id, cached) -> {
+      invalidations.incrementAndGet();
+      return null;
+    });
+  }
+
+  /**
+   * Looks up a key unless a lookup for the same key id is already running, in which case its result
+   * is used.
+   *
+   * @param refresh true for a background refresh, which keeps the cached key if the lookup fails.
+   */
+  private CachedKey lookup(String keyId, String jku, boolean refresh) {
+    CompletableFuture<CachedKey> future = new CompletableFuture<>();
+    CompletableFuture<CachedKey> running = lookups.putIfAbsent(keyId, future);
+    if (running != null) {
+      return running.join();
+    }
+    try {
+      long generation = invalidations.get();
+      PublicKey key = findKey(keyId, jku);
+      long now = System.currentTimeMillis();
+      CachedKey result;
+      CachedKey old = keys.get(keyId);
+      if (key != null) {
+        result = new CachedKey(key, now + KEY_TTL, now + KEY_REFRESH);
+        put(keyId, result, generation);
+      } else if (refresh && old != null) {
+        // keep using the old key until it expires
+        result = old;
+      } else {
+        result = new CachedKey(null, now + MISSING_KEY_TTL, Long.MAX_VALUE);
+        put(keyId, result, generation);
+      }
+      future.complete(result);
+      return result;
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+      throw e;
+    } finally {
+      lookups.remove(keyId, future);
+    }
+  }
+
+  /**
+   * Caches the result of a lookup, unless a key was invalidated since the lookup started. When the
+   * cache is full the expired entries are dropped, then for a found key the missing ones. If it is
+   * still full the result is not cached.
+   */
+  private void put(String keyId, CachedKey cachedKey, long generation) {
+    if (keys.size() >= MAX_KEYS && !keys.containsKey(keyId)) {
+      long now = System.currentTimeMillis();
+      keys.values().removeIf(cached -> now >= cached.expires);
+      if (keys.size() >= MAX_KEYS && cachedKey.key != null) {
+        keys.values().removeIf(cached -> cached.key == null);
+      }
+      if (keys.size() >= MAX_KEYS) {
+        // jku keys can be made up as well, so not even a found key is cached past the cap
+        return;
+      }
+    }
+    keys.compute(keyId, (id, cached) -> invalidations.get() == generation ? cachedKey : cached);
+  }
+
+  private PublicKey findKey(String keyId, String jku) {
+    JsonObject jwkPub = null;
+    try {
+      Optional<org.hl7.davinci.endpoint.database.PublicKey> response = publicKeyRepository.findById(keyId);
+      if (response.isPresent()) {
+        jwkPub = new JsonParser().parse(response.get().getKey()).getAsJsonObject();
+        logger.info("Public Key found in keystore");
+      } else {
+        logger.info("Public Key not found in keystore");
+      }
+    } catch (Exception e) {
+      logger.warn("Public Key not retrieved");
+    }
+
+    if (jwkPub == null) {
+      if (jku == null) {
+        logger.warn("Public Key " + keyId + " not in keystore and token has no jku");
+        return null;
+      }
+      // If the key wasn't loaded from the store, we go
+      // find it at the jku.
+      logger.info("Retrieving public key from " + jku);
+      try {
+        String result = restTemplate.getForObject(jku + "/" + keyId, String.class);
+        // "pem" is just the arbitrary key used in the json
+        // that gets built in "request-builder"
+        JsonObject pem = new JsonParser().parse(result).getAsJsonObject().get("pem").getAsJsonObject();
+        jwkPub = pem;
+        org.hl7.davinci.endpoint.database.PublicKey payload = new org.hl7.davinci.endpoint.database.PublicKey();
+        payload.setId(keyId);
+        payload.setKey(pem.toString());
+        try {
+          publicKeyRepository.save(payload);
+          logger.info("Saved public key to keystore");
+        } catch (Exception e) {
+          logger.warn("Key was not saved");
+        }
+      } catch (Exception e) {
+        logger.warn("Failed to retrieve public key from " + jku + ": " + e.getMessage());
+        return null;
+      }
+    }
+
+    try {
+      return toPublicKey(jwkPub);
+    } catch (Exception e) {
+      logger.warn("Public Key " + keyId + " is not a valid RSA key: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static PublicKey toPublicKey(JsonObject jwkPub) throws Exception {
+    // The modulus and exponent in the JWK are base64 encoded.  The bits of the
+    // mod and exp are signed.  The extra bit is taken care of by having the
+    // signum set to 1 (positive).
+    BigInteger modulus = new BigInteger(1, Base64.getUrlDecoder().decode(jwkPub.get("n").getAsString()));
+    BigInteger exponent = new BigInteger(1, Base64.getUrlDecoder().decode(jwkPub.get("e").getAsString()));
+    return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+  }
+
+  private static class CachedKey {
+    private final PublicKey key;
+    private final long expires;
+    private final long refresh;
+
+    private CachedKey(PublicKey key, long expires, long refresh) {
+      this.key = key;
+      this.expires = expires;
+      this.refresh = refresh;
+    }
+  }
+}
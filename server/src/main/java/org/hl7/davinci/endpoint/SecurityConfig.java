@@ -2,11 +2,13 @@ package org.hl7.davinci.endpoint;
 
 import com.google.common.collect.ImmutableList;
 import org.hl7.davinci.endpoint.config.YamlConfig;
-import org.hl7.davinci.endpoint.database.PublicKeyRepository;
 import org.hl7.davinci.endpoint.database.RequestService;
+import org.hl7.davinci.endpoint.metrics.CqlProfileEndpoint;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.autoconfigure.security.servlet.EndpointRequest;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
@@ -26,7 +28,7 @@ class SecurityConfig extends WebSecurityConfigurerAdapter {
   private RequestService requestService;
 
   @Autowired
-  private PublicKeyRepository publicKeyRepository;
+  private PublicKeyCache publicKeyCache;
 
   /**
    * The CORS preflight must be accepted here or it will get rejected by the
@@ -60,11 +62,28 @@ class SecurityConfig extends WebSecurityConfigurerAdapter {
       http.authorizeRequests()
           .antMatchers().permitAll()
           .anyRequest().authenticated().and()
-          .addFilter(new JwtAuthorizationFilter(authenticationManager(), requestService, publicKeyRepository))
+          .addFilter(new JwtAuthorizationFilter(authenticationManager(), requestService, publicKeyCache))
           .antMatcher("/**/cds-services/**");
     }else {
       http.headers().frameOptions().disable();
     }
   }
 
+  /**
+   * The cqlprofile endpoint shows CQL results from patient data and can turn tracing on, so it only
+   * answers requests from the machine the server runs on, whether or not the JWT is checked.
+   */
+  @Configuration
+  @Order(1)
+  static class CqlProfileSecurityConfig extends WebSecurityConfigurerAdapter {
+
+    @Override
+    protected void configure(HttpSecurity http) throws Exception {
+      http.requestMatcher(EndpointRequest.to(CqlProfileEndpoint.class))
+          .authorizeRequests()
+          .anyRequest().access("hasIpAddress('127.0.0.1') or hasIpAddress('::1')");
+      http.csrf().disable();
+    }
+  }
+
 }
\ No newline at end of file
@@ -8,6 +8,10 @@ import java.net.URLEncoder;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.Supplier;
 import javax.validation.Valid;
 
 import org.apache.commons.lang.StringUtils;
@@ -22,6 +26,9 @@ import org.hl7.davinci.endpoint.components.PrefetchHydrator;
 import org.hl7.davinci.endpoint.database.RequestLog;
 import org.hl7.davinci.endpoint.database.RequestService;
 import org.hl7.davinci.endpoint.files.FileStore;
+import org.hl7.davinci.endpoint.metrics.CqlProfiler;
+import org.hl7.davinci.endpoint.metrics.CrdMetrics;
+import org.hl7.davinci.endpoint.metrics.StageTimer;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleResult;
 import org.hl7.fhir.instance.model.api.IBaseResource;
@@ -76,6 +83,17 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
   @Autowired
   FileStore fileStore;
 
+  @Autowired
+  CrdMetrics crdMetrics;
+
+  @Autowired
+  CqlProfiler cqlProfiler;
+
+  @Autowired
+  HookExecutor hookExecutor;
+
+  private static final RequestService DISCARDED_REQUEST_LOGS = new DiscardedRequestLogs();
+
   private List<PrefetchTemplateElement> prefetchElements = null;
   private FhirComponentsT fhirComponents;
 
@@ -125,23 +143,122 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
    * @return The response from the server
    */
   public CdsResponse handleRequest(@Valid @RequestBody requestTypeT request, URL applicationBaseUrl) {
-    // create the RequestLog
+    try (StageTimer timer = crdMetrics.start(this.id, this.fhirComponents.getFhirVersion().toString())) {
+      CdsResponse response = processRequest(request, applicationBaseUrl, timer, requestService, cqlProfiler);
+      timer.cardsProduced(response.getCards() == null ? 0 : response.getCards().size());
+      return response;
+    }
+  }
+
+  /**
+   * Runs a synthetic request through the same path as handleRequest, without recording it in the
+   * request log, the metrics or the CQL profile, so the rules it matches are translated and compiled before real
+   * requests arrive.
+   *
+   * @param request the synthetic request
+   * @return The response from the server
+   */
+  public CdsResponse warmUp(requestTypeT request, URL applicationBaseUrl) {
+    return processRequest(request, applicationBaseUrl, StageTimer.current(), DISCARDED_REQUEST_LOGS, null);
+  }
+
+  /**
+   * Handles a request like handleRequest without tying up the calling thread. The prefetch is
+   * fetched and the request log written on the I/O pool of the HookExecutor, and the CQL is run on
+   * its CQL pool. Once the deadline passes the fetches still running are given up on and the rules
+   * not evaluated yet are skipped, and the response has the cards so far and an incomplete card.
+   *
+   * @param request the generically typed incoming request
+   * @param deadline the deadline of the request, which collects the cards as they are made
+   * @return Completes with the response from the server
+   */
+  public CompletableFuture<CdsResponse> handleRequestAsync(requestTypeT request, URL applicationBaseUrl,
+      HookDeadline deadline) {
+    StageTimer timer = crdMetrics.start(this.id, this.fhirComponents.getFhirVersion().toString());
+    timer.detach();
+    // written once the response is ready rather than after every stage
+    DeferredRequestLogs requestLogs = new DeferredRequestLogs(requestService);
+    Executor io = hookExecutor.getIoExecutor();
+
+    CompletableFuture<CdsResponse> response = CompletableFuture
+        .supplyAsync(() -> createRequestLog(request, requestLogs), io)
+        .thenCompose(requestLog -> hydrate(request, requestLog, timer, requestLogs, io, deadline))
+        .thenApplyAsync(requestLog -> onThread(timer,
+            () -> evaluate(request, applicationBaseUrl, requestLog, timer, requestLogs, cqlProfiler, deadline)),
+            hookExecutor.getCqlExecutor());
+    response.whenCompleteAsync((result, failure) -> {
+      if (result != null) {
+        timer.cardsProduced(result.getCards() == null ? 0 : result.getCards().size());
+      }
+      timer.close();
+      requestLogs.flush(deadline);
+    }, io);
+    return response;
+  }
+
+  private CdsResponse processRequest(requestTypeT request, URL applicationBaseUrl, StageTimer timer,
+      RequestService requestService, CqlProfiler profiler) {
+    HookDeadline deadline = HookDeadline.none();
+    RequestLog requestLog = createRequestLog(request, requestService);
+    hydrate(request, requestLog, timer, requestService, Runnable::run, deadline).join();
+    return evaluate(request, applicationBaseUrl, requestLog, timer, requestService, profiler, deadline);
+  }
+
+  private RequestLog createRequestLog(requestTypeT request, RequestService requestService) {
     RequestLog requestLog = new RequestLog(request, new Date().getTime(),
         this.fhirComponents.getFhirVersion().toString(), this.id, requestService, 5);
 
     // Parsed request
     requestLog.advanceTimeline(requestService);
+    return requestLog;
+  }
 
-    PrefetchHydrator prefetchHydrator = new PrefetchHydrator(this, request, this.fhirComponents);
-    prefetchHydrator.hydrate();
+  /**
+   * Fetches the missing prefetch elements on the executor, going on without the ones not fetched
+   * when the deadline passes.
+   */
+  private CompletableFuture<RequestLog> hydrate(requestTypeT request, RequestLog requestLog, StageTimer timer,
+      RequestService requestService, Executor executor, HookDeadline deadline) {
+    deadline.enter("prefetch");
+    long hydrationStart = System.nanoTime();
+    PrefetchHydrator prefetchHydrator = new PrefetchHydrator(this, request, this.fhirComponents,
+        hookExecutor.getFhirRestTemplate());
+    CompletableFuture<Void> hydration = prefetchHydrator.hydrate(executor);
+    if (deadline.getTimeoutMillis() > 0 && !hydration.isDone()) {
+      ScheduledFuture<?> cancellation = hookExecutor.schedule(() -> {
+        for (String prefetchKey : prefetchHydrator.cancel()) {
+          deadline.incomplete("prefetch " + prefetchKey);
+        }
+      }, deadline.remainingMillis());
+      hydration.whenComplete((hydrated, failure) -> cancellation.cancel(false));
+    }
+    return hydration.thenApply(hydrated -> {
+      timer.record(StageTimer.HYDRATION, hydrationStart);
+      // waiting for the CQL pool counts as the rule lookup
+      deadline.enter("rule lookup");
 
-    // hydrated
-    requestLog.advanceTimeline(requestService);
+      // hydrated
+      requestLog.advanceTimeline(requestService);
+      return requestLog;
+    });
+  }
 
+  /**
+   * Looks up the rules of the request and evaluates them into cards. The CQL is recorded in the
+   * profiler, unless it is null.
+   */
+  private CdsResponse evaluate(requestTypeT request, URL applicationBaseUrl, RequestLog requestLog,
+      StageTimer timer, RequestService requestService, CqlProfiler profiler, HookDeadline deadline) {
     // logger.info("***** ***** request from requestLog: "+requestLog.toString() );
 
     CdsResponse response = new CdsResponse();
 
+    if (deadline.hasPassed()) {
+      logger.warn("CdsService::evaluate() deadline passed before the rules were looked up");
+      deadline.incomplete("rule lookup");
+      return deadline.toResponse();
+    }
+
     // CQL Fetched
     List<CoverageRequirementRuleResult> lookupResults;
     try {
@@ -155,10 +272,25 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
       return response;
     }
 
+    timer.rulesMatched(lookupResults.size());
+
     boolean foundApplicableRule = false;
     for (CoverageRequirementRuleResult lookupResult : lookupResults) {
+      if (deadline.hasPassed()) {
+        logger.warn("CdsService::evaluate() deadline passed, skipping rule " + lookupResult.getTopic());
+        deadline.incomplete("rule " + lookupResult.getTopic());
+        continue;
+      }
+      deadline.enter("rule " + lookupResult.getTopic());
       requestLog.addTopic(requestService, lookupResult.getTopic());
-      CqlResultsForCard results = executeCqlAndGetRelevantResults(lookupResult.getContext(), lookupResult.getTopic());
+      long evaluationStart = System.nanoTime();
+      CqlResultsForCard results = executeCqlAndGetRelevantResults(lookupResult.getContext(), lookupResult.getTopic(),
+          profiler);
+      timer.record(StageTimer.EVALUATION, evaluationStart);
+      if (profiler != null) {
+        profiler.recordTopic(lookupResult.getTopic(), System.nanoTime() - evaluationStart);
+      }
+      long cardStart = System.nanoTime();
       if (results.ruleApplies()) {
         foundApplicableRule = true;
         if ((results.getDocumentationRequired() || results.getPriorAuthRequired())
@@ -167,18 +299,20 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
                 || StringUtils.isNotEmpty(results.getQuestionnaireLabUri())
                 || StringUtils.isNotEmpty(results.getQuestionnaireProgressNoteUri()))) {
           List<Link> smartAppLinks = createQuestionnaireLinks(request, applicationBaseUrl, lookupResult, results);
-          response.addCard(CardBuilder.transform(results, smartAppLinks));
+          deadline.addCard(CardBuilder.transform(results, smartAppLinks));
         } else {
           logger.warn("Unspecified Questionnaire URI; summary card sent to client");
-          response.addCard(CardBuilder.transform(results));
+          deadline.addCard(CardBuilder.transform(results));
         }
       }
+      timer.record(StageTimer.CARD_ASSEMBLY, cardStart);
     }
 
     // CQL Executed
     requestLog.advanceTimeline(requestService);
 
-    if (!foundApplicableRule) {
+    response = deadline.toResponse();
+    if (!foundApplicableRule && !deadline.isIncomplete()) {
       String msg = "No documentation rules found";
       logger.warn(msg + "; summary card sent to client");
       response.addCard(CardBuilder.summaryCard(msg));
@@ -215,54 +349,54 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
     return listOfLinks;
   }
 
-  private CqlResultsForCard executeCqlAndGetRelevantResults(Context context, String topic) {
+  private CqlResultsForCard executeCqlAndGetRelevantResults(Context context, String topic, CqlProfiler profiler) {
     CqlResultsForCard results = new CqlResultsForCard();
 
-    results.setRuleApplies((Boolean) evaluateStatement("RULE_APPLIES", context));
+    results.setRuleApplies((Boolean) evaluateStatement("RULE_APPLIES", context, topic, profiler));
     if (!results.ruleApplies()) {
       return results;
     }
 
     String humanReadableTopic = StringUtils.join(StringUtils.splitByCharacterTypeCamelCase(topic), ' ');
 
-    results.setSummary(humanReadableTopic + ": " + evaluateStatement("RESULT_Summary", context).toString())
-        .setDetails(evaluateStatement("RESULT_Details", context).toString())
-        .setInfoLink(evaluateStatement("RESULT_InfoLink", context).toString())
-        .setPriorAuthRequired((Boolean) evaluateStatement("PRIORAUTH_REQUIRED", context))
-        .setDocumentationRequired((Boolean) evaluateStatement("DOCUMENTATION_REQUIRED", context));
+    results.setSummary(humanReadableTopic + ": " + evaluateStatement("RESULT_Summary", context, topic, profiler).toString())
+        .setDetails(evaluateStatement("RESULT_Details", context, topic, profiler).toString())
+        .setInfoLink(evaluateStatement("RESULT_InfoLink", context, topic, profiler).toString())
+        .setPriorAuthRequired((Boolean) evaluateStatement("PRIORAUTH_REQUIRED", context, topic, profiler))
+        .setDocumentationRequired((Boolean) evaluateStatement("DOCUMENTATION_REQUIRED", context, topic, profiler));
 
-    if (evaluateStatement("RESULT_QuestionnaireOrderUri", context) != null) {
-      results.setQuestionnaireOrderUri(evaluateStatement("RESULT_QuestionnaireOrderUri", context).toString())
+    if (evaluateStatement("RESULT_QuestionnaireOrderUri", context, topic, profiler) != null) {
+      results.setQuestionnaireOrderUri(evaluateStatement("RESULT_QuestionnaireOrderUri", context, topic, profiler).toString())
           .setRequestId(JSONObject.escape(fhirComponents.getFhirContext().newJsonParser()
-              .encodeResourceToString((IBaseResource) evaluateStatement("RESULT_requestId", context))));
+              .encodeResourceToString((IBaseResource) evaluateStatement("RESULT_requestId", context, topic, profiler))));
     }
 
     try {
-      if (evaluateStatement("RESULT_QuestionnaireFaceToFaceUri", context) != null) {
+      if (evaluateStatement("RESULT_QuestionnaireFaceToFaceUri", context, topic, profiler) != null) {
         results
-            .setQuestionnaireFaceToFaceUri(evaluateStatement("RESULT_QuestionnaireFaceToFaceUri", context).toString())
+            .setQuestionnaireFaceToFaceUri(evaluateStatement("RESULT_QuestionnaireFaceToFaceUri", context, topic, profiler).toString())
             .setRequestId(JSONObject.escape(fhirComponents.getFhirContext().newJsonParser()
-                .encodeResourceToString((IBaseResource) evaluateStatement("RESULT_requestId", context))));
+                .encodeResourceToString((IBaseResource) evaluateStatement("RESULT_requestId", context, topic, profiler))));
       }
     } catch (Exception e) {
       logger.info("-- No face to face questionnaire defined");
     }
 
     try {
-      if (evaluateStatement("RESULT_QuestionnaireLabUri", context) != null) {
-        results.setQuestionnaireLabUri(evaluateStatement("RESULT_QuestionnaireLabUri", context).toString())
+      if (evaluateStatement("RESULT_QuestionnaireLabUri", context, topic, profiler) != null) {
+        results.setQuestionnaireLabUri(evaluateStatement("RESULT_QuestionnaireLabUri", context, topic, profiler).toString())
             .setRequestId(JSONObject.escape(fhirComponents.getFhirContext().newJsonParser()
-                .encodeResourceToString((IBaseResource) evaluateStatement("RESULT_requestId", context))));
+                .encodeResourceToString((IBaseResource) evaluateStatement("RESULT_requestId", context, topic, profiler))));
       }
     } catch (Exception e) {
       logger.info("-- No Lab questionnaire defined");
     }
 
     try {
-      if (evaluateStatement("RESULT_QuestionnaireProgressNoteUri", context) != null) {
-        results.setQuestionnaireProgressNoteUri(evaluateStatement("RESULT_QuestionnaireProgressNoteUri", context).toString())
+      if (evaluateStatement("RESULT_QuestionnaireProgressNoteUri", context, topic, profiler) != null) {
+        results.setQuestionnaireProgressNoteUri(evaluateStatement("RESULT_QuestionnaireProgressNoteUri", context, topic, profiler).toString())
             .setRequestId(JSONObject.escape(fhirComponents.getFhirContext().newJsonParser()
-                .encodeResourceToString((IBaseResource) evaluateStatement("RESULT_requestId", context))));
+                .encodeResourceToString((IBaseResource) evaluateStatement("RESULT_requestId", context, topic, profiler))));
       }
     } catch (Exception e) {
       logger.info("-- No Lab questionnaire defined");
@@ -271,13 +405,20 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
     return results;
   }
 
-  private Object evaluateStatement(String statement, Context context) {
+  private Object evaluateStatement(String statement, Context context, String topic, CqlProfiler profiler) {
+    long start = System.nanoTime();
+    Object result = null;
     try {
-      return context.resolveExpressionRef(statement).evaluate(context);
+      result = context.resolveExpressionRef(statement).evaluate(context);
+      return result;
       // can be thrown if statement is not defined in the cql
     } catch (IllegalArgumentException e) {
       logger.error(e.toString());
       return null;
+    } finally {
+      if (profiler != null) {
+        profiler.recordStatement(topic, statement, System.nanoTime() - start, result);
+      }
     }
   }
 
@@ -348,8 +489,84 @@ public abstract class CdsService<requestTypeT extends CdsRequest<?, ?>> {
     return link;
   }
 
+  /**
+   * Runs work with the timer as the current one of the thread, so code called from it can find it.
+   */
+  private static <T> T onThread(StageTimer timer, Supplier<T> work) {
+    timer.attach();
+    try {
+      return work.get();
+    } finally {
+      timer.detach();
+    }
+  }
+
   // Implement this in child class
   public abstract List<CoverageRequirementRuleResult> createCqlExecutionContexts(requestTypeT request,
       FileStore fileStore, String baseUrl) throws RequestIncompleteException;
 
+  /**
+   * RequestService that keeps nothing, for requests that should not show up in the request log.
+   */
+  private static class DiscardedRequestLogs implements RequestService {
+    public Iterable<RequestLog> findAll() { return new ArrayList<>(); }
+
+    public RequestLog findById(Long id) { return null; }
+
+    public RequestLog create(RequestLog requestLog) { return requestLog; }
+
+    public RequestLog edit(RequestLog requestLog) { return requestLog; }
+
+    public void deleteById(Long id) { }
+
+    public void logAll() { }
+  }
+
+  /**
+   * RequestService that holds on to the log of one request and saves it when flushed, so a request
+   * handled asynchronously writes its log once, on the I/O pool.
+   */
+  private static class DeferredRequestLogs implements RequestService {
+    private final RequestService requestService;
+    private RequestLog requestLog;
+
+    DeferredRequestLogs(RequestService requestService) {
+      this.requestService = requestService;
+    }
+
+    public Iterable<RequestLog> findAll() { return requestService.findAll(); }
+
+    public RequestLog findById(Long id) { return requestService.findById(id); }
+
+    public synchronized RequestLog create(RequestLog requestLog) {
+      this.requestLog = requestLog;
+      return requestLog;
+    }
+
+    public synchronized RequestLog edit(RequestLog requestLog) {
+      this.requestLog = requestLog;
+      return requestLog;
+    }
+
+    public void deleteById(Long id) { requestService.deleteById(id); }
+
+    public void logAll() { requestService.logAll(); }
+
+    /**
+     * Saves the log, noting what the deadline cut short.
+     */
+    synchronized void flush(HookDeadline deadline) {
+      if (requestLog == null) {
+        return;
+      }
+      if (deadline.isIncomplete()) {
+        requestLog.setResults(deadline.describeIncomplete());
+      }
+      try {
+        requestService.create(requestLog);
+      } catch (RuntimeException e) {
+        logger.warn("CdsService::flush() failed to save the request log: " + e.getMessage());
+      }
+    }
+  }
 }
@@ -0,0 +1,120 @@
+package org.hl7.davinci.endpoint.cdshooks.services.crd;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.cdshooks.Card;
+import org.cdshooks.CdsResponse;
+import org.hl7.davinci.endpoint.components.CardBuilder;
+
+/**
+ * The end-to-end deadline of one CDS Hooks request, with the cards it has produced so far. Once the
+ * deadline passes the request is answered with those cards and an incomplete card, and work that is
+ * cut short is noted so it shows up in the card and the request log.
+ */
+public class HookDeadline {
+
+  private final long timeoutMillis;
+  private final long expiresAt;
+  private final List<Card> cards = new ArrayList<>();
+  private final List<String> incomplete = new ArrayList<>();
+  // what the request is working on, reported as not finished if the deadline passes during it
+  private volatile String stage = "request log";
+
+  /**
+   * Starts the deadline.
+   *
+   * @param timeoutMillis Time the request has from now, 0 for no deadline.
+   */
+  public HookDeadline(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+    this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  /**
+   * A deadline that never passes, for requests that run to the end.
+   */
+  public static HookDeadline none() {
+    return new HookDeadline(0);
+  }
+
+  public long getTimeoutMillis() { return timeoutMillis; }
+
+  public boolean hasPassed() {
+    return timeoutMillis > 0 && System.nanoTime() - expiresAt >= 0;
+  }
+
+  /**
+   * Gets the milliseconds left, Long.MAX_VALUE if there is no deadline.
+   */
+  public long remainingMillis() {
+    if (timeoutMillis == 0) {
+      return Long.MAX_VALUE;
+    }
+    return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+  }
+
+  /**
+   * Notes the stage the request has reached.
+   *
+   * @param stage What the request is now working on, e.g. "prefetch" or "rule HomeOxygenTherapy".
+   */
+  public void enter(String stage) {
+    this.stage = stage;
+  }
+
+  public String getStage() { return stage; }
+
+  public synchronized void addCard(Card card) {
+    cards.add(card);
+  }
+
+  /**
+   * Notes work that was skipped or cut short by the deadline.
+   *
+   * @param work What was not finished, e.g. "rule HomeOxygenTherapy".
+   */
+  public synchronized void incomplete(String work) {
+    if (!incomplete.contains(work)) {
+      incomplete.add(work);
+    }
+  }
+
+  public synchronized boolean isIncomplete() {
+    return !incomplete.isEmpty();
+  }
+
+  /**
+   * Gets the response for the cards so far, followed by an incomplete card if work was cut short.
+   */
+  public synchronized CdsResponse toResponse() {
+    CdsResponse response = new CdsResponse();
+    for (Card card : cards) {
+      response.addCard(card);
+    }
+    if (!incomplete.isEmpty()) {
+      response.addCard(CardBuilder.incompleteCard(incomplete));
+    }
+    return response;
+  }
+
+  /**
+   * Gets the response to send when the deadline passes while the request is still being worked on,
+   * noting the stage it is in unless that has already been noted, e.g. by the prefetch cancellation.
+   */
+  public synchronized CdsResponse respondAtDeadline() {
+    String current = stage;
+    if (incomplete.stream().noneMatch(work -> work.equals(current) || work.startsWith(current + " "))) {
+      incomplete.add(current);
+    }
+    return toResponse();
+  }
+
+  /**
+   * Describes what was not finished, for the request log.
+   */
+  public synchronized String describeIncomplete() {
+    return "Incomplete after " + timeoutMillis + "ms: " + String.join(", ", incomplete);
+  }
+}
@@ -0,0 +1,162 @@
+package org.hl7.davinci.endpoint.cdshooks.services.crd;
+
+import java.net.URL;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.cdshooks.CdsRequest;
+import org.cdshooks.CdsResponse;
+import org.hl7.davinci.endpoint.components.CardBuilder;
+import org.hl7.davinci.endpoint.config.HooksConfig;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
+
+/**
+ * Runs CDS Hooks requests off the servlet threads. Prefetch fetches and request logging run on an
+ * I/O pool, and CQL on a pool with a thread per processor and a bounded queue, so a burst of EHR
+ * requests waits for CPU instead of holding a servlet thread each. Every request has a deadline, the
+ * timeout of its hook, after which it is answered with the cards it has so far.
+ */
+@Component
+public class HookExecutor {
+  static final Logger logger = LoggerFactory.getLogger(HookExecutor.class);
+
+  static final String BUSY_SUMMARY = "Coverage requirements could not be determined, the server is busy.";
+
+  private final HooksConfig config;
+  private final ThreadPoolExecutor cqlExecutor;
+  private final ExecutorService ioExecutor;
+  private final ScheduledThreadPoolExecutor deadlines;
+  private final RestTemplate fhirRestTemplate;
+
+  @Autowired
+  public HookExecutor(YamlConfig yamlConfig) {
+    this.config = yamlConfig.getHooks();
+    int cqlThreads = config.getCqlThreads() > 0 ? config.getCqlThreads() : Runtime.getRuntime().availableProcessors();
+    this.cqlExecutor = new ThreadPoolExecutor(cqlThreads, cqlThreads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, config.getCqlQueue())), threadFactory("hook-cql"));
+    this.ioExecutor = Executors.newFixedThreadPool(config.getIoThreads(), threadFactory("hook-io"));
+    this.deadlines = new ScheduledThreadPoolExecutor(1, threadFactory("hook-deadline"));
+    // most requests finish in time, drop their deadline tasks rather than keep them until they are due
+    this.deadlines.setRemoveOnCancelPolicy(true);
+    this.fhirRestTemplate = pooledRestTemplate(config.getIoThreads(), config.getFetchTimeout());
+  }
+
+  private static ThreadFactory threadFactory(String name) {
+    AtomicInteger count = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  private static RestTemplate pooledRestTemplate(int connections, int timeout) {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(connections);
+    // the prefetch of a request is usually all fetched from the same EHR
+    connectionManager.setDefaultMaxPerRoute(connections);
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(timeout)
+        .setSocketTimeout(timeout)
+        .setConnectionRequestTimeout(timeout)
+        .build();
+    return new RestTemplate(new HttpComponentsClientHttpRequestFactory(HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig)
+        .build()));
+  }
+
+  public ThreadPoolExecutor getCqlExecutor() { return cqlExecutor; }
+
+  public ExecutorService getIoExecutor() { return ioExecutor; }
+
+  /**
+   * Gets the RestTemplate the prefetch is fetched from the EHR with, shared so connections are reused.
+   */
+  public RestTemplate getFhirRestTemplate() { return fhirRestTemplate; }
+
+  /**
+   * Runs a task once a deadline passes, unless it is cancelled first. The task should be quick.
+   *
+   * @param task The task.
+   * @param delayMillis Milliseconds until the deadline.
+   * @return The future to cancel the task with.
+   */
+  public ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+    return deadlines.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts handling a request and returns straight away. The result is set once the service is done,
+   * to the cards so far and an incomplete card if the timeout for the hook runs out first, or to a
+   * summary card if the CQL queue is full.
+   *
+   * @param service The service for the hook.
+   * @param request The request.
+   * @param applicationBaseUrl The base url of the server.
+   * @return The response for Spring MVC to write once it is set.
+   */
+  public <T extends CdsRequest<?, ?>> DeferredResult<CdsResponse> submit(CdsService<T> service, T request,
+      URL applicationBaseUrl) {
+    long timeout = config.getTimeout(service.hook.getValue());
+    HookDeadline deadline = new HookDeadline(timeout);
+    // without a deadline the request waits for the service, 0 turns off the container's async timeout
+    DeferredResult<CdsResponse> result = new DeferredResult<>(timeout > 0 ? timeout : 0L);
+    if (timeout > 0) {
+      result.onTimeout(() -> {
+        logger.warn("HookExecutor::submit() " + service.id + " still running after " + timeout
+            + "ms; cards so far sent to client");
+        result.setResult(deadline.respondAtDeadline());
+      });
+    }
+
+    service.handleRequestAsync(request, applicationBaseUrl, deadline).whenComplete((response, failure) -> {
+      if (failure == null) {
+        result.setResult(response);
+        return;
+      }
+      Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+          ? failure.getCause() : failure;
+      if (cause instanceof RejectedExecutionException) {
+        logger.warn("HookExecutor::submit() CQL queue is full; summary card sent to client");
+        result.setResult(summaryResponse(BUSY_SUMMARY));
+      } else {
+        result.setErrorResult(cause);
+      }
+    });
+    return result;
+  }
+
+  private static CdsResponse summaryResponse(String summary) {
+    CdsResponse response = new CdsResponse();
+    response.addCard(CardBuilder.summaryCard(summary));
+    return response;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    cqlExecutor.shutdownNow();
+    ioExecutor.shutdownNow();
+    deadlines.shutdownNow();
+  }
+}
@@ -0,0 +1,190 @@
+package org.hl7.davinci.endpoint.cdshooks.services.crd;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.hl7.ShortNameMaps;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.davinci.endpoint.database.RuleMapping;
+import org.hl7.davinci.endpoint.files.FileStore;
+import org.hl7.davinci.r4.CrdRequestCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Sends a synthetic request for every topic through its hook after the rules are reloaded, so the
+ * CQL is translated, the classes are loaded and the JIT has run before the first real request. The
+ * requests are built with the CrdRequestCreator using the code, code system and payer of one of the
+ * topic's rule mappings. RxNorm codes go through medication-prescribe, everything else through
+ * order-sign.
+ *
+ * <p>Enabled with warmUp in the configuration. While enabled, health reports OUT_OF_SERVICE until the
+ * first warm-up has finished, so the server does not join the load balancer cold.
+ */
+@Component
+public class RuleWarmUp implements HealthIndicator {
+
+  static final Logger logger = LoggerFactory.getLogger(RuleWarmUp.class);
+
+  private static final String RXNORM = ShortNameMaps.CODE_SYSTEM_SHORT_NAME_TO_FULL_NAME.get("rxnorm");
+
+  @Autowired
+  private YamlConfig config;
+
+  @Autowired
+  private FileStore fileStore;
+
+  @Autowired
+  private org.hl7.davinci.endpoint.cdshooks.services.crd.r4.OrderSignService r4OrderSignService;
+
+  @Autowired
+  private org.hl7.davinci.endpoint.cdshooks.services.crd.r4.MedicationPrescribeService r4MedicationPrescribeService;
+
+  @Autowired
+  private org.hl7.davinci.endpoint.cdshooks.services.crd.stu3.OrderSignService stu3OrderSignService;
+
+  @Autowired
+  private org.hl7.davinci.endpoint.cdshooks.services.crd.stu3.MedicationPrescribeService stu3MedicationPrescribeService;
+
+  private volatile boolean warm = false;
+  private volatile int requests = 0;
+  private volatile int failures = 0;
+  private volatile long duration = 0;
+
+  /**
+   * Runs the warm-up if it is enabled. Called after every reload of the FileStore.
+   */
+  public synchronized void run() {
+    if (!config.getWarmUp()) {
+      return;
+    }
+    logger.info("RuleWarmUp::run()");
+    long startTime = System.nanoTime();
+
+    // one request per topic and FHIR version is enough to translate and run its CQL
+    Map<String, RuleMapping> topics = new LinkedHashMap<>();
+    for (RuleMapping rule : fileStore.findAll()) {
+      topics.putIfAbsent(rule.getFhirVersion().toUpperCase() + "/" + rule.getTopic(), rule);
+    }
+
+    URL baseUrl;
+    try {
+      baseUrl = new URL("http://localhost/");
+    } catch (MalformedURLException e) {
+      throw new RuntimeException(e);
+    }
+
+    int count = 0;
+    int failed = 0;
+    for (Map.Entry<String, RuleMapping> topic : topics.entrySet()) {
+      count++;
+      try {
+        warmUp(topic.getValue(), baseUrl);
+      } catch (Exception e) {
+        failed++;
+        logger.warn("RuleWarmUp::run() failed to warm up " + topic.getKey() + ": " + e.getMessage());
+      }
+    }
+
+    requests = count;
+    failures = failed;
+    duration = (System.nanoTime() - startTime) / 1000000;
+    warm = true;
+    logger.info("RuleWarmUp::run(): " + count + " topics (" + failed + " failed) in " + duration + " ms");
+  }
+
+  private void warmUp(RuleMapping rule, URL baseUrl) {
+    String payer = rule.getPayer();
+    boolean medication = RXNORM.equals(rule.getCodeSystem());
+    Date birthDate = new GregorianCalendar(1950, Calendar.JANUARY, 1).getTime();
+
+    if (rule.getFhirVersion().equalsIgnoreCase("R4")) {
+      org.hl7.fhir.r4.model.Enumerations.AdministrativeGender gender =
+          org.hl7.fhir.r4.model.Enumerations.AdministrativeGender.MALE;
+      org.hl7.fhir.r4.model.CodeableConcept code = new org.hl7.fhir.r4.model.CodeableConcept()
+          .addCoding(new org.hl7.fhir.r4.model.Coding(rule.getCodeSystem(), rule.getCode(), null));
+      if (medication) {
+        org.hl7.davinci.r4.crdhook.medicationprescribe.MedicationPrescribeRequest request =
+            CrdRequestCreator.createMedicationPrescribeRequest(gender, birthDate, "MA", "MA");
+        setR4CodeAndPayer(request.getPrefetch().getMedicationRequestBundle(), code, payer);
+        r4MedicationPrescribeService.warmUp(request, baseUrl);
+      } else {
+        org.hl7.davinci.r4.crdhook.ordersign.OrderSignRequest request =
+            CrdRequestCreator.createOrderSignRequest(gender, birthDate, "MA", "MA");
+        setR4CodeAndPayer(request.getPrefetch().getServiceRequestBundle(), code, payer);
+        r4OrderSignService.warmUp(request, baseUrl);
+      }
+    } else if (rule.getFhirVersion().equalsIgnoreCase("STU3")) {
+      org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender gender =
+          org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender.MALE;
+      org.hl7.fhir.dstu3.model.CodeableConcept code = new org.hl7.fhir.dstu3.model.CodeableConcept()
+          .addCoding(new org.hl7.fhir.dstu3.model.Coding(rule.getCodeSystem(), rule.getCode(), null));
+      if (medication) {
+        org.hl7.davinci.stu3.crdhook.medicationprescribe.MedicationPrescribeRequest request =
+            org.hl7.davinci.stu3.CrdRequestCreator.createMedicationPrescribeRequest(gender, birthDate, "MA", "MA");
+        setStu3CodeAndPayer(request.getPrefetch().getMedicationRequestBundle(), code, payer);
+        stu3MedicationPrescribeService.warmUp(request, baseUrl);
+      } else {
+        org.hl7.davinci.stu3.crdhook.ordersign.OrderSignRequest request =
+            org.hl7.davinci.stu3.CrdRequestCreator.createOrderSignRequest(gender, birthDate, "MA", "MA");
+        setStu3CodeAndPayer(request.getPrefetch().getDeviceRequestBundle(), code, payer);
+        stu3OrderSignService.warmUp(request, baseUrl);
+      }
+    } else {
+      logger.warn("RuleWarmUp::warmUp() unsupported FHIR version: " + rule.getFhirVersion());
+    }
+  }
+
+  /**
+   * Replaces the code of the order and the name of the payer in a request made by the
+   * CrdRequestCreator, whose orders and context share the resources in the prefetch bundle.
+   */
+  private static void setR4CodeAndPayer(org.hl7.fhir.r4.model.Bundle prefetchBundle,
+      org.hl7.fhir.r4.model.CodeableConcept code, String payer) {
+    for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : prefetchBundle.getEntry()) {
+      org.hl7.fhir.r4.model.Resource resource = entry.getResource();
+      if (resource instanceof org.hl7.fhir.r4.model.ServiceRequest) {
+        ((org.hl7.fhir.r4.model.ServiceRequest) resource).setCode(code);
+      } else if (resource instanceof org.hl7.fhir.r4.model.MedicationRequest) {
+        ((org.hl7.fhir.r4.model.MedicationRequest) resource).setMedication(code);
+      } else if (resource instanceof org.hl7.fhir.r4.model.Organization) {
+        ((org.hl7.fhir.r4.model.Organization) resource).setName(payer);
+      }
+    }
+  }
+
+  private static void setStu3CodeAndPayer(org.hl7.fhir.dstu3.model.Bundle prefetchBundle,
+      org.hl7.fhir.dstu3.model.CodeableConcept code, String payer) {
+    for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : prefetchBundle.getEntry()) {
+      org.hl7.fhir.dstu3.model.Resource resource = entry.getResource();
+      if (resource instanceof org.hl7.fhir.dstu3.model.DeviceRequest) {
+        ((org.hl7.fhir.dstu3.model.DeviceRequest) resource).setCode(code);
+      } else if (resource instanceof org.hl7.fhir.dstu3.model.MedicationRequest) {
+        ((org.hl7.fhir.dstu3.model.MedicationRequest) resource).setMedication(code);
+      } else if (resource instanceof org.hl7.fhir.dstu3.model.Organization) {
+        ((org.hl7.fhir.dstu3.model.Organization) resource).setName(payer);
+      }
+    }
+  }
+
+  @Override
+  public Health health() {
+    if (!config.getWarmUp()) {
+      return Health.up().build();
+    }
+    Health.Builder builder = warm ? Health.up() : Health.outOfService();
+    return builder.withDetail("warm", warm)
+        .withDetail("topics", requests)
+        .withDetail("failures", failures)
+        .withDetail("durationMillis", duration)
+        .build();
+  }
+}
@@ -5,6 +5,7 @@ import org.hl7.davinci.endpoint.cql.CqlRule;
 import org.hl7.davinci.endpoint.cql.r4.CqlExecutionContextBuilder;
 import org.hl7.davinci.endpoint.database.RuleMapping;
 import org.hl7.davinci.endpoint.files.FileStore;
+import org.hl7.davinci.endpoint.metrics.StageTimer;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleResult;
 import org.hl7.davinci.r4.Utilities;
@@ -127,7 +128,9 @@ public class FhirBundleProcessor {
   private void buildExecutionContexts(List<CoverageRequirementRuleCriteria> criteriaList, Patient patient, String requestType, DomainResource request) {
     for (CoverageRequirementRuleCriteria criteria : criteriaList) {
       logger.info("FhirBundleProcessor::buildExecutionContexts() criteria: " + criteria.toString());
+      long lookupStart = System.nanoTime();
       List<RuleMapping> rules = fileStore.findRules(criteria);
+      StageTimer.current().record(StageTimer.RULE_LOOKUP, lookupStart);
 
       for (RuleMapping rule: rules) {
         CoverageRequirementRuleResult result = new CoverageRequirementRuleResult();
@@ -136,7 +139,10 @@ public class FhirBundleProcessor {
           logger.info("FhirBundleProcessor::buildExecutionContexts() found rule topic: " + rule.getTopic());
 
           //get the CqlRule
+          long ruleStart = System.nanoTime();
           CqlRule cqlRule = fileStore.getCqlRule(rule.getTopic(), rule.getFhirVersion());
+          StageTimer.current().record(StageTimer.RULE_LOOKUP, ruleStart);
+          // translation and context building are timed in the CqlExecutionContextBuilder
           result.setContext(createCqlExecutionContext(cqlRule, patient, requestType, request));
           results.add(result);
         } catch (Exception e) {
@@ -150,7 +156,8 @@ public class FhirBundleProcessor {
     HashMap<String, Resource> cqlParams = new HashMap<>();
     cqlParams.put("Patient", patient);
     cqlParams.put(requestType, request);
-    return CqlExecutionContextBuilder.getExecutionContext(cqlRule, cqlParams, baseUrl);
+    return CqlExecutionContextBuilder.getExecutionContext(cqlRule, cqlParams, baseUrl,
+        fileStore.getValueSetExpansionStore());
   }
 
   private String stripResourceType(String identifier) {
@@ -200,6 +200,20 @@ public class CardBuilder {
     return card;
   }
 
+  /**
+   * Creates a warning card saying the response is missing work that did not finish in time.
+   *
+   * @param incomplete What was not finished, listed in the detail of the card
+   * @return valid card
+   */
+  public static Card incompleteCard(List<String> incomplete) {
+    Card card = baseCard();
+    card.setIndicator(Card.IndicatorEnum.WARNING);
+    card.setSummary("Coverage requirements may be incomplete, not everything could be checked in time.");
+    card.setDetail("Not finished in time: " + String.join(", ", incomplete) + ".");
+    return card;
+  }
+
   /**
    * Creates an error card and adds it to the response if the response that is passed in does not
    * contain any cards.
@@ -3,7 +3,12 @@ package org.hl7.davinci.endpoint.components;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.regex.Pattern;
 import org.apache.commons.beanutils.PropertyUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -35,9 +40,15 @@ public class PrefetchHydrator {
   private CdsRequest<?, ?> cdsRequest;
   private Object dataForPrefetchToken;
   private FhirComponentsT fhirComponents;
+  private RestTemplate restTemplate;
 
   private String currentlyResolvingPrefetchToken;
 
+  private final Map<PrefetchTemplateElement, CompletableFuture<IBaseResource>> fetches = new LinkedHashMap<>();
+  private final CompletableFuture<Void> hydrated = new CompletableFuture<>();
+  private volatile boolean cancelled = false;
+  private boolean filled = false;
+
   /**
    * Constructor should take in a service and a request that service is processing. This class can
    * fill out the prefetch elements that are missing.
@@ -49,10 +60,25 @@ public class PrefetchHydrator {
    */
   public PrefetchHydrator(CdsService cdsService, CdsRequest cdsRequest,
       FhirComponentsT fhirComponents) {
+    this(cdsService, cdsRequest, fhirComponents, new RestTemplate());
+  }
+
+  /**
+   * Constructor taking the RestTemplate the missing prefetch elements are fetched with.
+   *
+   * @param cdsService The service that is processing the request.
+   * @param cdsRequest The request in question, the prefetch will be hydrated if possible. Note that
+   *                   this object gets modified.
+   * @param fhirComponents The fhir components object.
+   * @param restTemplate The RestTemplate to fetch from the fhir server with.
+   */
+  public PrefetchHydrator(CdsService cdsService, CdsRequest cdsRequest,
+      FhirComponentsT fhirComponents, RestTemplate restTemplate) {
     this.cdsService = cdsService;
     this.cdsRequest = cdsRequest;
     this.dataForPrefetchToken = cdsRequest.getDataForPrefetchToken();
     this.fhirComponents = fhirComponents;
+    this.restTemplate = restTemplate;
   }
 
   private void resolvePrefetchTokenRecursive(
@@ -101,6 +127,17 @@ public class PrefetchHydrator {
    * Attempt to hydrate missing prefetch elements, note that this modifies the request object.
    */
   public void hydrate() {
+    hydrate(Runnable::run).join();
+  }
+
+  /**
+   * Attempt to hydrate missing prefetch elements, fetching them all at once on the executor. Note
+   * that this modifies the request object.
+   *
+   * @param executor The executor to run the fetches on.
+   * @return Completes once the fetched elements are in the prefetch.
+   */
+  public CompletableFuture<Void> hydrate(Executor executor) {
     Object crdResponse = cdsRequest.getPrefetch();
     for (PrefetchTemplateElement prefetchElement : cdsService.getPrefetchElements()) {
       String prefetchKey = prefetchElement.getKey();
@@ -127,17 +164,65 @@ public class PrefetchHydrator {
             throw new FatalRequestIncompleteException("Attempting to fill the prefetch, but no fhir "
                 + "server provided. Either provide a full prefetch or provide a fhir server.");
           }
-          try {
-            PropertyUtils
-                .setProperty(crdResponse, prefetchKey,
-                    prefetchElement.getReturnType().cast(
-                        executeFhirQuery(hydratedPrefetchQuery, token)));
-          } catch (Exception e) {
-            logger.warn("Failed to fill prefetch for key: " + prefetchKey, e);
-          }
+          String fetchToken = token;
+          fetches.put(prefetchElement, CompletableFuture.supplyAsync(
+              () -> cancelled ? null : executeFhirQuery(hydratedPrefetchQuery, fetchToken), executor));
         }
       }
     }
+
+    CompletableFuture.allOf(fetches.values().toArray(new CompletableFuture[0]))
+        .whenComplete((done, failure) -> {
+          fill();
+          hydrated.complete(null);
+        });
+    return hydrated;
+  }
+
+  /**
+   * Stops waiting for the fetches that have not finished. The elements fetched so far are put in
+   * the prefetch, the rest are left out, and the future returned by hydrate completes. Fetches that
+   * have not started are not sent, the ones in flight are left to time out.
+   *
+   * @return The keys of the elements left out, empty if the prefetch was already filled.
+   */
+  public List<String> cancel() {
+    cancelled = true;
+    List<String> missing = fill();
+    hydrated.complete(null);
+    return missing;
+  }
+
+  /**
+   * Puts the fetched elements in the prefetch, once.
+   *
+   * @return The keys of the elements that had not been fetched yet.
+   */
+  private synchronized List<String> fill() {
+    List<String> missing = new ArrayList<>();
+    if (filled) {
+      return missing;
+    }
+    filled = true;
+    Object crdResponse = cdsRequest.getPrefetch();
+    for (Map.Entry<PrefetchTemplateElement, CompletableFuture<IBaseResource>> fetch : fetches.entrySet()) {
+      String prefetchKey = fetch.getKey().getKey();
+      if (!fetch.getValue().isDone()) {
+        logger.warn("Prefetch for key: " + prefetchKey + " not fetched in time, left out");
+        missing.add(prefetchKey);
+        continue;
+      }
+      try {
+        PropertyUtils
+            .setProperty(crdResponse, prefetchKey,
+                fetch.getKey().getReturnType().cast(fetch.getValue().join()));
+      } catch (CompletionException e) {
+        logger.warn("Failed to fill prefetch for key: " + prefetchKey, e.getCause());
+      } catch (Exception e) {
+        logger.warn("Failed to fill prefetch for key: " + prefetchKey, e);
+      }
+    }
+    return missing;
   }
 
   private IBaseResource executeFhirQuery(String query, String token) {
@@ -152,7 +237,6 @@ public class PrefetchHydrator {
     //    IGenericClient client = ctx.newRestfulGenericClient(serverBase);
     //    return client.search().byUrl(query).encodedJson().returnBundle(Bundle.class).execute();
 
-    RestTemplate restTemplate = new RestTemplate();
     HttpHeaders headers = new HttpHeaders();
     headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
     if (token != null) {
@@ -163,7 +247,8 @@ public class PrefetchHydrator {
       logger.debug("Fetching: " + fullUrl);
       ResponseEntity<String> response = restTemplate.exchange(fullUrl, HttpMethod.GET,
           entity, String.class);
-      return fhirComponents.getJsonParser().parseResource(response.getBody());
+      // the fetches can run at the same time, so each gets its own parser
+      return fhirComponents.getFhirContext().newJsonParser().parseResource(response.getBody());
     } catch (RestClientException e) {
       logger.warn("Unable to make the fetch request", e);
       return null;
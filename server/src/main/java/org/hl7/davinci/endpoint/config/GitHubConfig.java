@@ -7,6 +7,7 @@ public class GitHubConfig {
   private String branch;
   private String rulePath;
   private Boolean useZipForReload;
+  private String mirrorPath;
 
   public String getUsername() {return username; }
 
@@ -31,4 +32,8 @@ public class GitHubConfig {
   public boolean getUseZipForReload() { return useZipForReload; }
 
   public void setUseZipForReload(boolean useZipForReload) { this.useZipForReload = useZipForReload; }
+
+  public String getMirrorPath() { return mirrorPath; }
+
+  public void setMirrorPath(String mirrorPath) { this.mirrorPath = mirrorPath; }
 }
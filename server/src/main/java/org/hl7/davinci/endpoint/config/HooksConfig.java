@@ -0,0 +1,46 @@
+package org.hl7.davinci.endpoint.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class HooksConfig {
+  private int cqlThreads = 0;
+  private int cqlQueue = 200;
+  private int ioThreads = 32;
+  private int fetchTimeout = 5000;
+  private Map<String, Long> timeout = new HashMap<>();
+
+  public int getCqlThreads() { return cqlThreads; }
+
+  public void setCqlThreads(int cqlThreads) { this.cqlThreads = cqlThreads; }
+
+  public int getCqlQueue() { return cqlQueue; }
+
+  public void setCqlQueue(int cqlQueue) { this.cqlQueue = cqlQueue; }
+
+  public int getIoThreads() { return ioThreads; }
+
+  public void setIoThreads(int ioThreads) { this.ioThreads = ioThreads; }
+
+  public int getFetchTimeout() { return fetchTimeout; }
+
+  public void setFetchTimeout(int fetchTimeout) { this.fetchTimeout = fetchTimeout; }
+
+  public Map<String, Long> getTimeout() { return timeout; }
+
+  public void setTimeout(Map<String, Long> timeout) { this.timeout = timeout; }
+
+  /**
+   * Gets the timeout in milliseconds for a hook, falling back to the default entry.
+   *
+   * @param hook The hook name, e.g. order-sign.
+   * @return The timeout, 0 if there is none.
+   */
+  public long getTimeout(String hook) {
+    Long hookTimeout = timeout.get(hook);
+    if (hookTimeout == null) {
+      hookTimeout = timeout.get("default");
+    }
+    return hookTimeout == null ? 0 : hookTimeout;
+  }
+}
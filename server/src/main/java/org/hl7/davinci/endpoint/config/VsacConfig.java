@@ -0,0 +1,44 @@
+package org.hl7.davinci.endpoint.config;
+
+public class VsacConfig {
+  private String authUrl;
+  private String svsUrl;
+  private int fetchThreads = 8;
+  private int fetchRetries = 3;
+  private long retryBackoff = 500;
+  private long cacheMaxAge = 24;
+  private long ticketRefresh = 240;
+  private int ticketPrefetch = 8;
+
+  public String getAuthUrl() { return authUrl; }
+
+  public void setAuthUrl(String authUrl) { this.authUrl = authUrl; }
+
+  public String getSvsUrl() { return svsUrl; }
+
+  public void setSvsUrl(String svsUrl) { this.svsUrl = svsUrl; }
+
+  public int getFetchThreads() { return fetchThreads; }
+
+  public void setFetchThreads(int fetchThreads) { this.fetchThreads = fetchThreads; }
+
+  public int getFetchRetries() { return fetchRetries; }
+
+  public void setFetchRetries(int fetchRetries) { this.fetchRetries = fetchRetries; }
+
+  public long getRetryBackoff() { return retryBackoff; }
+
+  public void setRetryBackoff(long retryBackoff) { this.retryBackoff = retryBackoff; }
+
+  public long getCacheMaxAge() { return cacheMaxAge; }
+
+  public void setCacheMaxAge(long cacheMaxAge) { this.cacheMaxAge = cacheMaxAge; }
+
+  public long getTicketRefresh() { return ticketRefresh; }
+
+  public void setTicketRefresh(long ticketRefresh) { this.ticketRefresh = ticketRefresh; }
+
+  public int getTicketPrefetch() { return ticketPrefetch; }
+
+  public void setTicketPrefetch(int ticketPrefetch) { this.ticketPrefetch = ticketPrefetch; }
+}
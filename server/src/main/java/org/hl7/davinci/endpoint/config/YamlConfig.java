@@ -1,6 +1,8 @@
 package org.hl7.davinci.endpoint.config;
 
 import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.context.properties.ConfigurationProperties;
@@ -34,8 +36,16 @@ public class YamlConfig {
 
   private String valueSetCachePath;
 
+  private VsacConfig vsac = new VsacConfig();
+
+  private HooksConfig hooks = new HooksConfig();
+
   private boolean urlEncodeAppContext;
 
+  private Map<String, String> cacheControl = new HashMap<>();
+
+  private boolean warmUp;
+
   public boolean getCheckJwt() {
     return checkJwt;
   }
@@ -90,4 +100,20 @@ public class YamlConfig {
   public String getValueSetCachePath() { return valueSetCachePath; }
 
   public void setValueSetCachePath(String valueSetCachePath) { this.valueSetCachePath = valueSetCachePath; }
+
+  public VsacConfig getVsac() { return vsac; }
+
+  public void setVsac(VsacConfig vsac) { this.vsac = vsac; }
+
+  public HooksConfig getHooks() { return hooks; }
+
+  public void setHooks(HooksConfig hooks) { this.hooks = hooks; }
+
+  public Map<String, String> getCacheControl() { return cacheControl; }
+
+  public void setCacheControl(Map<String, String> cacheControl) { this.cacheControl = cacheControl; }
+
+  public boolean getWarmUp() { return warmUp; }
+
+  public void setWarmUp(boolean warmUp) { this.warmUp = warmUp; }
 }
@@ -1,24 +1,35 @@
 package org.hl7.davinci.endpoint.controllers;
 
+import ca.uhn.fhir.context.FhirContext;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.hl7.davinci.endpoint.Application;
 import org.hl7.davinci.endpoint.Utils;
+import org.hl7.davinci.endpoint.cdshooks.services.crd.RuleWarmUp;
 import org.hl7.davinci.endpoint.config.YamlConfig;
 import org.hl7.davinci.endpoint.database.*;
 import org.hl7.davinci.endpoint.files.FileResource;
 import org.hl7.davinci.endpoint.files.FileStore;
+import org.hl7.davinci.endpoint.terminology.ValueSetExpansionStore;
 import org.hl7.davinci.endpoint.vsac.ValueSetCache;
+import org.hl7.fhir.r4.model.ValueSet;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.view.RedirectView;
 
 import java.util.Arrays;
+import java.util.Map;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.logging.Logger;
 
 
@@ -32,6 +43,18 @@ import javax.servlet.http.HttpServletRequest;
 public class DataController {
   private static Logger logger = Logger.getLogger(Application.class.getName());
 
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  /**
+   * Files smaller than this are copied to the response, the same default as Tomcat's default servlet.
+   * The FileStore only keeps gzip variants of files on disk up to this size, larger ones are sent
+   * uncompressed with sendfile.
+   */
+  private static final long SENDFILE_MIN_SIZE = 48 * 1024;
+
 
   @Autowired
   private RequestRepository requestRepository;
@@ -42,8 +65,12 @@ public class DataController {
   @Autowired
   private FileStore fileStore;
 
+  @Autowired
+  private RuleWarmUp ruleWarmUp;
+
   org.hl7.davinci.endpoint.fhir.r4.Metadata r4Metadata = new org.hl7.davinci.endpoint.fhir.r4.Metadata();
   org.hl7.davinci.endpoint.fhir.stu3.Metadata stu3Metadata = new org.hl7.davinci.endpoint.fhir.stu3.Metadata();
+  private final FhirContext r4Context = FhirContext.forR4();
 
   /**
    * Basic constructor to initialize both data repositories.
@@ -94,39 +121,170 @@ public class DataController {
     return new ResponseEntity<String>(json, HttpStatus.OK);
   }
 
-  private ResponseEntity<Resource> processFileResource(FileResource fileResource) {
+  /**
+   * Builds the response for a file or FHIR resource. The ETag and Last-Modified validators are set
+   * from the FileResource, Spring answers conditional GETs that match them with a 304 and no body.
+   * If the FileStore has a gzip variant and the client accepts it, that is sent instead. Files on disk
+   * are sent with sendfile where Tomcat supports it.
+   *
+   * @param request The request, used to read the Accept-Encoding header.
+   * @param fileResource The file or FHIR resource to return.
+   * @param type Resource type (or "files") used to look up the Cache-Control directive.
+   * @return The response.
+   */
+  private ResponseEntity<Resource> processFileResource(HttpServletRequest request, FileResource fileResource,
+      String type) {
     if (fileResource == null) {
       logger.warning("file / fhir resource not found, return error (404)");
       return ResponseEntity.notFound().build();
     }
-    return ResponseEntity.ok()
+    ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+    Resource body = fileResource.getResource();
+    String etag = fileResource.getEtag();
+    if (fileResource.getGzipResource() != null) {
+      builder.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+      if (acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+        builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        body = fileResource.getGzipResource();
+        if (etag != null) {
+          etag = etag + "-gzip";
+        }
+      }
+    }
+    if (etag != null) {
+      builder.eTag(etag);
+    }
+    if (fileResource.getLastModified() > 0) {
+      builder.lastModified(fileResource.getLastModified());
+    }
+    String cacheControl = getCacheControl(type);
+    if (cacheControl != null) {
+      builder.header(HttpHeaders.CACHE_CONTROL, cacheControl);
+    }
+    builder
         .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileResource.getFilename() + "\"")
-        .contentType(MediaType.parseMediaType("application/octet-stream"))
-        .body(fileResource.getResource());
+        .contentType(MediaType.parseMediaType("application/octet-stream"));
+    if (body instanceof FileSystemResource
+        && useSendfile(request, ((FileSystemResource) body).getFile(), etag, fileResource.getLastModified())) {
+      return builder.contentLength(((FileSystemResource) body).getFile().length()).build();
+    }
+    return builder.body(body);
+  }
+
+  /**
+   * Asks Tomcat to send a file on disk with sendfile once the controller returns, so the kernel copies
+   * it to the socket instead of it being read through the heap. This works from any servlet through the
+   * org.apache.tomcat.sendfile request attributes, the same ones the default servlet uses. Small files,
+   * ranges and requests Spring will answer with a 304 are left to Spring.
+   *
+   * @param request The request.
+   * @param file The file to send.
+   * @param etag The ETag the response will have.
+   * @param lastModified The Last-Modified time the response will have.
+   * @return true if Tomcat will send the file, the response must then not have a body.
+   */
+  private static boolean useSendfile(HttpServletRequest request, File file, String etag, long lastModified) {
+    if (!Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)) || !"GET".equals(request.getMethod())
+        || request.getHeader(HttpHeaders.RANGE) != null || file.length() < SENDFILE_MIN_SIZE
+        || new ServletWebRequest(request).checkNotModified(etag, lastModified)) {
+      return false;
+    }
+    try {
+      // Tomcat checks the file when the attribute is set
+      request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+    } catch (IOException | IllegalArgumentException e) {
+      logger.warning("sendfile not used for " + file + ": " + e.getMessage());
+      return false;
+    }
+    request.setAttribute(SENDFILE_START, 0L);
+    request.setAttribute(SENDFILE_END, file.length());
+    return true;
+  }
+
+  /**
+   * Checks if gzip is one of the codings in an Accept-Encoding header and has not been given a
+   * q value of 0.
+   */
+  private static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      String name = parts[0].trim();
+      if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+        continue;
+      }
+      for (int i = 1; i < parts.length; i++) {
+        String[] param = parts[i].trim().split("=");
+        if (param.length == 2 && param[0].trim().equalsIgnoreCase("q")) {
+          try {
+            return Double.parseDouble(param[1].trim()) > 0;
+          } catch (NumberFormatException e) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private String getCacheControl(String type) {
+    Map<String, String> cacheControl = myConfig.getCacheControl();
+    if (cacheControl.containsKey(type)) {
+      return cacheControl.get(type);
+    }
+    return cacheControl.get("default");
   }
 
   /**
    * Get a FHIR ValueSet expansion by canonical URL. This pretends to be a ValueSet/$expand operator.
+   * Without filter, offset or count the stored ValueSet is returned as is. With any of them a page of
+   * the expansion is built from the ValueSetExpansionStore, falling back to the stored ValueSet if the
+   * expansion is not in the store.
    * 
    * @param url The Canonical URL of the ValueSet.
+   * @param filter Text that the code or display of the returned concepts must contain.
+   * @param offset Number of matching concepts to skip.
+   * @param count Maximum number of concepts to return.
    * @return
    */
   @GetMapping(path = "fhir/r4/ValueSet/$expand")
-  public ResponseEntity<Resource> getFhirValueSetExpansion(HttpServletRequest request, @RequestParam String url){
+  public ResponseEntity<Resource> getFhirValueSetExpansion(HttpServletRequest request, @RequestParam String url,
+      @RequestParam(required = false) String filter, @RequestParam(required = false) Integer offset,
+      @RequestParam(required = false) Integer count){
     String baseUrl = Utils.getApplicationBaseUrl(request).toString() + "/";
     logger.info("GET /fhir/R4/ValueSet/$expand");
 
     if (url != null) {
+      if ((offset != null && offset < 0) || (count != null && count < 0)) {
+        return ResponseEntity.badRequest().build();
+      }
+
       // If URL starts with this server's base url, pull out id and search by id
       if (url.startsWith(baseUrl)) {
         String valueSetId = url.split("ValueSet/")[1];
+        if (filter != null || offset != null || count != null) {
+          FileResource expansion = expandValueSet("valueset/" + valueSetId.toLowerCase(), filter, offset, count,
+              baseUrl);
+          if (expansion != null) {
+            return processFileResource(request, expansion, "valueset");
+          }
+        }
         FileResource fileResource = fileStore.getFhirResourceById("R4", "valueset", "valueset/" + valueSetId, baseUrl);
-        return processFileResource(fileResource);
+        return processFileResource(request, fileResource, "valueset");
 
       // If the URL is from elsewhere, look by URL
       } else {
+        if (filter != null || offset != null || count != null) {
+          FileResource expansion = expandValueSet(url, filter, offset, count, baseUrl);
+          if (expansion != null) {
+            return processFileResource(request, expansion, "valueset");
+          }
+        }
         FileResource fileResource = fileStore.getFhirResourceByUrl("R4", "valueset", url, baseUrl);
-        return processFileResource(fileResource);
+        return processFileResource(request, fileResource, "valueset");
       }
 
     // if the URL was not provided, we cannot provide an expansion. return 401 bad request
@@ -135,6 +293,30 @@ public class DataController {
     }
   }
 
+  /**
+   * Builds a page of a ValueSet expansion from the ValueSetExpansionStore. The store keeps any
+   * <server-path> of the ValueSet, it is replaced here like for the resources served as is.
+   *
+   * @return The ValueSet as JSON or null if the ValueSet is not in the store.
+   */
+  private FileResource expandValueSet(String key, String filter, Integer offset, Integer count, String baseUrl) {
+    ValueSetExpansionStore store = fileStore.getValueSetExpansionStore();
+    ValueSet valueSet = store.expand(key, filter, offset == null ? 0 : offset, count);
+    if (valueSet == null) {
+      return null;
+    }
+    // the expansion identifier and timestamp change on every call, leave them out of the etag
+    String etag = DigestUtils.sha256Hex(key + "|" + filter + "|" + offset + "|" + count + "|"
+        + store.getCreated() + "|" + baseUrl);
+    String json = r4Context.newJsonParser().encodeResourceToString(valueSet)
+        .replace("<server-path>", baseUrl + "fhir/R4/");
+    return new FileResource()
+        .setFilename("ValueSet-" + valueSet.getIdElement().getIdPart() + ".json")
+        .setResource(new ByteArrayResource(json.getBytes(StandardCharsets.UTF_8)))
+        .setEtag(etag)
+        .setLastModified(store.getCreated());
+  }
+
   /**
    * Retrieve a FHIR resource by id
    * @param fhirVersion (converted to uppercase)
@@ -152,7 +334,7 @@ public class DataController {
     String baseUrl = Utils.getApplicationBaseUrl(request).toString() + "/";
 
     FileResource fileResource = fileStore.getFhirResourceById(fhirVersion, resource, resource + "/" + id, baseUrl);
-    return processFileResource(fileResource);
+    return processFileResource(request, fileResource, resource);
   }
 
   /**
@@ -184,7 +366,7 @@ public class DataController {
       fileResource = fileStore.getFhirResourceByUrl(fhirVersion, resource, url, baseUrl);  
     }
 
-    return processFileResource(fileResource);
+    return processFileResource(request, fileResource, resource);
   }
 
 
@@ -199,12 +381,12 @@ public class DataController {
    * @throws IOException
    */
   @GetMapping(path = "/files/{topic}/{fhirVersion}/{fileName}")
-  public ResponseEntity<Resource> getFile(@PathVariable String topic, @PathVariable String fhirVersion, @PathVariable String fileName, @RequestParam(required = false) boolean noconvert) throws IOException {
+  public ResponseEntity<Resource> getFile(HttpServletRequest request, @PathVariable String topic, @PathVariable String fhirVersion, @PathVariable String fileName, @RequestParam(required = false) boolean noconvert) throws IOException {
     fhirVersion = fhirVersion.toUpperCase();
     logger.info("GET /files/" + topic + "/" + fhirVersion + "/" + fileName);
 
     FileResource fileResource = fileStore.getFile(topic, fileName, fhirVersion, !noconvert);
-    return processFileResource(fileResource);
+    return processFileResource(request, fileResource, "files");
   }
 
   /**
@@ -222,6 +404,7 @@ public class DataController {
     }
 
     fileStore.reload();
+    ruleWarmUp.run();
     String newUrl = "/data";
 
     return new RedirectView(newUrl);
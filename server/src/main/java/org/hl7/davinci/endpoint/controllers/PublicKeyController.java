@@ -9,6 +9,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.logging.Logger;
 import org.hl7.davinci.endpoint.Application;
+import org.hl7.davinci.endpoint.PublicKeyCache;
 import org.hl7.davinci.endpoint.database.PublicKey;
 import org.hl7.davinci.endpoint.database.PublicKeyRepository;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -37,6 +38,9 @@ public class PublicKeyController {
   @Autowired
   private PublicKeyRepository publicKeyRepository;
 
+  @Autowired
+  private PublicKeyCache publicKeyCache;
+
   /**
    * Gets the json of the keystore.
    * @return a string version of the keystore json file
@@ -82,6 +86,7 @@ public class PublicKeyController {
     publicKey.setKey(key);
 
     publicKeyRepository.save(publicKey);
+    publicKeyCache.invalidate(id);
     return ResponseEntity.noContent().build();
   }
 
@@ -105,6 +110,8 @@ public class PublicKeyController {
       publicKey.setKey(key);
 
       publicKeyRepository.save(publicKey);
+      publicKeyCache.invalidate(id);
+      publicKeyCache.invalidate(newId);
     }
     return ResponseEntity.noContent().build();
   }
@@ -118,6 +125,7 @@ public class PublicKeyController {
   @DeleteMapping("/api/public/{id}")
   public ResponseEntity<Object> deleteKey(@PathVariable String id) {
     publicKeyRepository.deleteById(id);
+    publicKeyCache.invalidate(id);
     return ResponseEntity.noContent().build();
   }
 
@@ -5,6 +5,7 @@ import javax.validation.Valid;
 import org.cdshooks.CdsResponse;
 import org.hl7.davinci.endpoint.Utils;
 import org.hl7.davinci.endpoint.cdshooks.services.crd.CdsServiceInformation;
+import org.hl7.davinci.endpoint.cdshooks.services.crd.HookExecutor;
 import org.hl7.davinci.endpoint.cdshooks.services.crd.r4.MedicationPrescribeService;
 import org.hl7.davinci.endpoint.cdshooks.services.crd.r4.OrderReviewService;
 import org.hl7.davinci.endpoint.cdshooks.services.crd.r4.OrderSelectService;
@@ -22,6 +23,7 @@ import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 @RestController("r4_CdsHooksController")
 public class CdsHooksController {
@@ -36,6 +38,7 @@ public class CdsHooksController {
   @Autowired private MedicationPrescribeService medicationPrescribeService;
   @Autowired private OrderSelectService orderSelectService;
   @Autowired private OrderSignService orderSignService;
+  @Autowired private HookExecutor hookExecutor;
 
   /**
    * The FHIR r4 services discovery endpoint.
@@ -56,64 +59,64 @@ public class CdsHooksController {
   /**
    * The coverage requirement discovery endpoint for the order review hook.
    * @param request An order review triggered cds request
-   * @return The card response
+   * @return The card response, set once the request has been handled
    */
   @CrossOrigin
   @PostMapping(value = FHIR_RELEASE + URL_BASE + "/" + OrderReviewService.ID,
       consumes = "application/json;charset=UTF-8")
-  public CdsResponse handleOrderReview(@Valid @RequestBody OrderReviewRequest request, final HttpServletRequest httpServletRequest) {
+  public DeferredResult<CdsResponse> handleOrderReview(@Valid @RequestBody OrderReviewRequest request, final HttpServletRequest httpServletRequest) {
     logger.info("r4/handleOrderReview");
     if (request.getPrefetch() == null) {
       request.setPrefetch(new CrdPrefetch());
     }
-    return orderReviewService.handleRequest(request, Utils.getApplicationBaseUrl(httpServletRequest));
+    return hookExecutor.submit(orderReviewService, request, Utils.getApplicationBaseUrl(httpServletRequest));
   }
 
   /**
    * The coverage requirement discovery endpoint for the medication prescribe hook.
    * @param request A medication prescribe triggered cds request
-   * @return The card response
+   * @return The card response, set once the request has been handled
    */
   @CrossOrigin
   @PostMapping(value = FHIR_RELEASE + URL_BASE + "/" + MedicationPrescribeService.ID,
       consumes = "application/json;charset=UTF-8")
-  public CdsResponse handleMedicationPrescribe(@Valid @RequestBody MedicationPrescribeRequest request, final HttpServletRequest httpServletRequest) {
+  public DeferredResult<CdsResponse> handleMedicationPrescribe(@Valid @RequestBody MedicationPrescribeRequest request, final HttpServletRequest httpServletRequest) {
     logger.info("r4/handleMedicationPrescribe");
     if (request.getPrefetch() == null) {
       request.setPrefetch(new CrdPrefetch());
     }
-    return medicationPrescribeService.handleRequest(request, Utils.getApplicationBaseUrl(httpServletRequest));
+    return hookExecutor.submit(medicationPrescribeService, request, Utils.getApplicationBaseUrl(httpServletRequest));
   }
 
   /**
    * The coverage requirement discovery endpoint for the order select hook.
    * @param request An order select triggered cds request
-   * @return The card response
+   * @return The card response, set once the request has been handled
    */
   @CrossOrigin
   @PostMapping(value = FHIR_RELEASE + URL_BASE + "/" + OrderSelectService.ID,
       consumes = "application/json;charset=UTF-8")
-  public CdsResponse handleOrderSelect(@Valid @RequestBody OrderSelectRequest request, final HttpServletRequest httpServletRequest) {
+  public DeferredResult<CdsResponse> handleOrderSelect(@Valid @RequestBody OrderSelectRequest request, final HttpServletRequest httpServletRequest) {
     logger.info("r4/handleOrderSelect");
     if (request.getPrefetch() == null) {
       request.setPrefetch(new CrdPrefetch());
     }
-    return orderSelectService.handleRequest(request, Utils.getApplicationBaseUrl(httpServletRequest));
+    return hookExecutor.submit(orderSelectService, request, Utils.getApplicationBaseUrl(httpServletRequest));
   }
 
   /**
    * The coverage requirement discovery endpoint for the order sign hook.
    * @param request An order sign triggered cds request
-   * @return The card response
+   * @return The card response, set once the request has been handled
    */
   @CrossOrigin
   @PostMapping(value = FHIR_RELEASE + URL_BASE + "/" + OrderSignService.ID,
       consumes = "application/json;charset=UTF-8")
-  public CdsResponse handleOrderSign(@Valid @RequestBody OrderSignRequest request, final HttpServletRequest httpServletRequest) {
+  public DeferredResult<CdsResponse> handleOrderSign(@Valid @RequestBody OrderSignRequest request, final HttpServletRequest httpServletRequest) {
     logger.info("r4/handleOrderSign");
     if (request.getPrefetch() == null) {
       request.setPrefetch(new CrdPrefetch());
     }
-    return orderSignService.handleRequest(request, Utils.getApplicationBaseUrl(httpServletRequest));
+    return hookExecutor.submit(orderSignService, request, Utils.getApplicationBaseUrl(httpServletRequest));
   }
 }
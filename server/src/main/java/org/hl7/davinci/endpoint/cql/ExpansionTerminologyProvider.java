@@ -0,0 +1,68 @@
+package org.hl7.davinci.endpoint.cql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.davinci.endpoint.terminology.ValueSetExpansionStore;
+import org.hl7.davinci.endpoint.vsac.ValueSetCache;
+import org.opencds.cqf.cql.runtime.Code;
+import org.opencds.cqf.cql.terminology.CodeSystemInfo;
+import org.opencds.cqf.cql.terminology.TerminologyProvider;
+import org.opencds.cqf.cql.terminology.ValueSetInfo;
+
+/**
+ * Answers CQL ValueSet membership ("in ValueSet") and expansion from the ValueSetExpansionStore of
+ * the FileStore, so the rules never have to load or parse the ValueSet files.
+ */
+public class ExpansionTerminologyProvider implements TerminologyProvider {
+
+  private ValueSetExpansionStore store;
+
+  public ExpansionTerminologyProvider(ValueSetExpansionStore store) {
+    this.store = store;
+  }
+
+  @Override
+  public boolean in(Code code, ValueSetInfo valueSet) {
+    String key = getKey(valueSet);
+    if (!store.contains(key)) {
+      throw new IllegalArgumentException("ValueSet not found: " + valueSet.getId());
+    }
+    return store.hasCode(key, code.getSystem(), code.getCode());
+  }
+
+  @Override
+  public Iterable<Code> expand(ValueSetInfo valueSet) {
+    String key = getKey(valueSet);
+    if (!store.contains(key)) {
+      throw new IllegalArgumentException("ValueSet not found: " + valueSet.getId());
+    }
+    List<Code> codes = new ArrayList<>();
+    for (ValueSetExpansionStore.Concept concept : store.getConcepts(key)) {
+      codes.add(new Code().withSystem(concept.getSystem()).withVersion(concept.getVersion())
+          .withCode(concept.getCode()).withDisplay(concept.getDisplay()));
+    }
+    return codes;
+  }
+
+  @Override
+  public Code lookup(Code code, CodeSystemInfo codeSystem) {
+    // code systems are not stored, nothing to add to the code
+    return code;
+  }
+
+  /**
+   * Turns the id from the CQL valueset declaration into a store key. VSAC ValueSets may be declared
+   * by OID ('urn:oid:2.16.840...') but are stored by their canonical url.
+   */
+  private static String getKey(ValueSetInfo valueSet) {
+    String id = valueSet.getId();
+    if (id.startsWith("urn:oid:")) {
+      return ValueSetCache.VSAC_CANONICAL_BASE + id.substring("urn:oid:".length());
+    }
+    if (id.matches("[0-9]+(\\.[0-9]+)+")) {
+      return ValueSetCache.VSAC_CANONICAL_BASE + id;
+    }
+    return id;
+  }
+}
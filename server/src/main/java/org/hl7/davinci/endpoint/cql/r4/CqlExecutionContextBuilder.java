@@ -4,8 +4,11 @@ import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.hl7.davinci.endpoint.cql.CqlExecution;
+import org.hl7.davinci.endpoint.cql.ExpansionTerminologyProvider;
 import org.hl7.davinci.endpoint.cql.LocalLibraryLoader;
 import org.hl7.davinci.endpoint.cql.CqlRule;
+import org.hl7.davinci.endpoint.metrics.StageTimer;
+import org.hl7.davinci.endpoint.terminology.ValueSetExpansionStore;
 import org.hl7.fhir.r4.model.Resource;
 import org.opencds.cqf.cql.data.fhir.BaseFhirDataProvider;
 import org.opencds.cqf.cql.execution.Context;
@@ -19,6 +22,11 @@ public class CqlExecutionContextBuilder {
   public static String CQL_VERSION = "4.0.0";
 
   public static Context getExecutionContext(CqlRule cqlRule, HashMap<String, Resource> cqlParams, String baseUrl) {
+    return getExecutionContext(cqlRule, cqlParams, baseUrl, ValueSetExpansionStore.EMPTY);
+  }
+
+  public static Context getExecutionContext(CqlRule cqlRule, HashMap<String, Resource> cqlParams, String baseUrl,
+      ValueSetExpansionStore valueSetExpansionStore) {
     ModelManager modelManager = new ModelManager();
     LibraryManager libraryManager = new LibraryManager(modelManager);
     libraryManager.getLibrarySourceLoader().clearProviders();
@@ -31,16 +39,20 @@ public class CqlExecutionContextBuilder {
     } else {
       libraryManager.getLibrarySourceLoader().registerProvider(cqlRule.getRawCqlLibrarySourceProvider(CQL_VERSION));
       libraryLoader = new LocalLibraryLoader(libraryManager);
+      long translationStart = System.nanoTime();
       try {
         library = CqlExecution.translate(cqlRule.getRawMainCqlLibrary(CQL_VERSION), libraryManager, modelManager);
       } catch (Exception e){
         throw new RuntimeException(e);
       }
+      StageTimer.current().record(StageTimer.CQL_TRANSLATION, translationStart);
     }
 
+    long contextStart = System.nanoTime();
     Context context = new Context(library);
     context.registerLibraryLoader(libraryLoader);
     context.setExpressionCaching(true);
+    context.registerTerminologyProvider(new ExpansionTerminologyProvider(valueSetExpansionStore));
 
     BaseFhirDataProvider provider = new DummyFhirDataProvider();
     context.registerDataProvider("http://hl7.org/fhir", provider);
@@ -52,6 +64,7 @@ public class CqlExecutionContextBuilder {
     }
 
     context.setParameter(null, "base_url", baseUrl);
+    StageTimer.current().record(StageTimer.CONTEXT_BUILD, contextStart);
 
     return context;
   }
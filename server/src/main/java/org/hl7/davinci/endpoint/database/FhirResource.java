@@ -31,6 +31,12 @@ public class FhirResource {
   @Column(name = "name", nullable = false)
   private String name;
 
+  @Column(name = "content_hash", nullable = true)
+  private String contentHash;
+
+  @Column(name = "verbatim", nullable = false)
+  private boolean verbatim;
+
   public String getId() {
     return id;
   }
@@ -90,6 +96,20 @@ public class FhirResource {
     return this;
   }
 
+  public String getContentHash() { return contentHash; }
+
+  public FhirResource setContentHash(String contentHash) {
+    this.contentHash = contentHash;
+    return this;
+  }
+
+  public boolean isVerbatim() { return verbatim; }
+
+  public FhirResource setVerbatim(boolean verbatim) {
+    this.verbatim = verbatim;
+    return this;
+  }
+
   public static String getColumnsString() {
     return "id / resourceType / fhirVersion / topic / filename / name / url";
   }
@@ -40,4 +40,12 @@ public interface FhirResourceRepository extends CrudRepository<FhirResource, Lon
   List<FhirResource> findByUrl(
       @Param("criteria") FhirResourceCriteria criteria
   );
+
+  @Query(
+      "SELECT r FROM FhirResource r WHERE "
+          + "r.fhirVersion = :#{#criteria.fhirVersion} "
+          + "and r.resourceType = :#{#criteria.resourceType}")
+  List<FhirResource> findByResourceType(
+      @Param("criteria") FhirResourceCriteria criteria
+  );
 }
\ No newline at end of file
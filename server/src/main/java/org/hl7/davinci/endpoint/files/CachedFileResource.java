@@ -0,0 +1,97 @@
+package org.hl7.davinci.endpoint.files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.springframework.core.io.ByteArrayResource;
+
+/**
+ * An immutable, fully built file held in memory by the FileStore so that it can be served again
+ * without repeating the work that produced it. The ETag is a hash of the content.
+ * A gzip compressed copy is built once along with the entry so that it never has to be compressed
+ * per request.
+ */
+public class CachedFileResource {
+
+  private final String filename;
+  private final byte[] data;
+  private final byte[] gzipData;
+  private final String etag;
+  private final long lastModified;
+
+  public CachedFileResource(String filename, byte[] data) {
+    this.filename = filename;
+    this.data = data;
+    this.gzipData = gzip(data);
+    this.etag = DigestUtils.sha256Hex(data);
+    this.lastModified = System.currentTimeMillis();
+  }
+
+  /**
+   * Reads the content of a FileResource into a new cache entry.
+   *
+   * @param fileResource The FileResource to copy.
+   * @return The cache entry.
+   * @throws IOException If the content of the FileResource could not be read.
+   */
+  public static CachedFileResource fromFileResource(FileResource fileResource) throws IOException {
+    byte[] data = IOUtils.toByteArray(fileResource.getResource().getInputStream());
+    return new CachedFileResource(fileResource.getFilename(), data);
+  }
+
+  public String getFilename() {
+    return filename;
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public int getLength() {
+    return data.length;
+  }
+
+  public int getGzipLength() {
+    return gzipData == null ? 0 : gzipData.length;
+  }
+
+  /**
+   * Wraps the cached content in a new FileResource. The content is shared, not copied.
+   *
+   * @return FileResource to hand back to the caller.
+   */
+  public FileResource toFileResource() {
+    FileResource fileResource = new FileResource();
+    fileResource.setFilename(filename);
+    fileResource.setResource(new ByteArrayResource(data));
+    fileResource.setEtag(etag);
+    fileResource.setLastModified(lastModified);
+    if (gzipData != null) {
+      fileResource.setGzipResource(new ByteArrayResource(gzipData));
+    }
+    return fileResource;
+  }
+
+  /**
+   * Compresses the content with gzip.
+   *
+   * @param data The content to compress.
+   * @return The compressed content or null if it did not get any smaller.
+   */
+  static byte[] gzip(byte[] data) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    } catch (IOException e) {
+      // writing to memory, should not happen
+      return null;
+    }
+    return out.size() < data.length ? out.toByteArray() : null;
+  }
+}
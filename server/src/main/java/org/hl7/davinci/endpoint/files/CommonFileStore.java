@@ -1,14 +1,20 @@
 package org.hl7.davinci.endpoint.files;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.hl7.ShortNameMaps;
 import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.hl7.davinci.endpoint.cql.CqlExecution;
 import org.hl7.davinci.endpoint.cql.CqlRule;
 import org.hl7.davinci.endpoint.database.*;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
+import org.hl7.davinci.endpoint.terminology.ValueSetExpansionStore;
 import org.hl7.davinci.endpoint.vsac.ValueSetCache;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CanonicalType;
@@ -19,6 +25,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.hateoas.alps.Ext;
 
 import java.io.*;
@@ -26,8 +33,15 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class CommonFileStore implements FileStore {
 
@@ -52,6 +66,75 @@ public abstract class CommonFileStore implements FileStore {
   private FhirContext ctx;
   private IParser parser;
 
+  /**
+   * Most baseUrls the assembled Questionnaires and the gzip variants of resources with a <server-path>
+   * are cached for. The baseUrl comes from the Host header of the request, content requested with any
+   * other is built per request and not cached.
+   */
+  static final int MAX_CACHED_BASE_URLS = 8;
+
+  /**
+   * Files streamed from disk that are larger than this get no gzip variant. Reading them into the heap
+   * to compress them would undo sending them with sendfile, which DataController does from this size.
+   */
+  static final long MAX_DISK_GZIP_SIZE = 48 * 1024;
+
+  /**
+   * Fully assembled R4 Questionnaires (sub-questionnaires merged and ValueSets embedded) keyed by
+   * fhirVersion, id and baseUrl. Everything they are built from only changes on reload.
+   */
+  private Map<String, CachedFileResource> assembledQuestionnaires = new ConcurrentHashMap<>();
+
+  /**
+   * The first MAX_CACHED_BASE_URLS baseUrls resources have been requested with. Used to rebuild the
+   * assembled Questionnaires at the end of a reload.
+   */
+  private Set<String> cachedBaseUrls = ConcurrentHashMap.newKeySet();
+
+  /**
+   * gzip variants of the resources and files that are served as they are read rather than from a
+   * CachedFileResource, keyed by what was requested. An entry is only used while the ETag of the
+   * content matches the one it was built from.
+   */
+  private Map<String, GzipVariant> gzipVariants = new ConcurrentHashMap<>();
+
+  /**
+   * Incremented when a reload starts and when it completes, so a Questionnaire assembled from the
+   * files of an earlier reload is not put into the cache.
+   */
+  private final AtomicLong reloadGeneration = new AtomicLong();
+
+  /**
+   * Content hashes of the files in each topic's files folder keyed by topic/fhirVersion/fileName.
+   * Computed when the folders are loaded and used to build the ETags for the /files endpoint.
+   */
+  private Map<String, String> fileHashes = new ConcurrentHashMap<>();
+
+  /**
+   * Time the last reload completed. The served files can only change on reload, so this is used as
+   * their Last-Modified time.
+   */
+  private volatile long lastReload = System.currentTimeMillis();
+
+  /**
+   * ELM (JSON) translations of the CQL files served from /files keyed by the hash of the CQL, so a
+   * library shared between topics is only translated once. Failed translations are kept as well so
+   * that a broken file is not translated again on every request. A translation is put in the map before
+   * it is run, so requests for the same CQL wait for it without holding up the rest of the map.
+   */
+  private Map<String, CompletableFuture<ElmTranslation>> elmTranslations = new ConcurrentHashMap<>();
+
+  /**
+   * OIDs of the VSAC ValueSets referenced by the resources found during a reload. They are fetched
+   * together once all of the topics have been processed.
+   */
+  private Set<String> requiredValueSets = ConcurrentHashMap.newKeySet();
+
+  /**
+   * Expansions of all of the R4 ValueSets, rebuilt at the end of each reload.
+   */
+  private volatile ValueSetExpansionStore valueSetExpansionStore = ValueSetExpansionStore.EMPTY;
+
   public CommonFileStore() {
     this.questionnaireValueSetProcessor = new QuestionnaireValueSetProcessor();
     this.ctx = new org.hl7.davinci.r4.FhirComponents().getFhirContext();
@@ -65,6 +148,10 @@ public abstract class CommonFileStore implements FileStore {
 
   public abstract FileResource getFile(String topic, String fileName, String fhirVersion, boolean convert);
 
+  /**
+   * Reads the first of the resources from its file, replacing <server-path> with the FHIR path under
+   * baseUrl. With a null baseUrl the <server-path> placeholders are left in place.
+   */
   protected abstract FileResource readFhirResourceFromFile(List<FhirResource> fhirResourceList, String fhirVersion,
       String baseUrl);
 
@@ -74,7 +161,8 @@ public abstract class CommonFileStore implements FileStore {
     FhirResourceCriteria criteria = new FhirResourceCriteria();
     criteria.setFhirVersion(fhirVersion).setResourceType(resourceType).setName(name);
     List<FhirResource> fhirResourceList = fhirResources.findByName(criteria);
-    return readFhirResourceFromFile(fhirResourceList, fhirVersion, baseUrl);
+    return withGzipVariant(fhirResourceList, fhirVersion, baseUrl,
+        readFhirResourceFromFile(fhirResourceList, fhirVersion, baseUrl));
   }
 
   public FileResource getFhirResourceById(String fhirVersion, String resourceType, String id, String baseUrl) {
@@ -85,6 +173,19 @@ public abstract class CommonFileStore implements FileStore {
       boolean isRoot) {
     logger.info("CommonFileStore::getFhirResourceById(): " + fhirVersion + "/" + resourceType + "/" + id);
 
+    boolean isRootQuestionnaire = isRoot && fhirVersion.equalsIgnoreCase("r4")
+        && resourceType.equalsIgnoreCase("Questionnaire");
+
+    String cacheKey = fhirVersion.toUpperCase() + "|" + id + "|" + baseUrl;
+    long generation = reloadGeneration.get();
+    if (isRootQuestionnaire) {
+      CachedFileResource cached = assembledQuestionnaires.get(cacheKey);
+      if (cached != null) {
+        logger.info("CommonFileStore::getFhirResourceById(): using assembled questionnaire from cache");
+        return cached.toFileResource();
+      }
+    }
+
     FhirResourceCriteria criteria = new FhirResourceCriteria();
     criteria.setFhirVersion(fhirVersion).setResourceType(resourceType).setId(id);
     List<FhirResource> fhirResourceList = fhirResources.findById(criteria);
@@ -93,7 +194,7 @@ public abstract class CommonFileStore implements FileStore {
     // If this is a questionnaire, run it through the processor to modify it before
     // returning.
     // We do not handle nested sub-questionnaire at this time.
-    if (isRoot && fhirVersion.equalsIgnoreCase("r4") && resourceType.equalsIgnoreCase("Questionnaire")) {
+    if (isRootQuestionnaire && resource != null) {
       String output = assemblyQuestionnaire(resource, fhirVersion, baseUrl, isRoot);
 
       if (output != null) {
@@ -101,10 +202,390 @@ public abstract class CommonFileStore implements FileStore {
         resource.setResource(new ByteArrayResource(fileData));
       }
 
-      return this.questionnaireValueSetProcessor.processResource(resource, this, baseUrl);
+      FileResource processedResource = this.questionnaireValueSetProcessor.processResource(resource, this, baseUrl);
+      try {
+        CachedFileResource cached = CachedFileResource.fromFileResource(processedResource);
+        if (trackBaseUrl(baseUrl) && reloadGeneration.get() == generation) {
+          assembledQuestionnaires.put(cacheKey, cached);
+          // a reload that started after the check has already cleared the cache, don't leave this in it
+          if (reloadGeneration.get() != generation) {
+            assembledQuestionnaires.remove(cacheKey, cached);
+          }
+        }
+        return cached.toFileResource();
+      } catch (IOException e) {
+        logger.warn("CommonFileStore::getFhirResourceById(): failed to cache assembled questionnaire: " + e.getMessage());
+        return processedResource;
+      }
+    }
+
+    // sub-questionnaires are only read to be merged into their root
+    return isRoot ? withGzipVariant(fhirResourceList, fhirVersion, baseUrl, resource) : resource;
+  }
+
+  /**
+   * Adds the gzip variant to a resource read from the resource table. Resources with a <server-path>
+   * only get one for the baseUrls content is cached for.
+   *
+   * @param fhirResourceList The resource table entries the resource was read from.
+   * @param fhirVersion The FHIR version of the resource.
+   * @param baseUrl The base url of the server from the request.
+   * @param fileResource The resource as read.
+   * @return The resource, with the gzip variant if there is one.
+   */
+  private FileResource withGzipVariant(List<FhirResource> fhirResourceList, String fhirVersion, String baseUrl,
+      FileResource fileResource) {
+    if (fileResource == null || fhirResourceList.isEmpty()) {
+      return fileResource;
+    }
+    FhirResource fhirResource = fhirResourceList.get(0);
+    String key = "resource|" + fhirVersion.toUpperCase() + "|" + fhirResource.getId();
+    if (!fhirResource.isVerbatim()) {
+      if (!trackBaseUrl(baseUrl)) {
+        return fileResource;
+      }
+      key = key + "|" + baseUrl;
+    }
+    return withGzipVariant(key, fileResource);
+  }
+
+  /**
+   * Adds the gzip variant to a file or resource that is served as it is read. The variant is built the
+   * first time the content is served and kept until the content, going by its ETag, changes. Large
+   * files on disk are left as they are so they can be sent with sendfile.
+   *
+   * @param key What was requested, e.g. the path of the file.
+   * @param fileResource The file or resource as read.
+   * @return The file or resource, with the gzip variant if compressing it made it smaller.
+   */
+  protected FileResource withGzipVariant(String key, FileResource fileResource) {
+    if (fileResource == null || fileResource.getEtag() == null || fileResource.getGzipResource() != null) {
+      return fileResource;
+    }
+    if (fileResource.getResource() instanceof FileSystemResource
+        && ((FileSystemResource) fileResource.getResource()).getFile().length() > MAX_DISK_GZIP_SIZE) {
+      gzipVariants.remove(key);
+      return fileResource;
+    }
+    GzipVariant variant = gzipVariants.get(key);
+    if (variant == null || !variant.etag.equals(fileResource.getEtag())) {
+      try (InputStream stream = fileResource.getResource().getInputStream()) {
+        variant = new GzipVariant(fileResource.getEtag(), CachedFileResource.gzip(IOUtils.toByteArray(stream)));
+      } catch (IOException e) {
+        logger.warn("CommonFileStore::withGzipVariant(): failed to read " + key + ": " + e.getMessage());
+        return fileResource;
+      }
+      gzipVariants.put(key, variant);
+    }
+    if (variant.data != null) {
+      fileResource.setGzipResource(new ByteArrayResource(variant.data));
+    }
+    return fileResource;
+  }
+
+  /**
+   * Adds a baseUrl to the ones content is cached for, unless there are already MAX_CACHED_BASE_URLS
+   * of them.
+   *
+   * @param baseUrl The base url of the server from the request.
+   * @return true if content built for the baseUrl can be cached.
+   */
+  private boolean trackBaseUrl(String baseUrl) {
+    if (cachedBaseUrls.contains(baseUrl)) {
+      return true;
+    }
+    synchronized (cachedBaseUrls) {
+      if (cachedBaseUrls.size() >= MAX_CACHED_BASE_URLS) {
+        return cachedBaseUrls.contains(baseUrl);
+      }
+      cachedBaseUrls.add(baseUrl);
+      return true;
+    }
+  }
+
+  /**
+   * Called by the child classes before the rule and resource tables are rebuilt. Drops everything
+   * that was built from the previous set of files.
+   */
+  protected void reloadStarted() {
+    reloadGeneration.incrementAndGet();
+    assembledQuestionnaires.clear();
+    gzipVariants.clear();
+    fileHashes.clear();
+    requiredValueSets.clear();
+    this.getValueSetCache().clearLoadedValueSets();
+  }
+
+  /**
+   * Called by the child classes once the rule and resource tables have been rebuilt. Fetches the VSAC
+   * ValueSets the resources need. Anything built while the reload was in progress is discarded, then
+   * the assembled Questionnaires are rebuilt for the baseUrls they are cached for.
+   */
+  protected void reloadCompleted() {
+    if (!requiredValueSets.isEmpty()) {
+      // ValueSets provided by the topics themselves don't need to be fetched
+      FhirResourceCriteria valueSetCriteria = new FhirResourceCriteria();
+      valueSetCriteria.setFhirVersion("R4").setResourceType("valueset");
+      for (FhirResource valueSet : fhirResources.findByResourceType(valueSetCriteria)) {
+        requiredValueSets.remove(valueSet.getId().substring(valueSet.getId().indexOf('/') + 1));
+      }
+
+      logger.info("CommonFileStore::reloadCompleted(): fetching " + requiredValueSets.size() + " VSAC ValueSets");
+      int failed = this.getValueSetCache().fetchValueSets(requiredValueSets);
+      if (failed > 0) {
+        logger.warn("CommonFileStore::reloadCompleted(): " + failed + " VSAC ValueSets could not be fetched");
+      }
+      requiredValueSets.clear();
+    }
+
+    buildValueSetExpansionStore();
+
+    reloadGeneration.incrementAndGet();
+    assembledQuestionnaires.clear();
+    lastReload = System.currentTimeMillis();
+
+    // drop the translations of CQL files that are no longer in any files folder
+    if (!fileHashes.isEmpty()) {
+      elmTranslations.keySet().retainAll(new HashSet<>(fileHashes.values()));
+    }
+
+    if (cachedBaseUrls.isEmpty()) {
+      return;
+    }
+
+    FhirResourceCriteria criteria = new FhirResourceCriteria();
+    criteria.setFhirVersion("R4").setResourceType("questionnaire");
+    List<FhirResource> questionnaires = fhirResources.findByResourceType(criteria);
+    logger.info("CommonFileStore::reloadCompleted(): assembling " + questionnaires.size() + " questionnaires for "
+        + cachedBaseUrls.size() + " base urls");
+    for (FhirResource questionnaire : questionnaires) {
+      for (String baseUrl : cachedBaseUrls) {
+        getFhirResourceById("R4", "questionnaire", questionnaire.getId(), baseUrl);
+      }
+    }
+  }
+
+  public ValueSetExpansionStore getValueSetExpansionStore() {
+    return valueSetExpansionStore;
+  }
+
+  /**
+   * Parses every R4 ValueSet in the resource table once and writes their expansions to a new
+   * ValueSetExpansionStore, which then replaces the previous one. The store does not depend on the
+   * baseUrl of a request, so any <server-path> in the ValueSets is kept and substituted when an
+   * expansion is served.
+   */
+  private void buildValueSetExpansionStore() {
+    FhirResourceCriteria criteria = new FhirResourceCriteria();
+    criteria.setFhirVersion("R4").setResourceType("valueset");
+    List<FhirResource> valueSets = fhirResources.findByResourceType(criteria);
+
+    IParser valueSetParser = ctx.newJsonParser();
+    valueSetParser.setParserErrorHandler(new SuppressParserErrorHandler());
+    ValueSetExpansionStore.Builder builder = ValueSetExpansionStore.builder();
+    for (FhirResource fhirResource : valueSets) {
+      FileResource fileResource = readFhirResourceFromFile(Collections.singletonList(fhirResource), "R4", null);
+      if (fileResource == null) {
+        continue;
+      }
+      try (InputStream stream = fileResource.getResource().getInputStream()) {
+        org.hl7.fhir.r4.model.ValueSet valueSet = (org.hl7.fhir.r4.model.ValueSet) valueSetParser.parseResource(stream);
+        builder.addValueSet(Arrays.asList(fhirResource.getId(), fhirResource.getUrl()), valueSet);
+      } catch (IOException | DataFormatException e) {
+        logger.warn("CommonFileStore::buildValueSetExpansionStore(): failed to read " + fhirResource.getFilename()
+            + ": " + e.getMessage());
+      }
+    }
+
+    try {
+      ValueSetExpansionStore previous = valueSetExpansionStore;
+      String cachePath = config.getValueSetCachePath();
+      valueSetExpansionStore = builder.build(cachePath == null ? null : new File(cachePath));
+      previous.close();
+    } catch (IOException e) {
+      logger.warn("CommonFileStore::buildValueSetExpansionStore(): failed to write the expansion store: "
+          + e.getMessage());
+    }
+  }
+
+  protected long getLastReload() {
+    return lastReload;
+  }
+
+  /**
+   * Builds the ETag for a FHIR resource read from the resource table. Unless the file is verbatim the
+   * served content depends on both the file and the baseUrl substituted for <server-path>.
+   *
+   * @param fhirResource The resource table entry.
+   * @param baseUrl The base url of the server from the request.
+   * @return The ETag or null if the content hash is not known.
+   */
+  protected String getResourceEtag(FhirResource fhirResource, String baseUrl) {
+    if (fhirResource.getContentHash() == null || fhirResource.isVerbatim()) {
+      return fhirResource.getContentHash();
     }
+    return DigestUtils.sha256Hex(fhirResource.getContentHash() + "|" + baseUrl);
+  }
+
+  /**
+   * Builds the ETag for a file served as is from a topic's files folder.
+   *
+   * @param topic The topic the file is in.
+   * @param fhirVersion The FHIR version folder the file is in.
+   * @param fileName The name of the file.
+   * @return The ETag or null if the content hash is not known.
+   */
+  protected String getFileEtag(String topic, String fhirVersion, String fileName) {
+    return fileHashes.get(topic + "/" + fhirVersion.toUpperCase() + "/" + fileName);
+  }
+
+  /**
+   * Checks if a resource file can be served exactly as it is stored, without substituting the
+   * <server-path>. Verbatim files can be streamed straight from disk.
+   *
+   * @param fileData The content of the resource file.
+   * @return true if the file has nothing to substitute.
+   */
+  protected static boolean isVerbatim(byte[] fileData) {
+    return !new String(fileData, Charset.defaultCharset()).contains("<server-path>");
+  }
 
-    return resource;
+  /**
+   * Builds a FileResource for a file that is streamed as it is on disk. The ETag and Last-Modified come
+   * from the length and modification time of the file when it is served rather than from the hash taken
+   * when it was loaded, so a file edited on disk is never sent under the ETag of its old content.
+   *
+   * @param filename The name to send the file as.
+   * @param file The file on disk.
+   * @return The FileResource.
+   */
+  protected static FileResource diskFileResource(String filename, File file) {
+    long lastModified = file.lastModified();
+    return new FileResource()
+        .setFilename(filename)
+        .setResource(new FileSystemResource(file))
+        .setEtag(Long.toHexString(file.length()) + "-" + Long.toHexString(lastModified))
+        .setLastModified(lastModified);
+  }
+
+  protected void putFileHash(String topic, String fhirVersion, String fileName, String hash) {
+    fileHashes.put(topic + "/" + fhirVersion.toUpperCase() + "/" + fileName, hash);
+  }
+
+  /**
+   * Converts a CQL file to ELM (JSON), using the cached translation if the same CQL has been
+   * translated before.
+   *
+   * @param fileName The name of the CQL file.
+   * @param cql The content of the CQL file.
+   * @return The ELM or null if the CQL could not be translated.
+   */
+  protected FileResource getElmFileResource(String fileName, byte[] cql) {
+    return getElmFileResource(fileName, DigestUtils.sha256Hex(cql), () -> cql);
+  }
+
+  /**
+   * Converts a CQL file in a topic's files folder to ELM (JSON). The translation is looked up by the
+   * hash taken at reload, so the file is only read if it has not been translated yet.
+   *
+   * @param topic The topic the file is in.
+   * @param fhirVersion The FHIR version folder the file is in.
+   * @param fileName The name of the CQL file.
+   * @param source Reads the content of the CQL file.
+   * @return The ELM or null if the CQL could not be read or translated.
+   */
+  protected FileResource getElmFileResource(String topic, String fhirVersion, String fileName, CqlSource source) {
+    String hash = getFileEtag(topic, fhirVersion, fileName);
+    if (hash != null) {
+      return getElmFileResource(fileName, hash, source);
+    }
+    byte[] cql;
+    try {
+      cql = source.read();
+    } catch (IOException e) {
+      logger.warn("CommonFileStore::getElmFileResource() failed to read " + fileName + ": " + e.getMessage());
+      return null;
+    }
+    return cql == null ? null : getElmFileResource(fileName, cql);
+  }
+
+  private FileResource getElmFileResource(String fileName, String hash, CqlSource source) {
+    CompletableFuture<ElmTranslation> translation = elmTranslations.get(hash);
+    if (translation == null) {
+      byte[] cql;
+      try {
+        cql = source.read();
+      } catch (IOException e) {
+        logger.warn("CommonFileStore::getElmFileResource() failed to read " + fileName + ": " + e.getMessage());
+        return null;
+      }
+      if (cql == null) {
+        return null;
+      }
+      CompletableFuture<ElmTranslation> created = new CompletableFuture<>();
+      translation = elmTranslations.putIfAbsent(hash, created);
+      if (translation == null) {
+        translation = created;
+        try {
+          created.complete(translateToElm(fileName, cql));
+        } catch (Error e) {
+          elmTranslations.remove(hash, created);
+          created.completeExceptionally(e);
+          throw e;
+        }
+      }
+    }
+
+    ElmTranslation result = translation.join();
+    if (result.error != null) {
+      logger.warn("CommonFileStore::getElmFileResource() Error: could not convert CQL " + fileName + ": "
+          + result.error);
+      return null;
+    }
+    FileResource fileResource = result.elm.toFileResource();
+    fileResource.setFilename(fileName);
+    return fileResource;
+  }
+
+  private static ElmTranslation translateToElm(String fileName, byte[] cql) {
+    logger.info("CommonFileStore::translateToElm() converting CQL to JSON ELM: " + fileName);
+    ElmTranslation translation = new ElmTranslation();
+    try {
+      String elm = CqlExecution.translateToElm(new String(cql));
+      translation.elm = new CachedFileResource(fileName, elm.getBytes());
+    } catch (Exception e) {
+      translation.error = e.getMessage() == null ? e.toString() : e.getMessage();
+    }
+    return translation;
+  }
+
+  /**
+   * gzip compressed content along with the ETag of the content it was compressed from.
+   */
+  private static class GzipVariant {
+    private final String etag;
+    private final byte[] data;
+
+    private GzipVariant(String etag, byte[] data) {
+      this.etag = etag;
+      this.data = data;
+    }
+  }
+
+  /**
+   * Reads the content of a CQL file, only called if the file has not been translated yet.
+   */
+  @FunctionalInterface
+  protected interface CqlSource {
+    byte[] read() throws IOException;
+  }
+
+  /**
+   * Result of translating a CQL file, either the ELM or the error.
+   */
+  private static class ElmTranslation {
+    private CachedFileResource elm;
+    private String error;
   }
 
   protected String assemblyQuestionnaire(FileResource fileResource, String fhirVersion, String baseUrl, boolean isRoot) {
@@ -228,7 +709,8 @@ public abstract class CommonFileStore implements FileStore {
     FhirResourceCriteria criteria = new FhirResourceCriteria();
     criteria.setFhirVersion(fhirVersion).setResourceType(resourceType).setUrl(url);
     List<FhirResource> fhirResourceList = fhirResources.findByUrl(criteria);
-    return readFhirResourceFromFile(fhirResourceList, fhirVersion, baseUrl);
+    return withGzipVariant(fhirResourceList, fhirVersion, baseUrl,
+        readFhirResourceFromFile(fhirResourceList, fhirVersion, baseUrl));
   }
 
   // from RuleFinder
@@ -358,7 +840,24 @@ public abstract class CommonFileStore implements FileStore {
 
     File[] directories = fhirPath.listFiles();
     for (File folder : directories) {
-      if (folder.getName().equalsIgnoreCase("resources") && folder.isDirectory()) {
+      if (folder.getName().equalsIgnoreCase("files") && folder.isDirectory()) {
+
+        for (File file : folder.listFiles()) {
+          if (file.isFile()) {
+            try {
+              byte[] fileData = Files.readAllBytes(file.toPath());
+              putFileHash(topic, fhirVersion, file.getName(), DigestUtils.sha256Hex(fileData));
+
+              // translate the CQL now so that the first /files request doesn't have to
+              if (FilenameUtils.getExtension(file.getName()).equalsIgnoreCase("cql")) {
+                getElmFileResource(file.getName(), fileData);
+              }
+            } catch (IOException e) {
+              logger.warn("could not read file: " + file.getPath());
+            }
+          }
+        }
+      } else if (folder.getName().equalsIgnoreCase("resources") && folder.isDirectory()) {
 
         File[] resources = folder.listFiles();
         for (File resource : resources) {
@@ -379,8 +878,13 @@ public abstract class CommonFileStore implements FileStore {
               String resourceId = "";
               String resourceName = "";
               String resourceUrl = null;
+              String contentHash = null;
+              boolean verbatim = false;
               try {
-                IBaseResource baseResource = parser.parseResource(new FileInputStream(resource));
+                byte[] fileData = Files.readAllBytes(resource.toPath());
+                contentHash = DigestUtils.sha256Hex(fileData);
+                verbatim = isVerbatim(fileData);
+                IBaseResource baseResource = parser.parseResource(new ByteArrayInputStream(fileData));
                 resourceType = baseResource.fhirType(); // grab the FHIR resource type out of the resource
                 resourceType = resourceType.toLowerCase();
 
@@ -390,14 +894,14 @@ public abstract class CommonFileStore implements FileStore {
                     resourceId = questionnaire.getId();
                     resourceName = questionnaire.getName();
                     resourceUrl = questionnaire.getUrl();
-                    findAndFetchRequiredVSACValueSets(questionnaire);
+                    findRequiredVSACValueSets(questionnaire);
                   } else if (resourceType.equalsIgnoreCase("Library")) {
                     org.hl7.fhir.r4.model.Library library = (org.hl7.fhir.r4.model.Library) baseResource;
                     resourceId = library.getId();
                     resourceName = library.getName();
                     resourceUrl = library.getUrl();
                     // Look at data requirements for value sets
-                    findAndFetchRequiredVSACValueSets(library);
+                    findRequiredVSACValueSets(library);
                   } else if (resourceType.equalsIgnoreCase("ValueSet")) {
                     org.hl7.fhir.r4.model.ValueSet valueSet = (org.hl7.fhir.r4.model.ValueSet) baseResource;
                     resourceId = "ValueSet/" + valueSet.getIdElement().getIdPart();
@@ -420,8 +924,8 @@ public abstract class CommonFileStore implements FileStore {
                     resourceUrl = valueSet.getUrl();
                   }
                 }
-              } catch (FileNotFoundException e) {
-                logger.warn("could not find file: " + resource.getPath());
+              } catch (IOException e) {
+                logger.warn("could not read file: " + resource.getPath());
                 continue;
               }
 
@@ -443,7 +947,7 @@ public abstract class CommonFileStore implements FileStore {
               // create a FhirResource and save it back to the table
               FhirResource fhirResource = new FhirResource();
               fhirResource.setId(resourceId).setFhirVersion(fhirVersion).setResourceType(resourceType).setTopic(topic)
-                  .setFilename(filename).setName(resourceName);
+                  .setFilename(filename).setName(resourceName).setContentHash(contentHash).setVerbatim(verbatim);
               if (resourceUrl != null) {
                 fhirResource.setUrl(resourceUrl);
               }
@@ -483,7 +987,7 @@ public abstract class CommonFileStore implements FileStore {
    */
   private ValueSetCache getValueSetCache() {
     if (this.valueSetCache == null) {
-      this.valueSetCache = new ValueSetCache(this.config.getValueSetCachePath());
+      this.valueSetCache = new ValueSetCache(this.config.getValueSetCachePath(), this.config.getVsac());
       this.valueSetCache.setFhirResources(this.fhirResources);
     }
     return this.valueSetCache;
@@ -491,11 +995,11 @@ public abstract class CommonFileStore implements FileStore {
 
   /**
    * Looks for ValueSet references in Library.dataRequirement.codeFilter entries
-   * that point to a VSAC ValueSet by OID and have the cache fetch the ValueSet.
+   * that point to a VSAC ValueSet by OID and add them to the ValueSets to fetch.
    * 
    * @param library The FHIR Library resource to look for ValueSet references in.
    */
-  private void findAndFetchRequiredVSACValueSets(org.hl7.fhir.r4.model.Library library) {
+  private void findRequiredVSACValueSets(org.hl7.fhir.r4.model.Library library) {
     for (org.hl7.fhir.r4.model.DataRequirement dataReq : library.getDataRequirement()) {
       for (org.hl7.fhir.r4.model.DataRequirement.DataRequirementCodeFilterComponent codeFilter : dataReq
           .getCodeFilter()) {
@@ -503,29 +1007,29 @@ public abstract class CommonFileStore implements FileStore {
         if (valueSetRef.startsWith(ValueSetCache.VSAC_CANONICAL_BASE)) {
           String valueSetId = valueSetRef.split("ValueSet/")[1];
           logger.info("          VSAC ValueSet reference found: " + valueSetId);
-          this.getValueSetCache().fetchValueSet(valueSetId);
+          requiredValueSets.add(valueSetId);
         }
       }
     }
   }
 
   /**
-   * Looks for ValueSet references in Questionnaire.item**.answerValueSet entries that point to a VSAC ValueSet by OID and have the cache fetch the
-   * ValueSet.
+   * Looks for ValueSet references in Questionnaire.item**.answerValueSet entries that point to a VSAC ValueSet by OID and add them to the
+   * ValueSets to fetch.
    * 
    * @param questionnaire The FHIR Questionnaire resource to look for ValueSet references in.
    */
-  private void findAndFetchRequiredVSACValueSets(org.hl7.fhir.r4.model.Questionnaire questionnaire) {
-    findAndFetchRequiredVSACValueSets(questionnaire.getItem());
+  private void findRequiredVSACValueSets(org.hl7.fhir.r4.model.Questionnaire questionnaire) {
+    findRequiredVSACValueSets(questionnaire.getItem());
   }
 
   /**
    * Looks for ValueSet references in a list of Questionnaire item components in the answerValueSet entries that
-   * point to a VSAC ValueSet by OID and have the cache fetch the ValueSet. Also recurses into children item elements.
+   * point to a VSAC ValueSet by OID and add them to the ValueSets to fetch. Also recurses into children item elements.
    * 
    * @param itemComponents The FHIR Questionnaire Item components to look for ValueSet references in.
    */
-  private void findAndFetchRequiredVSACValueSets(List<org.hl7.fhir.r4.model.Questionnaire.QuestionnaireItemComponent> itemComponents) {
+  private void findRequiredVSACValueSets(List<org.hl7.fhir.r4.model.Questionnaire.QuestionnaireItemComponent> itemComponents) {
     for (org.hl7.fhir.r4.model.Questionnaire.QuestionnaireItemComponent itemComponent : itemComponents) {
       // If there is an answerValueSet field we should see if it is a VSAC reference
       if (itemComponent.hasAnswerValueSet()) {
@@ -533,13 +1037,13 @@ public abstract class CommonFileStore implements FileStore {
         if (valueSetRef.startsWith(ValueSetCache.VSAC_CANONICAL_BASE)) {
           String valueSetId = valueSetRef.split("ValueSet/")[1];
           logger.info("          VSAC ValueSet reference found: " + valueSetId);
-          this.getValueSetCache().fetchValueSet(valueSetId);
+          requiredValueSets.add(valueSetId);
         }
       }
 
       // Recurse down into child items.
       if (itemComponent.hasItem()) {
-        findAndFetchRequiredVSACValueSets(itemComponent.getItem());
+        findRequiredVSACValueSets(itemComponent.getItem());
       }
     }
   }
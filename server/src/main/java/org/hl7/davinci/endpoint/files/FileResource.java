@@ -5,6 +5,9 @@ import org.springframework.core.io.Resource;
 public class FileResource {
   private Resource resource;
   private String filename;
+  private String etag;
+  private long lastModified;
+  private Resource gzipResource;
 
   public Resource getResource() {
     return resource;
@@ -23,4 +26,31 @@ public class FileResource {
     this.filename = filename;
     return this;
   }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public FileResource setEtag(String etag) {
+    this.etag = etag;
+    return this;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public FileResource setLastModified(long lastModified) {
+    this.lastModified = lastModified;
+    return this;
+  }
+
+  public Resource getGzipResource() {
+    return gzipResource;
+  }
+
+  public FileResource setGzipResource(Resource gzipResource) {
+    this.gzipResource = gzipResource;
+    return this;
+  }
 }
@@ -5,6 +5,7 @@ import java.util.List;
 import org.hl7.davinci.endpoint.cql.CqlRule;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
 import org.hl7.davinci.endpoint.database.RuleMapping;
+import org.hl7.davinci.endpoint.terminology.ValueSetExpansionStore;
 
 public interface FileStore {
 
@@ -20,6 +21,8 @@ public interface FileStore {
   FileResource getFhirResourceById(String fhirVersion, String resourceType, String id, String baseUrl);
   FileResource getFhirResourceByUrl(String fhirVersion, String resourceType, String url, String baseUrl);
 
+  ValueSetExpansionStore getValueSetExpansionStore();
+
   // from RuleFinder
   List<RuleMapping> findRules(CoverageRequirementRuleCriteria criteria);
   List<RuleMapping> findAll();
@@ -5,6 +5,7 @@ import org.hl7.davinci.endpoint.database.RuleMapping;
 import org.hl7.davinci.endpoint.files.FileResource;
 import org.hl7.davinci.endpoint.files.FileStore;
 import org.hl7.davinci.endpoint.rules.CoverageRequirementRuleCriteria;
+import org.hl7.davinci.endpoint.terminology.ValueSetExpansionStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Profile;
@@ -101,4 +102,8 @@ public class CdsConnectFileStore implements FileStore {
     // TODO Auto-generated method stub
 
   }
-}
\ No newline at end of file
+
+  public ValueSetExpansionStore getValueSetExpansionStore() {
+    return ValueSetExpansionStore.EMPTY;
+  }
+}
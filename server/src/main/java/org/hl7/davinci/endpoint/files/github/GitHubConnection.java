@@ -18,7 +18,10 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
 
 
+import org.apache.commons.io.IOUtils;
 import org.kohsuke.github.GitHub;
+import org.kohsuke.github.GHCommit;
+import org.kohsuke.github.GHCompare;
 import org.kohsuke.github.GHRepository;
 import org.kohsuke.github.GHContent;
 
@@ -34,6 +37,9 @@ public class GitHubConnection {
 
   private static Logger logger = Logger.getLogger(Application.class.getName());
 
+  // the compare API lists at most 300 files, a list this long may be incomplete
+  private static final int MAX_COMPARE_FILES = 300;
+
   private String user;
   private String token;
   private String repository;
@@ -87,7 +93,71 @@ public class GitHubConnection {
     return fileList;
   }
 
+  /**
+   * Gets the SHA of the commit at the head of the branch.
+   *
+   * @return The commit SHA or null if it could not be read.
+   */
+  public String getHeadCommit() {
+    if (!connect()) {
+      return null;
+    }
+    try {
+      return repo.getRef("heads/" + branch).getObject().getSha();
+    } catch (IOException e) {
+      logger.warning("GitHubConnection::getHeadCommit(): ERROR: failed to get head of " + branch + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Lists the files changed between two commits, for syncing a local copy of the repository.
+   *
+   * @param base The commit the local copy is at.
+   * @param head The commit to move the local copy to.
+   * @return The changed files or null if the complete list could not be found, in which case the
+   *         whole repository should be downloaded again.
+   */
+  public List<ChangedFile> getChangedFiles(String base, String head) {
+    if (!connect()) {
+      return null;
+    }
+    try {
+      GHCompare compare = repo.getCompare(base, head);
+      if (compare.getStatus() != GHCompare.Status.ahead && compare.getStatus() != GHCompare.Status.identical) {
+        logger.info("GitHubConnection::getChangedFiles(): " + head + " is " + compare.getStatus() + " of " + base);
+        return null;
+      }
+      GHCommit.File[] files = compare.getFiles();
+      if (files.length >= MAX_COMPARE_FILES) {
+        logger.info("GitHubConnection::getChangedFiles(): too many changes to list: " + files.length);
+        return null;
+      }
+      List<ChangedFile> changedFiles = new ArrayList<>();
+      for (GHCommit.File file : files) {
+        changedFiles.add(new ChangedFile(file.getFileName(), file.getPreviousFilename(),
+            "removed".equals(file.getStatus())));
+      }
+      return changedFiles;
+    } catch (IOException e) {
+      logger.warning("GitHubConnection::getChangedFiles(): ERROR: failed to compare " + base + "..." + head + ": "
+          + e.getMessage());
+      return null;
+    }
+  }
+
   public InputStream getFile(String filePath) {
+    return getFile(filePath, branch);
+  }
+
+  /**
+   * Gets a file as of a commit or branch.
+   *
+   * @param filePath Path of the file from the root of the repository.
+   * @param ref The commit SHA or branch name.
+   * @return The file contents or null if it could not be read.
+   */
+  public InputStream getFile(String filePath, String ref) {
     logger.info("GitHubConnection::getFile(" + filePath + ")");
     InputStream fileStream = null;
 
@@ -97,7 +167,7 @@ public class GitHubConnection {
     }
 
     try {
-      GHContent file = repo.getFileContent(filePath, branch);
+      GHContent file = repo.getFileContent(filePath, ref);
       fileStream = file.read();
 
     } catch (IOException e) {
@@ -107,7 +177,17 @@ public class GitHubConnection {
   }
 
   public String downloadRepo() {
-    String htmlDownload = "https://github.com/" + repository + "/archive/" + branch + ".zip";
+    return downloadRepo(branch);
+  }
+
+  /**
+   * Downloads an archive of the repository as of a commit or branch.
+   *
+   * @param ref The commit SHA or branch name.
+   * @return The path of the zip file or null if the download failed.
+   */
+  public String downloadRepo(String ref) {
+    String htmlDownload = "https://github.com/" + repository + "/archive/" + ref + ".zip";
     logger.info("GitHubConnection::downloadRepo() htmlDownload: " + htmlDownload);
 
     CloseableHttpClient client = HttpClientBuilder.create().build();
@@ -124,10 +204,7 @@ public class GitHubConnection {
       String filePath = "githubrepo.zip";
       FileOutputStream fos = new FileOutputStream(new File(filePath));
 
-      int inByte;
-      while ((inByte = is.read()) != -1) {
-        fos.write(inByte);
-      }
+      IOUtils.copy(is, fos);
 
       is.close();
       fos.close();
@@ -141,4 +218,26 @@ public class GitHubConnection {
       return null;
     }
   }
+
+  /**
+   * A file added, changed or removed between two commits.
+   */
+  public static class ChangedFile {
+    private final String path;
+    private final String previousPath;
+    private final boolean removed;
+
+    public ChangedFile(String path, String previousPath, boolean removed) {
+      this.path = path;
+      this.previousPath = previousPath;
+      this.removed = removed;
+    }
+
+    public String getPath() { return path; }
+
+    /** The path the file was renamed from, or null. */
+    public String getPreviousPath() { return previousPath; }
+
+    public boolean isRemoved() { return removed; }
+  }
 }
@@ -3,11 +3,11 @@ package org.hl7.davinci.endpoint.files.github;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.hl7.ShortNameMaps;
-import org.hl7.davinci.endpoint.cql.CqlExecution;
 import org.hl7.davinci.endpoint.cql.CqlRule;
 import org.hl7.davinci.endpoint.database.*;
 import org.hl7.davinci.endpoint.files.*;
@@ -18,11 +18,14 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.io.ByteArrayResource;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.stereotype.Component;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.List;
 import java.io.InputStream;
@@ -38,9 +41,19 @@ public class GitHubFileStore extends CommonFileStore {
 
   static final Logger logger = LoggerFactory.getLogger(GitHubFileStore.class);
 
+  /**
+   * File in the mirror folder holding the SHA of the commit the mirror was last synced to.
+   */
+  private static final String MIRROR_COMMIT_FILE = ".mirror-commit";
+
   @Autowired
   GitHubConnection connection;
 
+  /**
+   * Everything read during the last reload, all requests are served from it.
+   */
+  private volatile GitHubSnapshot snapshot = GitHubSnapshot.EMPTY;
+
   public GitHubFileStore() {
     logger.info("Using GitHubFileStore");
   }
@@ -50,18 +63,29 @@ public class GitHubFileStore extends CommonFileStore {
     long startTime = System.nanoTime();
     boolean success = true;
 
+    reloadStarted();
+
     // clear the database first
     lookupTable.deleteAll();
     fhirResources.deleteAll();
 
     logger.info("GitHubFileStore::reload()");
 
-    if (config.getGitHubConfig().getUseZipForReload()) {
-      success = reloadFromZip();
+    GitHubSnapshot.Builder snapshotBuilder = GitHubSnapshot.builder();
+    if (isMirrorEnabled()) {
+      success = reloadFromMirror(snapshotBuilder);
+    } else if (config.getGitHubConfig().getUseZipForReload()) {
+      success = reloadFromZip(snapshotBuilder);
     } else {
-      success = reloadFromGitHub();
+      success = reloadFromGitHub(snapshotBuilder);
     }
 
+    // swap in before reloadCompleted, it assembles the questionnaires from the snapshot
+    snapshot = snapshotBuilder.build();
+    logger.info("GitHubFileStore::reload(): snapshot holds " + snapshot.size() + " files");
+
+    reloadCompleted();
+
     long endTime = System.nanoTime();
     long timeElapsed = endTime - startTime;
     float seconds = (float) timeElapsed / (float) 1000000000;
@@ -73,7 +97,7 @@ public class GitHubFileStore extends CommonFileStore {
     }
   }
 
-  private boolean reloadFromZip() {
+  private boolean reloadFromZip(GitHubSnapshot.Builder snapshotBuilder) {
     // download the repo
     String zipPath = connection.downloadRepo();
     File zipFile = new File(zipPath);
@@ -100,6 +124,7 @@ public class GitHubFileStore extends CommonFileStore {
         logger.error("FATAL ERROR: Failed to reload from folder: " + e.getMessage());
         System.exit(1);
       }
+      snapshotBuilder.addFolder(new File(path));
 
       // clean up the zip file
       try {
@@ -114,7 +139,194 @@ public class GitHubFileStore extends CommonFileStore {
     return true;
   }
 
-  private boolean reloadFromGitHub() {
+  private boolean isMirrorEnabled() {
+    String mirrorPath = config.getGitHubConfig().getMirrorPath();
+    return mirrorPath != null && !mirrorPath.isEmpty();
+  }
+
+  private File getMirrorRuleFolder() {
+    return new File(config.getGitHubConfig().getMirrorPath(), config.getGitHubConfig().getRulePath());
+  }
+
+  /**
+   * Brings the local mirror up to date with the branch and loads the rules from it. Only the files
+   * changed since the commit the mirror was last synced to are fetched, the whole repository is only
+   * downloaded the first time or when the changes cannot be listed. If GitHub cannot be reached, or
+   * the mirror cannot be brought up to date, the mirror is used as it is.
+   */
+  private boolean reloadFromMirror(GitHubSnapshot.Builder snapshotBuilder) {
+    File mirror = new File(config.getGitHubConfig().getMirrorPath());
+    File commitFile = new File(mirror, MIRROR_COMMIT_FILE);
+
+    String syncedCommit = null;
+    if (commitFile.isFile()) {
+      try {
+        syncedCommit = FileUtils.readFileToString(commitFile, StandardCharsets.UTF_8).trim();
+      } catch (IOException e) {
+        logger.warn("GitHubFileStore::reloadFromMirror() failed to read mirror commit: " + e.getMessage());
+      }
+    }
+
+    String headCommit = connection.getHeadCommit();
+    if (headCommit == null) {
+      if (syncedCommit == null) {
+        logger.error("GitHubFileStore::reloadFromMirror() no mirror and could not reach GitHub");
+        return false;
+      }
+      logger.warn("GitHubFileStore::reloadFromMirror() could not reach GitHub, using mirror at " + syncedCommit);
+    } else if (headCommit.equals(syncedCommit)) {
+      logger.info("GitHubFileStore::reloadFromMirror() mirror is up to date at " + headCommit);
+    } else {
+      boolean synced = false;
+      if (syncedCommit != null) {
+        List<GitHubConnection.ChangedFile> changedFiles = connection.getChangedFiles(syncedCommit, headCommit);
+        if (changedFiles != null) {
+          synced = applyChanges(mirror, changedFiles, headCommit);
+        }
+      }
+      if (!synced) {
+        synced = downloadMirror(mirror, headCommit);
+      }
+      if (synced) {
+        try {
+          FileUtils.writeStringToFile(commitFile, headCommit, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+          logger.warn("GitHubFileStore::reloadFromMirror() failed to save mirror commit: " + e.getMessage());
+        }
+      } else if (syncedCommit != null && getMirrorRuleFolder().isDirectory()) {
+        // changes that were applied before the sync failed are applied again on the next reload
+        logger.warn("GitHubFileStore::reloadFromMirror() could not sync to " + headCommit
+            + ", using mirror as it is, last synced to " + syncedCommit);
+      } else {
+        logger.error("GitHubFileStore::reloadFromMirror() could not sync to " + headCommit + " and there is no mirror");
+        return false;
+      }
+    }
+
+    try {
+      reloadFromFolder(getMirrorRuleFolder().getPath() + "/");
+    } catch (IOException e) {
+      logger.error("FATAL ERROR: Failed to reload from folder: " + e.getMessage());
+      System.exit(1);
+    }
+    snapshotBuilder.addFolder(getMirrorRuleFolder());
+    return true;
+  }
+
+  /**
+   * Applies the files changed between the mirror commit and the head to the mirror.
+   *
+   * @return false if any file could not be updated, the mirror should then be downloaded again.
+   */
+  private boolean applyChanges(File mirror, List<GitHubConnection.ChangedFile> changedFiles, String headCommit) {
+    logger.info("GitHubFileStore::applyChanges() syncing " + changedFiles.size() + " changed files");
+    try {
+      String mirrorRoot = mirror.getCanonicalPath() + File.separator;
+      for (GitHubConnection.ChangedFile changedFile : changedFiles) {
+        File file = new File(mirror, changedFile.getPath());
+        if (!file.getCanonicalPath().startsWith(mirrorRoot)) {
+          logger.warn("GitHubFileStore::applyChanges() path outside of mirror: " + changedFile.getPath());
+          return false;
+        }
+        if (changedFile.getPreviousPath() != null) {
+          File previousFile = new File(mirror, changedFile.getPreviousPath());
+          if (previousFile.getCanonicalPath().startsWith(mirrorRoot)) {
+            Files.deleteIfExists(previousFile.toPath());
+          }
+        }
+        if (changedFile.isRemoved()) {
+          Files.deleteIfExists(file.toPath());
+          continue;
+        }
+        InputStream inputStream = connection.getFile(changedFile.getPath(), headCommit);
+        if (inputStream == null) {
+          return false;
+        }
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+          FileUtils.copyInputStreamToFile(inputStream, tempFile);
+        } finally {
+          inputStream.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+    } catch (IOException e) {
+      logger.warn("GitHubFileStore::applyChanges() failed to sync changes: " + e.getMessage());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Replaces the mirror with a fresh download of the repository as of a commit. The download is moved
+   * next to the mirror first and only then swapped in, so a failure leaves the old mirror in place.
+   */
+  private boolean downloadMirror(File mirror, String headCommit) {
+    logger.info("GitHubFileStore::downloadMirror() downloading " + headCommit);
+    String zipPath = connection.downloadRepo(headCommit);
+    if (zipPath == null) {
+      return false;
+    }
+    File zipFile = new File(zipPath);
+    File newMirror = null;
+    File oldMirror = null;
+    try {
+      ZipUtil.explode(zipFile);
+      File[] files = zipFile.listFiles();
+      if (files == null || files.length == 0 || !files[0].isDirectory()) {
+        logger.warn("GitHubFileStore::downloadMirror() unexpected archive contents");
+        return false;
+      }
+      File parent = mirror.getAbsoluteFile().getParentFile();
+      parent.mkdirs();
+      newMirror = new File(parent, mirror.getName() + ".new");
+      FileUtils.deleteDirectory(newMirror);
+      FileUtils.moveDirectory(files[0], newMirror);
+
+      // swap with renames in the same folder, the old mirror is only deleted once the new one is in place
+      if (mirror.exists()) {
+        oldMirror = new File(parent, mirror.getName() + ".old");
+        FileUtils.deleteDirectory(oldMirror);
+        Files.move(mirror.toPath(), oldMirror.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      }
+      try {
+        Files.move(newMirror.toPath(), mirror.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        if (oldMirror != null) {
+          Files.move(oldMirror.toPath(), mirror.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        throw e;
+      }
+      if (oldMirror != null) {
+        FileUtils.deleteQuietly(oldMirror);
+      }
+      return true;
+    } catch (RuntimeException | IOException e) {
+      logger.warn("GitHubFileStore::downloadMirror() failed to replace mirror: " + e.getMessage());
+      return false;
+    } finally {
+      FileUtils.deleteQuietly(zipFile);
+      if (newMirror != null) {
+        FileUtils.deleteQuietly(newMirror);
+      }
+    }
+  }
+
+  /**
+   * Opens a file in the rule folder from the snapshot of the last reload.
+   */
+  private InputStream openFile(String path) {
+    byte[] data = snapshot.getFile(path);
+    if (data == null) {
+      logger.warn("GitHubFileStore::openFile() file not in snapshot: " + path);
+      return null;
+    }
+    return new ByteArrayInputStream(data);
+  }
+
+  private boolean reloadFromGitHub(GitHubSnapshot.Builder snapshotBuilder) {
     String rulePath = config.getGitHubConfig().getRulePath();
 
     for (String topicName : connection.getDirectory(rulePath)) {
@@ -128,7 +340,7 @@ public class GitHubFileStore extends CommonFileStore {
           for (String fhirFolder : connection.getDirectory(topicName)) {
             String fhirVersion = fhirFolder;
             String fullPath = topicName + "/" + fhirFolder;
-            processFhirFolder(topicName, fhirVersion, fullPath);
+            processFhirFolder(topicName, fhirVersion, fullPath, snapshotBuilder);
           }
 
         } else if (topicName.startsWith(".")) {
@@ -185,7 +397,7 @@ public class GitHubFileStore extends CommonFileStore {
             } else {
               String fhirVersion = fileName;
               String fullPath = topicName + "/" + fileName;
-              processFhirFolder(topicName, fhirVersion, fullPath);
+              processFhirFolder(topicName, fhirVersion, fullPath, snapshotBuilder);
             }
           }
         }
@@ -194,7 +406,8 @@ public class GitHubFileStore extends CommonFileStore {
     return true;
   }
 
-  private void processFhirFolder(String topic, String fhirVersion, String fhirPath) {
+  private void processFhirFolder(String topic, String fhirVersion, String fhirPath,
+      GitHubSnapshot.Builder snapshotBuilder) {
     fhirVersion = fhirVersion.toUpperCase();
     logger.info("      GitHubFileStore::processFhirFolder(): " + fhirVersion + ": " + fhirPath);
 
@@ -212,7 +425,27 @@ public class GitHubFileStore extends CommonFileStore {
     parser.setParserErrorHandler(new SuppressParserErrorHandler()); // suppress the unknown element warnings
 
     for (String folder : connection.getDirectory(fhirPath)) {
-      if (folder.equalsIgnoreCase("resources")) {
+      if (folder.equalsIgnoreCase("files")) {
+
+        // read the files now so requests for them do not have to go to GitHub
+        String fullFolderPath = fhirPath + "/" + folder;
+        for (String filename : connection.getDirectory(fullFolderPath)) {
+          String fullFilePath = fullFolderPath + "/" + filename;
+          InputStream inputStream = connection.getFile(fullFilePath);
+          if (inputStream == null) {
+            logger.warn("could not find file: " + fullFilePath);
+            continue;
+          }
+          try {
+            byte[] fileData = IOUtils.toByteArray(inputStream);
+            snapshotBuilder.addFile(fullFilePath, fileData);
+            putFileHash(topic, fhirVersion, filename, DigestUtils.sha256Hex(fileData));
+          } catch (IOException e) {
+            logger.warn("could not read file: " + fullFilePath);
+          }
+        }
+
+      } else if (folder.equalsIgnoreCase("resources")) {
 
         String fullFolderPath = fhirPath + "/" + folder;
 
@@ -233,9 +466,21 @@ public class GitHubFileStore extends CommonFileStore {
             // parse the the resource file into the correct FHIR resource
             String resourceId = "";
             String resourceName = "";
+            String contentHash = null;
+            boolean verbatim = false;
             InputStream inputStream = connection.getFile(fullFilePath);
             if (inputStream != null) {
-              IBaseResource baseResource = parser.parseResource(inputStream);
+              byte[] fileData;
+              try {
+                fileData = IOUtils.toByteArray(inputStream);
+              } catch (IOException e) {
+                logger.warn("could not read file: " + fullFilePath);
+                continue;
+              }
+              snapshotBuilder.addFile(fullFilePath, fileData);
+              contentHash = DigestUtils.sha256Hex(fileData);
+              verbatim = isVerbatim(fileData);
+              IBaseResource baseResource = parser.parseResource(new ByteArrayInputStream(fileData));
               resourceType = baseResource.fhirType(); // grab the FHIR resource type out of the resource
               resourceType = resourceType.toLowerCase();
 
@@ -295,7 +540,9 @@ public class GitHubFileStore extends CommonFileStore {
                 .setResourceType(resourceType)
                 .setTopic(topic)
                 .setFilename(filename)
-                .setName(resourceName);
+                .setName(resourceName)
+                .setContentHash(contentHash)
+                .setVerbatim(verbatim);
             fhirResources.save(fhirResource);
           }
         }
@@ -306,34 +553,11 @@ public class GitHubFileStore extends CommonFileStore {
   public CqlRule getCqlRule(String topic, String fhirVersion) {
     logger.info("GitHubFileStore::getCqlRule(): " + topic + "/" + fhirVersion);
 
-    // load CQL files needed for the CRD Rule
-    HashMap<String, byte[]> cqlFiles = new HashMap<>();
-
+    // the CQL files needed for the CRD Rule were found during the reload
     String mainCqlLibraryName = topic + "Rule";
-    String mainCqlFile = findGitHubFile(topic, fhirVersion, mainCqlLibraryName, ".cql");
-    if (mainCqlFile == null) {
-      logger.warn("GitHubFileStore::getCqlRule(): failed to find main CQL file");
-    } else {
-      String mainCqlFilePath = topic + "/" + fhirVersion + "/files/" + mainCqlFile;
-      try {
-        cqlFiles.put(mainCqlFile, IOUtils.toByteArray(connection.getFile(mainCqlFilePath)));
-        logger.info("GitHubFileStore::getCqlRule(): added mainCqlFile: " + mainCqlFile);
-      } catch (IOException e) {
-        logger.warn("GitHubFileStore::getCqlRule(): failed to open main cql file: " + e.getMessage());
-      }
-    }
-
-    String helperCqlFile = findGitHubFile("Shared", fhirVersion, "FHIRHelpers", ".cql");
-    if (helperCqlFile == null) {
-      logger.warn("GitHubFileStore::getCqlRule(): failed to find FHIR helper CQL file");
-    } else {
-      String helperCqlFilePath = "Shared/" + fhirVersion + "/files/" + helperCqlFile;
-      try {
-        cqlFiles.put(helperCqlFile, IOUtils.toByteArray(connection.getFile(helperCqlFilePath)));
-        logger.info("GitHubFileStore::getCqlRule(): added helperCqlFile: " + helperCqlFile);
-      } catch (IOException e) {
-        logger.warn("GitHubFileStore::getCqlRule(): failed to open file FHIR helper cql file: " + e.getMessage());
-      }
+    HashMap<String, byte[]> cqlFiles = snapshot.getCqlFiles(topic, fhirVersion);
+    if (cqlFiles.isEmpty()) {
+      logger.warn("GitHubFileStore::getCqlRule(): failed to find CQL files");
     }
 
     return new CqlRule(mainCqlLibraryName, cqlFiles, fhirVersion);
@@ -345,37 +569,26 @@ public class GitHubFileStore extends CommonFileStore {
 
     String filePath = topic + "/" + fhirVersion + "/files/" + fileName;
 
-    InputStream inputStream = connection.getFile(filePath);
+    byte[] fileData = snapshot.getFile(filePath);
 
-    if (inputStream == null) {
+    if (fileData == null) {
       logger.warn("GitHubFileStore:getFile() Error getting file");
       return null;
     }
 
     // convert to ELM
     if (convert && FilenameUtils.getExtension(fileName).toUpperCase().equals("CQL")) {
-      logger.info("GitHubFileStore::getFile() converting CQL to JSON ELM");
-
-      try {
-        String cql = IOUtils.toString(inputStream, Charset.defaultCharset());
-        byte[] fileData = null;
-        try {
-          String elm = CqlExecution.translateToElm(cql);
-          fileData = elm.getBytes();
-        } catch (Exception e) {
-          logger.warn("GitHubFileStore::getFile() Error: could not convert CQL: " + e.getMessage());
-          return null;
-        }
-        fileResource.setResource(new ByteArrayResource(fileData));
-      } catch (IOException e) {
-        logger.warn("GitHubFileStore::getFile() Error: could not read file: " + e.getMessage());
-        return null;
+      FileResource elmResource = getElmFileResource(topic, fhirVersion, fileName, () -> fileData);
+      if (elmResource != null) {
+        elmResource.setLastModified(getLastReload());
       }
-    } else {
-      fileResource.setResource(new InputStreamResource(inputStream));
+      return elmResource;
     }
 
-    return fileResource;
+    fileResource.setResource(new ByteArrayResource(fileData));
+    fileResource.setEtag(getFileEtag(topic, fhirVersion, fileName));
+    fileResource.setLastModified(getLastReload());
+    return withGzipVariant("files|" + filePath, fileResource);
   }
 
 
@@ -392,6 +605,13 @@ public class GitHubFileStore extends CommonFileStore {
       // If the topic indicates it's actually from the ValueSet cache. Grab file input stream from there.
       if (fhirResource.getTopic().equals(ValueSetCache.VSAC_TOPIC)) {
         filePath = config.getValueSetCachePath() + fhirResource.getFilename();
+
+        // nothing to substitute, let the container stream it from disk
+        File file = new File(filePath);
+        if (fhirResource.isVerbatim() && file.isFile()) {
+          return diskFileResource(fhirResource.getFilename(), file);
+        }
+
         try {
           inputStream = new FileInputStream(filePath);
         } catch (FileNotFoundException e) {
@@ -400,7 +620,7 @@ public class GitHubFileStore extends CommonFileStore {
         }
       } else {
         filePath = fhirResource.getTopic() + "/" + fhirVersion + "/resources/" + fhirResource.getFilename();
-        inputStream = connection.getFile(filePath);
+        inputStream = openFile(filePath);
       }
 
       if (inputStream == null) {
@@ -410,15 +630,20 @@ public class GitHubFileStore extends CommonFileStore {
 
       try {
         // replace <server-path> with the proper path
-        String partialUrl = baseUrl + "fhir/" + fhirVersion + "/";
+        fileData = IOUtils.toByteArray(inputStream);
+        if (baseUrl != null) {
+          String partialUrl = baseUrl + "fhir/" + fhirVersion + "/";
 
-        String fileString = IOUtils.toString(inputStream, Charset.defaultCharset());
-        fileString = fileString.replace("<server-path>", partialUrl);
-        fileData = fileString.getBytes(Charset.defaultCharset());
+          String fileString = new String(fileData, Charset.defaultCharset());
+          fileString = fileString.replace("<server-path>", partialUrl);
+          fileData = fileString.getBytes(Charset.defaultCharset());
+        }
 
         FileResource fileResource = new FileResource();
         fileResource.setFilename(fhirResource.getFilename());
         fileResource.setResource(new ByteArrayResource(fileData));
+        fileResource.setEtag(getResourceEtag(fhirResource, baseUrl));
+        fileResource.setLastModified(getLastReload());
         return fileResource;
 
       } catch (IOException e) {
@@ -0,0 +1,190 @@
+package org.hl7.davinci.endpoint.files.github;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable copy of the rule files read during a reload of the GitHubFileStore. Holds the contents
+ * of the files and resources folders of every topic, their directory listings and the CQL files
+ * each topic's rule needs, so serving a hook or a file does not go back to GitHub. A new snapshot is
+ * built on every reload and swapped in whole.
+ */
+public class GitHubSnapshot {
+
+  static final Logger logger = LoggerFactory.getLogger(GitHubSnapshot.class);
+
+  public static final GitHubSnapshot EMPTY = new GitHubSnapshot(Collections.emptyMap(), Collections.emptyMap(),
+      Collections.emptyMap());
+
+  private final Map<String, byte[]> files;
+  private final Map<String, List<String>> directories;
+  private final Map<String, Map<String, byte[]>> cqlFiles;
+
+  private GitHubSnapshot(Map<String, byte[]> files, Map<String, List<String>> directories,
+      Map<String, Map<String, byte[]>> cqlFiles) {
+    this.files = files;
+    this.directories = directories;
+    this.cqlFiles = cqlFiles;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Gets the contents of a file. The array is shared, callers must not modify it.
+   *
+   * @param path Path of the file within the rule folder, e.g. topic/R4/files/file.cql.
+   * @return The contents or null if the file is not in the snapshot.
+   */
+  public byte[] getFile(String path) {
+    return files.get(normalize(path));
+  }
+
+  /**
+   * Gets the names of the files in a folder.
+   *
+   * @param path Path of the folder within the rule folder, e.g. topic/R4/files.
+   * @return The sorted file names, empty if the folder is not in the snapshot.
+   */
+  public List<String> getDirectory(String path) {
+    List<String> names = directories.get(normalize(path));
+    return names == null ? Collections.emptyList() : names;
+  }
+
+  /**
+   * Gets the CQL files needed to build the rule of a topic: the main rule and FHIRHelpers.
+   *
+   * @param topic The topic name.
+   * @param fhirVersion The FHIR version folder.
+   * @return A new map of file name to contents, empty if the topic has none.
+   */
+  public HashMap<String, byte[]> getCqlFiles(String topic, String fhirVersion) {
+    Map<String, byte[]> topicCqlFiles = cqlFiles.get(topic + "/" + fhirVersion);
+    return topicCqlFiles == null ? new HashMap<>() : new HashMap<>(topicCqlFiles);
+  }
+
+  public int size() {
+    return files.size();
+  }
+
+  private static String normalize(String path) {
+    String normalized = path.replace('\\', '/');
+    while (normalized.endsWith("/")) {
+      normalized = normalized.substring(0, normalized.length() - 1);
+    }
+    return normalized;
+  }
+
+  /**
+   * Collects the files of a reload. Not thread safe, a reload fills it from one thread.
+   */
+  public static class Builder {
+    private final Map<String, byte[]> files = new HashMap<>();
+    private final Map<String, TreeSet<String>> directories = new HashMap<>();
+
+    /**
+     * Adds a file, and its name to the listing of its folder.
+     *
+     * @param path Path of the file within the rule folder.
+     * @param data Contents of the file.
+     */
+    public Builder addFile(String path, byte[] data) {
+      String normalized = normalize(path);
+      files.put(normalized, data);
+      int slash = normalized.lastIndexOf('/');
+      String folder = slash < 0 ? "" : normalized.substring(0, slash);
+      directories.computeIfAbsent(folder, key -> new TreeSet<>()).add(normalized.substring(slash + 1));
+      return this;
+    }
+
+    /**
+     * Adds the files and resources folders of every topic and FHIR version in a local rule folder.
+     *
+     * @param ruleFolder The rule folder, holding one folder per topic.
+     */
+    public Builder addFolder(File ruleFolder) {
+      File[] topics = ruleFolder.listFiles(File::isDirectory);
+      if (topics == null) {
+        logger.warn("GitHubSnapshot::addFolder() not a folder: " + ruleFolder);
+        return this;
+      }
+      for (File topic : topics) {
+        if (topic.getName().startsWith(".")) {
+          continue;
+        }
+        File[] fhirFolders = topic.listFiles(File::isDirectory);
+        for (File fhirFolder : fhirFolders == null ? new File[0] : fhirFolders) {
+          for (String type : new String[] { "files", "resources" }) {
+            File[] typeFiles = new File(fhirFolder, type).listFiles(File::isFile);
+            for (File file : typeFiles == null ? new File[0] : typeFiles) {
+              try {
+                addFile(topic.getName() + "/" + fhirFolder.getName() + "/" + type + "/" + file.getName(),
+                    Files.readAllBytes(file.toPath()));
+              } catch (IOException e) {
+                logger.warn("GitHubSnapshot::addFolder() failed to read file: " + file + ": " + e.getMessage());
+              }
+            }
+          }
+        }
+      }
+      return this;
+    }
+
+    /**
+     * Builds the snapshot, resolving the main rule and FHIRHelpers CQL of every topic.
+     */
+    public GitHubSnapshot build() {
+      Map<String, List<String>> listings = new HashMap<>();
+      for (Map.Entry<String, TreeSet<String>> directory : directories.entrySet()) {
+        listings.put(directory.getKey(), Collections.unmodifiableList(new ArrayList<>(directory.getValue())));
+      }
+
+      Map<String, Map<String, byte[]>> cqlSets = new HashMap<>();
+      for (String folder : listings.keySet()) {
+        String[] parts = folder.split("/");
+        if (parts.length != 3 || !parts[2].equals("files") || parts[0].equalsIgnoreCase("Shared")) {
+          continue;
+        }
+        String topic = parts[0];
+        String fhirVersion = parts[1];
+        Map<String, byte[]> topicCqlFiles = new HashMap<>();
+        String mainCqlFile = findFile(listings, folder, topic + "Rule", ".cql");
+        if (mainCqlFile != null) {
+          topicCqlFiles.put(mainCqlFile, files.get(folder + "/" + mainCqlFile));
+        }
+        String helperFolder = "Shared/" + fhirVersion + "/files";
+        String helperCqlFile = findFile(listings, helperFolder, "FHIRHelpers", ".cql");
+        if (helperCqlFile != null) {
+          topicCqlFiles.put(helperCqlFile, files.get(helperFolder + "/" + helperCqlFile));
+        }
+        cqlSets.put(topic + "/" + fhirVersion, Collections.unmodifiableMap(topicCqlFiles));
+      }
+
+      return new GitHubSnapshot(Collections.unmodifiableMap(new HashMap<>(files)),
+          Collections.unmodifiableMap(listings), Collections.unmodifiableMap(cqlSets));
+    }
+
+    private static String findFile(Map<String, List<String>> listings, String folder, String name, String extension) {
+      List<String> names = listings.get(folder);
+      if (names != null) {
+        for (String file : names) {
+          if (file.startsWith(name) && file.endsWith(extension)) {
+            return file;
+          }
+        }
+      }
+      return null;
+    }
+  }
+}
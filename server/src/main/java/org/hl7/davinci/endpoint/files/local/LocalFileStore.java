@@ -1,7 +1,6 @@
 package org.hl7.davinci.endpoint.files.local;
 
 import org.apache.commons.io.FilenameUtils;
-import org.hl7.davinci.endpoint.cql.CqlExecution;
 import org.hl7.davinci.endpoint.cql.CqlRule;
 import org.hl7.davinci.endpoint.database.*;
 import org.hl7.davinci.endpoint.files.*;
@@ -35,6 +34,8 @@ public class LocalFileStore extends CommonFileStore {
   public void reload() {
     long startTime = System.nanoTime();
 
+    reloadStarted();
+
     // clear the database first
     lookupTable.deleteAll();
     fhirResources.deleteAll();
@@ -49,6 +50,8 @@ public class LocalFileStore extends CommonFileStore {
       System.exit(1);
     }
 
+    reloadCompleted();
+
     long endTime = System.nanoTime();
     long timeElapsed = endTime - startTime;
     float seconds = (float)timeElapsed / (float)1000000000;
@@ -92,35 +95,26 @@ public class LocalFileStore extends CommonFileStore {
   }
 
   public FileResource getFile(String topic, String fileName, String fhirVersion, boolean convert) {
-    FileResource fileResource = new FileResource();
-    fileResource.setFilename(fileName);
-
     String localPath = config.getLocalDb().getPath();
     String filePath = localPath + topic + "/" + fhirVersion + "/files/" + fileName;
     File file = new File(filePath);
-    byte[] fileData = null;
-    try {
-      fileData = Files.readAllBytes(file.toPath());
-
-      // convert to ELM
-      if (convert && FilenameUtils.getExtension(fileName).toUpperCase().equals("CQL")) {
-        logger.info("LocalFileStore::getFile() converting CQL to JSON ELM");
-        String cql = new String(fileData);
-        try {
-          String elm = CqlExecution.translateToElm(cql);
-          fileData = elm.getBytes();
-        } catch (Exception e) {
-          logger.warn("LocalFileStore::getFile() Error: could not convert CQL: " + e.getMessage());
-          return null;
-        }
+
+    // convert to ELM, the file is only read if it has not been translated yet
+    if (convert && FilenameUtils.getExtension(fileName).toUpperCase().equals("CQL")) {
+      FileResource elmResource = getElmFileResource(topic, fhirVersion, fileName,
+          () -> Files.readAllBytes(file.toPath()));
+      if (elmResource != null) {
+        elmResource.setLastModified(getLastReload());
       }
-    } catch (IOException e) {
-      logger.warn("LocalFileStore::getFile() failed to get file: " + e.getMessage());
-      return null;
+      return elmResource;
     }
 
-    fileResource.setResource(new ByteArrayResource(fileData));
-    return fileResource;
+    // served as is, let the container send it from disk
+    if (!file.isFile()) {
+      logger.warn("LocalFileStore::getFile() failed to get file: " + filePath);
+      return null;
+    }
+    return withGzipVariant("files|" + filePath, diskFileResource(fileName, file));
   }
 
   protected FileResource readFhirResourceFromFile(List<FhirResource> fhirResourceList, String fhirVersion, String baseUrl) {
@@ -144,21 +138,31 @@ public class LocalFileStore extends CommonFileStore {
       }
 
       File file = new File(filePath);
+
+      // nothing to substitute, let the container stream it from disk
+      if (fhirResource.isVerbatim() && file.isFile()) {
+        return diskFileResource(fhirResource.getFilename(), file);
+      }
+
       try {
         fileData = Files.readAllBytes(file.toPath());
 
         // replace <server-path> with the proper path
         //String fullLaunchUrl = config.getLaunchUrl().toString();
         //String baseUrl = fullLaunchUrl.substring(0, fullLaunchUrl.indexOf(config.getLaunchUrl().getPath())+1);
-        String partialUrl = baseUrl + "fhir/" + fhirVersion + "/";
+        if (baseUrl != null) {
+          String partialUrl = baseUrl + "fhir/" + fhirVersion + "/";
 
-        String fileString = new String(fileData, Charset.defaultCharset());
-        fileString = fileString.replace("<server-path>", partialUrl);
-        fileData = fileString.getBytes(Charset.defaultCharset());
+          String fileString = new String(fileData, Charset.defaultCharset());
+          fileString = fileString.replace("<server-path>", partialUrl);
+          fileData = fileString.getBytes(Charset.defaultCharset());
+        }
 
         FileResource fileResource = new FileResource();
         fileResource.setFilename(fhirResource.getFilename());
         fileResource.setResource(new ByteArrayResource(fileData));
+        fileResource.setEtag(getResourceEtag(fhirResource, baseUrl));
+        fileResource.setLastModified(getLastReload());
         return fileResource;
 
       } catch (IOException e) {
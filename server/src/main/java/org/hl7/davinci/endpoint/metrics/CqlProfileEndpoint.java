@@ -0,0 +1,51 @@
+package org.hl7.davinci.endpoint.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.DeleteOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint at /actuator/cqlprofile.
+ * <ul>
+ *   <li>GET lists the slowest topics and CQL statements, and the trace of the traced topic.
+ *   Takes an optional limit (default 20).</li>
+ *   <li>POST with {"topic": "..."} traces that topic, an empty topic stops tracing.</li>
+ *   <li>DELETE clears the collected timings.</li>
+ * </ul>
+ */
+@Component
+@Endpoint(id = "cqlprofile")
+public class CqlProfileEndpoint {
+
+  private static final int DEFAULT_LIMIT = 20;
+
+  @Autowired
+  private CqlProfiler cqlProfiler;
+
+  @ReadOperation
+  public Map<String, Object> profile(@Nullable Integer limit) {
+    int max = limit == null || limit <= 0 ? DEFAULT_LIMIT : limit;
+    Map<String, Object> profile = new LinkedHashMap<>();
+    profile.put("topics", cqlProfiler.getSlowestTopics(max));
+    profile.put("statements", cqlProfiler.getSlowestStatements(max));
+    profile.put("tracedTopic", cqlProfiler.getTracedTopic());
+    profile.put("trace", cqlProfiler.getTrace());
+    return profile;
+  }
+
+  @WriteOperation
+  public void trace(@Nullable String topic) {
+    cqlProfiler.setTracedTopic(topic);
+  }
+
+  @DeleteOperation
+  public void reset() {
+    cqlProfiler.reset();
+  }
+}
@@ -0,0 +1,153 @@
+package org.hl7.davinci.endpoint.metrics;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collects how long the CQL of each topic takes to evaluate, in total and per statement, so rule
+ * authors can find the rules that slow down requests. One topic at a time can also be traced, which
+ * keeps the most recent statement evaluations of that topic with their results. The results come from
+ * patient data, so they are only kept in memory and never logged. Exposed through the cqlprofile
+ * actuator endpoint.
+ */
+@Component
+public class CqlProfiler {
+
+  private static final int TRACE_SIZE = 200;
+  private static final int MAX_RESULT_LENGTH = 200;
+
+  private final Map<String, Stats> topics = new ConcurrentHashMap<>();
+  private final Map<String, Stats> statements = new ConcurrentHashMap<>();
+
+  private volatile String tracedTopic;
+  private final ArrayDeque<Map<String, Object>> trace = new ArrayDeque<>();
+
+  /**
+   * Records the evaluation of all the statements of a topic for one request.
+   */
+  public void recordTopic(String topic, long nanos) {
+    topics.computeIfAbsent(topic, key -> new Stats(topic, null)).record(nanos);
+  }
+
+  /**
+   * Records the evaluation of one statement, and traces it if the topic is being traced.
+   */
+  public void recordStatement(String topic, String statement, long nanos, Object result) {
+    statements.computeIfAbsent(topic + "|" + statement, key -> new Stats(topic, statement)).record(nanos);
+    if (topic.equals(tracedTopic)) {
+      String resultString = String.valueOf(result);
+      if (resultString.length() > MAX_RESULT_LENGTH) {
+        resultString = resultString.substring(0, MAX_RESULT_LENGTH) + "...";
+      }
+      Map<String, Object> entry = new LinkedHashMap<>();
+      entry.put("time", new Date());
+      entry.put("statement", statement);
+      entry.put("millis", nanos / 1e6);
+      entry.put("result", resultString);
+      synchronized (trace) {
+        if (trace.size() >= TRACE_SIZE) {
+          trace.removeFirst();
+        }
+        trace.addLast(entry);
+      }
+    }
+  }
+
+  /**
+   * Starts tracing a topic, replacing the topic traced before.
+   *
+   * @param topic The topic to trace, null to stop tracing.
+   */
+  public void setTracedTopic(String topic) {
+    tracedTopic = topic == null || topic.isEmpty() ? null : topic;
+    synchronized (trace) {
+      trace.clear();
+    }
+  }
+
+  public String getTracedTopic() {
+    return tracedTopic;
+  }
+
+  public List<Map<String, Object>> getTrace() {
+    synchronized (trace) {
+      return new ArrayList<>(trace);
+    }
+  }
+
+  /**
+   * Gets the topics with the highest mean evaluation time.
+   */
+  public List<Map<String, Object>> getSlowestTopics(int limit) {
+    return slowest(topics.values(), limit);
+  }
+
+  /**
+   * Gets the statements with the highest mean evaluation time.
+   */
+  public List<Map<String, Object>> getSlowestStatements(int limit) {
+    return slowest(statements.values(), limit);
+  }
+
+  public void reset() {
+    topics.clear();
+    statements.clear();
+  }
+
+  private static List<Map<String, Object>> slowest(Collection<Stats> stats, int limit) {
+    return stats.stream()
+        .sorted(Comparator.comparingDouble(Stats::meanNanos).reversed())
+        .limit(limit)
+        .map(Stats::toMap)
+        .collect(Collectors.toList());
+  }
+
+  private static class Stats {
+    private final String topic;
+    private final String statement;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private Stats(String topic, String statement) {
+      this.topic = topic;
+      this.statement = statement;
+    }
+
+    private void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private double meanNanos() {
+      long n = count.sum();
+      return n == 0 ? 0 : (double) totalNanos.sum() / n;
+    }
+
+    private Map<String, Object> toMap() {
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("topic", topic);
+      if (statement != null) {
+        map.put("statement", statement);
+      }
+      map.put("count", count.sum());
+      map.put("meanMillis", meanNanos() / 1e6);
+      map.put("maxMillis", maxNanos.get() / 1e6);
+      map.put("totalMillis", TimeUnit.NANOSECONDS.toMillis(totalNanos.sum()));
+      return map;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package org.hl7.davinci.endpoint.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Micrometer meters for the CdsService pipeline, exported through the actuator metrics endpoint.
+ * Every stage of a request is timed with crd.stage, tagged with the stage, hook id and FHIR version,
+ * and the whole request with crd.request. The rules matched and cards returned are counted.
+ */
+@Component
+public class CrdMetrics {
+
+  public static final String REQUEST_TIMER = "crd.request";
+  public static final String STAGE_TIMER = "crd.stage";
+  public static final String RULES_MATCHED = "crd.rules.matched";
+  public static final String CARDS_PRODUCED = "crd.cards.produced";
+
+  private final MeterRegistry registry;
+
+  // building a meter looks it up in the registry, keep them so a request does not have to
+  private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+  private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+  @Autowired
+  public CrdMetrics(MeterRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * Starts timing a request. The StageTimer is available to the rest of the pipeline on this thread
+   * through StageTimer.current() until it is closed.
+   *
+   * @param hookId The id of the CdsService.
+   * @param fhirVersion The FHIR version of the CdsService.
+   * @return The timer for the request.
+   */
+  public StageTimer start(String hookId, String fhirVersion) {
+    return StageTimer.start(this, hookId, fhirVersion);
+  }
+
+  Timer requestTimer(String hookId, String fhirVersion) {
+    return timers.computeIfAbsent(REQUEST_TIMER + "|" + hookId + "|" + fhirVersion,
+        key -> Timer.builder(REQUEST_TIMER)
+            .description("CDS Hooks request processing time")
+            .tags("hook", hookId, "fhirVersion", fhirVersion)
+            .publishPercentiles(0.5, 0.95, 0.99)
+            .publishPercentileHistogram()
+            .register(registry));
+  }
+
+  Timer stageTimer(String stage, String hookId, String fhirVersion) {
+    return timers.computeIfAbsent(STAGE_TIMER + "|" + stage + "|" + hookId + "|" + fhirVersion,
+        key -> Timer.builder(STAGE_TIMER)
+            .description("Time spent in one stage of a CDS Hooks request")
+            .tags("stage", stage, "hook", hookId, "fhirVersion", fhirVersion)
+            .publishPercentiles(0.5, 0.95, 0.99)
+            .publishPercentileHistogram()
+            .register(registry));
+  }
+
+  Counter counter(String name, String hookId, String fhirVersion) {
+    return counters.computeIfAbsent(name + "|" + hookId + "|" + fhirVersion,
+        key -> Counter.builder(name)
+            .tags("hook", hookId, "fhirVersion", fhirVersion)
+            .register(registry));
+  }
+}
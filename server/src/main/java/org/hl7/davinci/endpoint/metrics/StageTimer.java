@@ -0,0 +1,99 @@
+package org.hl7.davinci.endpoint.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the stages of one CDS Hooks request. Code called from the CdsService, like the
+ * FhirBundleProcessors, gets the timer of the request it is working on with current(), which
+ * returns a timer that records nothing if no request is being timed on this thread.
+ */
+public class StageTimer implements AutoCloseable {
+
+  public static final String HYDRATION = "hydration";
+  public static final String RULE_LOOKUP = "rule_lookup";
+  public static final String CQL_TRANSLATION = "cql_translation";
+  public static final String CONTEXT_BUILD = "context_build";
+  public static final String EVALUATION = "evaluation";
+  public static final String CARD_ASSEMBLY = "card_assembly";
+
+  private static final StageTimer NOOP = new StageTimer(null, null, null);
+  private static final ThreadLocal<StageTimer> CURRENT = new ThreadLocal<>();
+
+  private final CrdMetrics metrics;
+  private final String hookId;
+  private final String fhirVersion;
+  private final long started = System.nanoTime();
+
+  private StageTimer(CrdMetrics metrics, String hookId, String fhirVersion) {
+    this.metrics = metrics;
+    this.hookId = hookId;
+    this.fhirVersion = fhirVersion;
+  }
+
+  static StageTimer start(CrdMetrics metrics, String hookId, String fhirVersion) {
+    StageTimer timer = new StageTimer(metrics, hookId, fhirVersion);
+    CURRENT.set(timer);
+    return timer;
+  }
+
+  /**
+   * Gets the timer of the request being handled on this thread.
+   */
+  public static StageTimer current() {
+    StageTimer timer = CURRENT.get();
+    return timer == null ? NOOP : timer;
+  }
+
+  /**
+   * Makes this the timer current() returns on this thread, for a request that moves between threads.
+   */
+  public void attach() {
+    if (metrics != null) {
+      CURRENT.set(this);
+    }
+  }
+
+  /**
+   * Stops current() returning this timer on this thread.
+   */
+  public void detach() {
+    if (CURRENT.get() == this) {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * Records the time since a start time taken with System.nanoTime() against a stage.
+   *
+   * @param stage The stage, one of the constants of this class.
+   * @param startNanos When the stage started.
+   */
+  public void record(String stage, long startNanos) {
+    if (metrics != null) {
+      metrics.stageTimer(stage, hookId, fhirVersion).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  public void rulesMatched(int count) {
+    if (metrics != null && count > 0) {
+      metrics.counter(CrdMetrics.RULES_MATCHED, hookId, fhirVersion).increment(count);
+    }
+  }
+
+  public void cardsProduced(int count) {
+    if (metrics != null && count > 0) {
+      metrics.counter(CrdMetrics.CARDS_PRODUCED, hookId, fhirVersion).increment(count);
+    }
+  }
+
+  /**
+   * Records the total time of the request and detaches the timer from the thread.
+   */
+  @Override
+  public void close() {
+    if (metrics != null) {
+      metrics.requestTimer(hookId, fhirVersion).record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+      detach();
+    }
+  }
+}
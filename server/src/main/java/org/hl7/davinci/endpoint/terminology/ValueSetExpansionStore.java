@@ -0,0 +1,484 @@
+package org.hl7.davinci.endpoint.terminology;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Read only store of the expansions of all of the loaded ValueSets, built once per reload. The
+ * concepts are written to a binary file that is memory mapped, so large expansions do not sit on the
+ * heap or have to be parsed again. Every distinct system, version, code and display string is stored
+ * once and decoded at most once. Each ValueSet has a hash index on code so membership checks do not
+ * scan the expansion. Pages of an expansion, optionally filtered, can be built for ValueSet/$expand.
+ *
+ * <p>File layout, all ints big endian:
+ * <pre>
+ *   magic, string count, concept count
+ *   string offsets   int[string count + 1], relative to the start of the string data
+ *   string data      UTF-8, padded to a multiple of 4 bytes
+ *   concepts         int[concept count][4] of system, version, code, display string numbers (-1 for none)
+ *   hash indexes     int[] slots per ValueSet holding the concept number within the ValueSet + 1 (0 for empty)
+ * </pre>
+ */
+public class ValueSetExpansionStore implements Closeable {
+
+  static final Logger logger = LoggerFactory.getLogger(ValueSetExpansionStore.class);
+
+  private static final int MAGIC = 0x56534558; // "VSEX"
+  private static final int HEADER_SIZE = 12;
+  private static final int CONCEPT_SIZE = 16;
+
+  /**
+   * A store without any ValueSets, used until the first reload completes.
+   */
+  public static final ValueSetExpansionStore EMPTY = new ValueSetExpansionStore(null, null, 0, 0, 0,
+      Collections.emptyMap());
+
+  private final File file;
+  private final ByteBuffer buffer;
+  private final int stringDataPosition;
+  private final int conceptsPosition;
+  private final int indexPosition;
+  private final String[] strings;
+  private final String[] lowerCaseStrings;
+  private final Map<String, Expansion> expansions;
+  private final long created = System.currentTimeMillis();
+
+  private ValueSetExpansionStore(File file, ByteBuffer buffer, int stringCount, int conceptsPosition,
+      int indexPosition, Map<String, Expansion> expansions) {
+    this.file = file;
+    this.buffer = buffer;
+    this.stringDataPosition = HEADER_SIZE + 4 * (stringCount + 1);
+    this.conceptsPosition = conceptsPosition;
+    this.indexPosition = indexPosition;
+    this.strings = new String[stringCount];
+    this.lowerCaseStrings = new String[stringCount];
+    this.expansions = expansions;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Checks if the store has an expansion for a ValueSet.
+   *
+   * @param key The canonical url of the ValueSet or its resource id (valueset/[id]).
+   * @return true if the ValueSet is in the store.
+   */
+  public boolean contains(String key) {
+    return expansions.containsKey(key);
+  }
+
+  /**
+   * Gets when the store was built, expansions built from it do not change until it is replaced.
+   */
+  public long getCreated() {
+    return created;
+  }
+
+  /**
+   * Gets the number of concepts in the expansion of a ValueSet.
+   *
+   * @param key The canonical url of the ValueSet or its resource id (valueset/[id]).
+   * @return The number of concepts or -1 if the ValueSet is not in the store.
+   */
+  public int size(String key) {
+    Expansion expansion = expansions.get(key);
+    return expansion == null ? -1 : expansion.count;
+  }
+
+  /**
+   * Gets one concept from the expansion of a ValueSet.
+   *
+   * @param key The canonical url of the ValueSet or its resource id (valueset/[id]).
+   * @param index Position of the concept in the expansion.
+   * @return The concept or null if there is no such concept.
+   */
+  public Concept getConcept(String key, int index) {
+    Expansion expansion = expansions.get(key);
+    if (expansion == null || index < 0 || index >= expansion.count) {
+      return null;
+    }
+    return readConcept(expansion.start + index);
+  }
+
+  /**
+   * Gets all of the concepts in the expansion of a ValueSet.
+   *
+   * @param key The canonical url of the ValueSet or its resource id (valueset/[id]).
+   * @return The concepts, empty if the ValueSet is not in the store.
+   */
+  public List<Concept> getConcepts(String key) {
+    Expansion expansion = expansions.get(key);
+    if (expansion == null) {
+      return Collections.emptyList();
+    }
+    List<Concept> concepts = new ArrayList<>(expansion.count);
+    for (int i = 0; i < expansion.count; i++) {
+      concepts.add(readConcept(expansion.start + i));
+    }
+    return concepts;
+  }
+
+  /**
+   * Checks if a code is in the expansion of a ValueSet.
+   *
+   * @param key The canonical url of the ValueSet or its resource id (valueset/[id]).
+   * @param system The code system of the code, or null to match any system.
+   * @param code The code.
+   * @return true if the code is in the expansion.
+   */
+  public boolean hasCode(String key, String system, String code) {
+    Expansion expansion = expansions.get(key);
+    if (expansion == null || code == null || expansion.indexSize == 0) {
+      return false;
+    }
+    int mask = expansion.indexSize - 1;
+    int slot = code.hashCode() & mask;
+    for (int probes = 0; probes < expansion.indexSize; probes++) {
+      int entry = buffer.getInt(indexPosition + 4 * (expansion.indexStart + slot));
+      if (entry == 0) {
+        return false;
+      }
+      int concept = expansion.start + entry - 1;
+      int conceptPosition = conceptsPosition + CONCEPT_SIZE * concept;
+      if (code.equals(string(buffer.getInt(conceptPosition + 8)))
+          && (system == null || system.equals(string(buffer.getInt(conceptPosition))))) {
+        return true;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return false;
+  }
+
+  /**
+   * Builds a ValueSet holding one page of the expansion of a ValueSet, like the FHIR ValueSet/$expand
+   * operation with the filter, offset and count parameters.
+   *
+   * @param key The canonical url of the ValueSet or its resource id (valueset/[id]).
+   * @param filter Text that the code or display must contain (case insensitive), or null for all concepts.
+   * @param offset Number of matching concepts to skip.
+   * @param count Maximum number of concepts to return, or null for all of them.
+   * @return The ValueSet with the expansion or null if the ValueSet is not in the store.
+   */
+  public ValueSet expand(String key, String filter, int offset, Integer count) {
+    Expansion expansion = expansions.get(key);
+    if (expansion == null) {
+      return null;
+    }
+    String lowerCaseFilter = filter == null || filter.isEmpty() ? null : filter.toLowerCase();
+    int limit = count == null ? Integer.MAX_VALUE : Math.max(count, 0);
+
+    ValueSet valueSet = new ValueSet();
+    valueSet.setId(expansion.id);
+    valueSet.setUrl(expansion.url);
+    valueSet.setName(expansion.name);
+    valueSet.setStatus(PublicationStatus.ACTIVE);
+    ValueSetExpansionComponent result = valueSet.getExpansion();
+    result.setIdentifier("urn:uuid:" + UUID.randomUUID());
+    result.setTimestamp(new Date());
+    result.setOffset(offset);
+    if (lowerCaseFilter != null) {
+      result.addParameter().setName("filter").setValue(new StringType(filter));
+    }
+    if (count != null) {
+      result.addParameter().setName("count").setValue(new IntegerType(count));
+    }
+
+    int matches = 0;
+    for (int i = 0; i < expansion.count; i++) {
+      int position = conceptsPosition + CONCEPT_SIZE * (expansion.start + i);
+      if (lowerCaseFilter != null && !matches(buffer.getInt(position + 8), lowerCaseFilter)
+          && !matches(buffer.getInt(position + 12), lowerCaseFilter)) {
+        continue;
+      }
+      if (matches >= offset && matches - offset < limit) {
+        Concept concept = readConcept(expansion.start + i);
+        result.addContains().setSystem(concept.getSystem()).setVersion(concept.getVersion())
+            .setCode(concept.getCode()).setDisplay(concept.getDisplay());
+      }
+      matches++;
+    }
+    result.setTotal(matches);
+    return valueSet;
+  }
+
+  private boolean matches(int string, String lowerCaseFilter) {
+    if (string < 0) {
+      return false;
+    }
+    String lowerCase = lowerCaseStrings[string];
+    if (lowerCase == null) {
+      lowerCase = string(string).toLowerCase();
+      lowerCaseStrings[string] = lowerCase;
+    }
+    return lowerCase.contains(lowerCaseFilter);
+  }
+
+  private Concept readConcept(int concept) {
+    int position = conceptsPosition + CONCEPT_SIZE * concept;
+    return new Concept(string(buffer.getInt(position)), string(buffer.getInt(position + 4)),
+        string(buffer.getInt(position + 8)), string(buffer.getInt(position + 12)));
+  }
+
+  /**
+   * Decodes a string from the string table, each string is only decoded once.
+   */
+  private String string(int number) {
+    if (number < 0) {
+      return null;
+    }
+    String value = strings[number];
+    if (value == null) {
+      int start = buffer.getInt(HEADER_SIZE + 4 * number);
+      int end = buffer.getInt(HEADER_SIZE + 4 * (number + 1));
+      byte[] bytes = new byte[end - start];
+      ByteBuffer view = buffer.duplicate();
+      view.position(stringDataPosition + start);
+      view.get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+      // Strings are immutable, racing threads at worst decode the same string twice
+      strings[number] = value;
+    }
+    return value;
+  }
+
+  /**
+   * Deletes the backing file. The mapping stays valid for anyone still reading from this store.
+   */
+  @Override
+  public void close() {
+    if (file != null && !file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  /**
+   * One concept of an expansion.
+   */
+  public static class Concept {
+    private final String system;
+    private final String version;
+    private final String code;
+    private final String display;
+
+    public Concept(String system, String version, String code, String display) {
+      this.system = system;
+      this.version = version;
+      this.code = code;
+      this.display = display;
+    }
+
+    public String getSystem() {
+      return system;
+    }
+
+    public String getVersion() {
+      return version;
+    }
+
+    public String getCode() {
+      return code;
+    }
+
+    public String getDisplay() {
+      return display;
+    }
+  }
+
+  /**
+   * Where the concepts and hash index of one ValueSet are in the file.
+   */
+  private static class Expansion {
+    private String id;
+    private String url;
+    private String name;
+    private int start;
+    private int count;
+    private int indexStart;
+    private int indexSize;
+  }
+
+  /**
+   * Collects the expansions of the ValueSets and writes the store.
+   */
+  public static class Builder {
+    private final Map<String, Integer> stringNumbers = new HashMap<>();
+    private final List<String> stringList = new ArrayList<>();
+    private int[] concepts = new int[1024];
+    private int conceptCount = 0;
+    private int indexSize = 0;
+    private final List<Expansion> expansionList = new ArrayList<>();
+    private final Map<String, Expansion> expansions = new HashMap<>();
+
+    private Builder() {}
+
+    /**
+     * Adds a ValueSet to the store. The expansion is used if there is one, otherwise the concepts
+     * listed in compose.include (filters and included ValueSets are not evaluated).
+     *
+     * @param keys The keys the ValueSet can be looked up with, e.g. its canonical url and resource id.
+     * @param valueSet The ValueSet.
+     * @return this builder.
+     */
+    public Builder addValueSet(List<String> keys, ValueSet valueSet) {
+      Expansion expansion = new Expansion();
+      expansion.id = valueSet.getIdElement().getIdPart();
+      expansion.url = valueSet.getUrl();
+      expansion.name = valueSet.getName();
+      expansion.start = conceptCount;
+      if (valueSet.hasExpansion()) {
+        addContains(valueSet.getExpansion().getContains());
+      } else if (valueSet.hasCompose()) {
+        for (ConceptSetComponent include : valueSet.getCompose().getInclude()) {
+          for (ConceptReferenceComponent concept : include.getConcept()) {
+            if (concept.hasCode()) {
+              addConcept(include.getSystem(), include.getVersion(), concept.getCode(), concept.getDisplay());
+            }
+          }
+        }
+      }
+      expansion.count = conceptCount - expansion.start;
+      expansion.indexStart = indexSize;
+      expansion.indexSize = expansion.count == 0 ? 0 : Integer.highestOneBit(expansion.count * 2 - 1) << 1;
+      indexSize += expansion.indexSize;
+
+      expansionList.add(expansion);
+      for (String key : keys) {
+        if (key != null) {
+          expansions.put(key, expansion);
+        }
+      }
+      return this;
+    }
+
+    private void addContains(List<ValueSetExpansionContainsComponent> contains) {
+      for (ValueSetExpansionContainsComponent concept : contains) {
+        if (concept.hasCode()) {
+          addConcept(concept.getSystem(), concept.getVersion(), concept.getCode(), concept.getDisplay());
+        }
+        if (concept.hasContains()) {
+          addContains(concept.getContains());
+        }
+      }
+    }
+
+    private void addConcept(String system, String version, String code, String display) {
+      if (concepts.length < (conceptCount + 1) * 4) {
+        concepts = Arrays.copyOf(concepts, concepts.length * 2);
+      }
+      int position = conceptCount * 4;
+      concepts[position] = stringNumber(system);
+      concepts[position + 1] = stringNumber(version);
+      concepts[position + 2] = stringNumber(code);
+      concepts[position + 3] = stringNumber(display);
+      conceptCount++;
+    }
+
+    private int stringNumber(String value) {
+      if (value == null) {
+        return -1;
+      }
+      return stringNumbers.computeIfAbsent(value, key -> {
+        stringList.add(key);
+        return stringList.size() - 1;
+      });
+    }
+
+    /**
+     * Writes the store to a new file in the given folder and maps it.
+     *
+     * @param folder Where to create the file.
+     * @return The store.
+     * @throws IOException If the file could not be written or mapped.
+     */
+    public ValueSetExpansionStore build(File folder) throws IOException {
+      File file = File.createTempFile("expansions", ".bin", folder);
+      file.deleteOnExit();
+
+      int stringCount = stringList.size();
+      List<byte[]> stringBytes = new ArrayList<>(stringCount);
+      for (String value : stringList) {
+        stringBytes.add(value.getBytes(StandardCharsets.UTF_8));
+      }
+      int conceptsPosition;
+      int indexPosition;
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(stringCount);
+        out.writeInt(conceptCount);
+
+        int offset = 0;
+        out.writeInt(offset);
+        for (byte[] bytes : stringBytes) {
+          offset += bytes.length;
+          out.writeInt(offset);
+        }
+        for (byte[] bytes : stringBytes) {
+          out.write(bytes);
+        }
+        int padding = (4 - offset % 4) % 4;
+        for (int i = 0; i < padding; i++) {
+          out.writeByte(0);
+        }
+        conceptsPosition = HEADER_SIZE + 4 * (stringCount + 1) + offset + padding;
+
+        for (int i = 0; i < conceptCount * 4; i++) {
+          out.writeInt(concepts[i]);
+        }
+        indexPosition = conceptsPosition + CONCEPT_SIZE * conceptCount;
+
+        int[] index = new int[indexSize];
+        for (Expansion expansion : expansionList) {
+          int mask = expansion.indexSize - 1;
+          for (int i = 0; i < expansion.count; i++) {
+            String code = stringList.get(concepts[(expansion.start + i) * 4 + 2]);
+            int slot = code.hashCode() & mask;
+            while (index[expansion.indexStart + slot] != 0) {
+              slot = (slot + 1) & mask;
+            }
+            index[expansion.indexStart + slot] = i + 1;
+          }
+        }
+        for (int slot : index) {
+          out.writeInt(slot);
+        }
+      }
+
+      ByteBuffer buffer;
+      try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      logger.info("ValueSetExpansionStore: " + expansionList.size() + " ValueSets, " + conceptCount + " concepts, "
+          + stringCount + " strings, " + file.length() + " bytes");
+      return new ValueSetExpansionStore(file, buffer, stringCount, conceptsPosition, indexPosition, expansions);
+    }
+  }
+}
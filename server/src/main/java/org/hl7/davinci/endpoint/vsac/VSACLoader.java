@@ -2,26 +2,22 @@ package org.hl7.davinci.endpoint.vsac;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.http.HttpEntity;
-import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.util.EntityUtils;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.hl7.davinci.endpoint.config.VsacConfig;
 import org.hl7.davinci.endpoint.vsac.errors.VSACException;
 import org.hl7.davinci.endpoint.vsac.errors.VSACInvalidCredentialsException;
 import org.hl7.davinci.endpoint.vsac.errors.VSACValueSetNotFoundException;
@@ -37,16 +33,21 @@ public class VSACLoader {
   public static final String SVS_URL = "https://vsac.nlm.nih.gov/vsac/svs/RetrieveMultipleValueSets";
   public static final String DEFAULT_PROFILE = "Most Recent Code System Versions in VSAC";
 
-  /** 
-   * The Ticket Granting Ticket that allows us to get service Tickets.
+  /**
+   * Keeps the Ticket Granting Ticket fresh and hands out service tickets.
    */
-  private String ticketGrantingTicket;
+  private VSACTicketManager ticketManager;
 
   /**
    * The Http client we will attempt to reuse for all requests.
    */
   private CloseableHttpClient client;
 
+  /**
+   * Url of the SVS RetrieveMultipleValueSets API.
+   */
+  private String svsUrl;
+
   /**
    * Initializes a VSACLoader. This attmepts to get a VSAC TGT.
    * 
@@ -55,56 +56,65 @@ public class VSACLoader {
    * @throws VSACException If there was an inability to get a TGT with these credentials.
    */
   public VSACLoader(String username, String password) throws VSACException {
-    this.client = HttpClients.createDefault();
-    this.ticketGrantingTicket = getTicketGrantingTicket(username, password);
+    this(username, password, AUTH_URL, SVS_URL, 2);
   }
 
   /**
-   * Grabs a Ticket Granting Ticket. This is the first step in using the API. This ticket is used to get service tickets which are
-   * needed for each request. This ticket /should/ last 8 hours. But in practice it does not.
-   * 
+   * Initializes a VSACLoader against the given endpoints. This attmepts to get a VSAC TGT.
+   *
    * @param username UMLS/VSAC Username
    * @param password UMLS/VSAC Password
-   * @return The Ticket Granting Ticket
-   * @throws VSACException If there was an issue getting the TGT.
+   * @param authUrl Url to get tickets from, null for the default.
+   * @param svsUrl Url of the SVS API, null for the default.
+   * @param maxConnections Number of connections to keep open to VSAC, the loader may be used from this many
+   *                       threads at once.
+   * @throws VSACException If there was an inability to get a TGT with these credentials.
    */
-  private String getTicketGrantingTicket(String username, String password) throws VSACException {
-    // Build parameter pair for form urlencoded data that will be posted.
-    List<NameValuePair> credentials = new ArrayList<NameValuePair>();
-    credentials.add(new BasicNameValuePair("username", username));
-    credentials.add(new BasicNameValuePair("password", password));
+  public VSACLoader(String username, String password, String authUrl, String svsUrl, int maxConnections)
+      throws VSACException {
+    this(username, password, vsacConfig(authUrl, svsUrl, maxConnections));
+  }
 
-    // Build request to authorization url.
-    HttpPost tgtRequest = new HttpPost(AUTH_URL);
-    tgtRequest.addHeader("Content-Type", "application/x-www-form-urlencoded");
-    try {
-      tgtRequest.setEntity(new UrlEncodedFormEntity(credentials, "UTF-8"));
-    } catch (UnsupportedEncodingException e) {
-      // This shouldn't happen.
-    }
+  /**
+   * Initializes a VSACLoader with the endpoints, connection count and ticket settings of the config.
+   * This attmepts to get a VSAC TGT.
+   *
+   * @param username UMLS/VSAC Username
+   * @param password UMLS/VSAC Password
+   * @param vsacConfig VSAC endpoints and fetch settings, fetchThreads is the number of connections.
+   * @throws VSACException If there was an inability to get a TGT with these credentials.
+   */
+  public VSACLoader(String username, String password, VsacConfig vsacConfig) throws VSACException {
+    String authUrl = vsacConfig.getAuthUrl() != null ? vsacConfig.getAuthUrl() : AUTH_URL;
+    this.svsUrl = vsacConfig.getSvsUrl() != null ? vsacConfig.getSvsUrl() : SVS_URL;
+
+    // ticket prefetches share the pool with the ValueSet downloads
+    int maxConnections = Math.max(vsacConfig.getFetchThreads(), 1) + Math.max(vsacConfig.getTicketPrefetch(), 0);
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    this.client = HttpClients.custom().setConnectionManager(connectionManager).build();
 
-    // Handle request and parsing into string.
-    String tgt = "";
     try {
-      CloseableHttpResponse response = this.client.execute(tgtRequest);
+      this.ticketManager = new VSACTicketManager(this.client, authUrl, username, password,
+          TimeUnit.MINUTES.toMillis(vsacConfig.getTicketRefresh()), vsacConfig.getTicketPrefetch());
+    } catch (VSACException e) {
       try {
-        HttpEntity responseEntity = response.getEntity();
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode == 401) {
-          throw new VSACInvalidCredentialsException();
-        } else if (statusCode == 200) {
-          tgt = EntityUtils.toString(responseEntity);
-        } else {
-          throw new VSACException("Unexpected response in getting ticket granting ticket. Status code: " + statusCode);
-        }
-      } finally {
-        response.close();
+        this.client.close();
+      } catch (IOException ioe) {
+        // already failing
       }
-    } catch (IOException ioe) {
-      throw new VSACException("Unexpected error in getting ticket granting ticket.", ioe);
+      throw e;
     }
+  }
 
-    return tgt;
+  private static VsacConfig vsacConfig(String authUrl, String svsUrl, int maxConnections) {
+    VsacConfig vsacConfig = new VsacConfig();
+    vsacConfig.setAuthUrl(authUrl);
+    vsacConfig.setSvsUrl(svsUrl);
+    vsacConfig.setFetchThreads(maxConnections);
+    vsacConfig.setTicketPrefetch(0);
+    return vsacConfig;
   }
 
   /**
@@ -114,41 +124,23 @@ public class VSACLoader {
    * @throws VSACException If there was an issue getting the service ticket.
    */
   public String getTicket() throws VSACException {
-    // Service info that needs to be passed when getting a ticket.
-    List<NameValuePair> serviceInfo = new ArrayList<NameValuePair>();
-    serviceInfo.add(new BasicNameValuePair("service", "http://umlsks.nlm.nih.gov"));
-
-    // Auth url with the ticket granting ticket added to it is the url to hit.
-    HttpPost ticketRequest = new HttpPost(AUTH_URL + '/' + this.ticketGrantingTicket);
-    ticketRequest.addHeader("Content-Type", "application/x-www-form-urlencoded");
-    try {
-      ticketRequest.setEntity(new UrlEncodedFormEntity(serviceInfo, "UTF-8"));
-    } catch (UnsupportedEncodingException e) {
-      // This shouldn't happen.
-    }
+    return this.ticketManager.getServiceTicket();
+  }
 
-    String ticket = "";
-    try {
-      CloseableHttpResponse response = this.client.execute(ticketRequest);
-      try {
-        HttpEntity responseEntity = response.getEntity();
-        int statusCode = response.getStatusLine().getStatusCode();
-        if (statusCode == 401) {
-          // This usually means the ticket granting ticket has expired.
-          throw new VSACInvalidCredentialsException();
-        } else if (statusCode == 200) {
-          ticket = EntityUtils.toString(responseEntity);
-        } else {
-          throw new VSACException("Unexpected response in getting service ticket. Status code: " + statusCode);
-        }
-      } finally {
-        response.close();
-      }
-    } catch (IOException ioe) {
-      throw new VSACException("Unexpected error in getting service ticket.", ioe);
-    }
+  /**
+   * Starts fetching service tickets in the background for ValueSets that are about to be fetched.
+   *
+   * @param count Number of ValueSets about to be fetched.
+   */
+  public void prefetchTickets(int count) {
+    this.ticketManager.prefetch(count);
+  }
 
-    return ticket;
+  /**
+   * Stops prefetching service tickets once the ValueSets they were for have been fetched.
+   */
+  public void endTicketPrefetch() {
+    this.ticketManager.endPrefetch();
   }
 
   /**
@@ -192,19 +184,30 @@ public class VSACLoader {
   } 
 
   /**
-   * Fetch a ValueSet from the VSAC API and return it as a FHIR R4 ValueSet.
+   * Fetch a ValueSet from the VSAC API and return it as a FHIR R4 ValueSet. The SVS API only takes one
+   * id per request, so callers wanting many ValueSets should make concurrent calls instead.
    * 
    * @param oid The ValueSet OID to fetch.
    * @return FHIR R4 ValueSet resource.
    * @throws VSACException If there was an error with any of the process.
    */
   public ValueSet getValueSet(String oid) throws VSACException {
+    try {
+      return this.getValueSet(oid, this.getTicket());
+    } catch (VSACInvalidCredentialsException e) {
+      // The service ticket was rejected, drop any prefetched ones and try once more with a new ticket.
+      this.ticketManager.clearServiceTickets();
+      return this.getValueSet(oid, this.getTicket());
+    }
+  }
+
+  private ValueSet getValueSet(String oid, String ticket) throws VSACException {
     // Build up request.
     HttpGet vsRequest;
     try {
       URIBuilder vsUriBuilder;
-      vsUriBuilder = new URIBuilder(SVS_URL);    
-      vsUriBuilder.setParameter("ticket", this.getTicket())
+      vsUriBuilder = new URIBuilder(this.svsUrl);    
+      vsUriBuilder.setParameter("ticket", ticket)
         .setParameter("id", oid)
         .setParameter("profile", DEFAULT_PROFILE)
         .setParameter("includeDraft", "yes");
@@ -222,7 +225,7 @@ public class VSACLoader {
         HttpEntity responseEntity = response.getEntity();
         int statusCode = response.getStatusLine().getStatusCode();
         if (statusCode == 401) {
-          // Service tickets only last 5 minutes. This is unlikely to happen.
+          // Service tickets only last 5 minutes, a prefetched one may have expired.
           throw new VSACInvalidCredentialsException();
         } else if (statusCode == 200) {
           valueSet = this.parseValueSetResponse(responseEntity.getContent());
@@ -247,7 +250,11 @@ public class VSACLoader {
    * @return VSAC Ticket Granting Ticket
    */
   public String getTGT() {
-    return this.ticketGrantingTicket;
+    try {
+      return this.ticketManager.getTicketGrantingTicket();
+    } catch (VSACException e) {
+      return null;
+    }
   }
 
   /**
@@ -256,6 +263,7 @@ public class VSACLoader {
    * @throws VSACException If there was an issue closing the connection.
    */
   public void close() throws VSACException {
+    this.ticketManager.close();
     try {
       this.client.close();
     } catch(IOException ioe) {
@@ -7,7 +7,9 @@ import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -53,6 +55,16 @@ public class VSACSVSHandler extends DefaultHandler {
    */
   private StringBuilder sourceStringBuilder;
 
+  /**
+   * Code system URIs already looked up, keyed by code system OID.
+   */
+  private Map<String, String> codeSystemUris = new HashMap<>();
+
+  /**
+   * One instance of each code system version seen, large expansions repeat the same few versions.
+   */
+  private Map<String, String> versions = new HashMap<>();
+
   /**
    * Constructs a VSACVSHandler.
    */
@@ -83,6 +95,7 @@ public class VSACSVSHandler extends DefaultHandler {
         this.currentValueSet.setId(attributes.getValue("ID"));
         this.currentValueSet.setUrl(ValueSetCache.VSAC_CANONICAL_BASE + attributes.getValue("ID"));
         this.currentValueSet.setName(attributes.getValue("displayName"));
+        this.currentValueSet.setVersion(attributes.getValue("version"));
         this.currentExpansion = new ValueSetExpansionComponent();
         this.currentExpansion.setTimestamp(new Date());
         break;
@@ -91,9 +104,9 @@ public class VSACSVSHandler extends DefaultHandler {
       case "ns0:Concept":
         ValueSetExpansionContainsComponent concept = new ValueSetExpansionContainsComponent();
         concept.setCode(attributes.getValue("code"));
-        concept.setVersion(attributes.getValue("codeSystemVersion"));
+        concept.setVersion(intern(versions, attributes.getValue("codeSystemVersion")));
         concept.setDisplay(attributes.getValue("displayName"));
-        concept.setSystem(CodeSystemTranslator.convertOidToUri(attributes.getValue("codeSystem")));
+        concept.setSystem(getCodeSystemUri(attributes.getValue("codeSystem")));
 
         this.currentExpansion.getContains().add(concept);
         break;
@@ -165,6 +178,24 @@ public class VSACSVSHandler extends DefaultHandler {
     }
   }
 
+  /**
+   * Converts a code system OID to its URI, looking each OID up only once.
+   */
+  private String getCodeSystemUri(String oid) {
+    if (oid == null) {
+      return null;
+    }
+    return codeSystemUris.computeIfAbsent(oid, CodeSystemTranslator::convertOidToUri);
+  }
+
+  private static String intern(Map<String, String> pool, String value) {
+    if (value == null) {
+      return null;
+    }
+    String pooled = pool.putIfAbsent(value, value);
+    return pooled == null ? value : pooled;
+  }
+
   /**
    * Getter for the list of parsed valuesets.
    * 
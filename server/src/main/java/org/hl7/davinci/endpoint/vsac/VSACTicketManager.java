@@ -0,0 +1,341 @@
+package org.hl7.davinci.endpoint.vsac;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.hl7.davinci.endpoint.vsac.errors.VSACException;
+import org.hl7.davinci.endpoint.vsac.errors.VSACInvalidCredentialsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the VSAC Ticket Granting Ticket and the one time use service tickets obtained with it.
+ * The TGT is requested again once it is older than the refresh interval, or when VSAC rejects it,
+ * so a loader can be kept for the life of the server. Service tickets can be prefetched in the
+ * background so that ValueSet downloads do not wait on a ticket round trip. The prefetched tickets
+ * are topped up as they are taken, for as long as more are expected to be needed.
+ */
+public class VSACTicketManager {
+
+  static final Logger logger = LoggerFactory.getLogger(VSACTicketManager.class);
+
+  /**
+   * Service tickets last 5 minutes, prefetched tickets older than this are thrown away.
+   */
+  private static final long SERVICE_TICKET_LIFETIME = TimeUnit.MINUTES.toMillis(4);
+
+  /**
+   * How long to wait at a time for a prefetched ticket that is on its way.
+   */
+  private static final long PREFETCH_POLL_MILLIS = 50;
+
+  private final CloseableHttpClient client;
+  private final String authUrl;
+  private final String username;
+  private final String password;
+  private final long refreshInterval;
+  private final int maxPrefetch;
+
+  private String ticketGrantingTicket;
+  private long ticketGrantingTicketObtained;
+
+  private final LinkedBlockingQueue<ServiceTicket> serviceTickets = new LinkedBlockingQueue<>();
+  private final AtomicInteger pendingPrefetches = new AtomicInteger();
+  private final AtomicInteger expectedTickets = new AtomicInteger();
+  private final ExecutorService prefetcher;
+
+  /**
+   * Creates the ticket manager and gets the first Ticket Granting Ticket.
+   *
+   * @param client The Http client used for the ticket requests.
+   * @param authUrl Url to get tickets from.
+   * @param username UMLS/VSAC Username
+   * @param password UMLS/VSAC Password
+   * @param refreshInterval Milliseconds after which the TGT is requested again before it is used.
+   * @param maxPrefetch Maximum number of service tickets to hold or have in flight, 0 to never prefetch.
+   * @throws VSACException If there was an inability to get a TGT with these credentials.
+   */
+  public VSACTicketManager(CloseableHttpClient client, String authUrl, String username, String password,
+      long refreshInterval, int maxPrefetch) throws VSACException {
+    this.client = client;
+    this.authUrl = authUrl;
+    this.username = username;
+    this.password = password;
+    this.refreshInterval = refreshInterval;
+    this.maxPrefetch = Math.max(maxPrefetch, 0);
+    this.prefetcher = Executors.newFixedThreadPool(Math.max(1, Math.min(this.maxPrefetch, 4)), runnable -> {
+      Thread thread = new Thread(runnable, "vsac-ticket-prefetch");
+      thread.setDaemon(true);
+      return thread;
+    });
+    refreshTicketGrantingTicket(null);
+  }
+
+  /**
+   * Gets the current Ticket Granting Ticket, requesting a new one first if it is older than the
+   * refresh interval.
+   *
+   * @return The Ticket Granting Ticket.
+   * @throws VSACException If a new TGT was needed and could not be obtained.
+   */
+  public synchronized String getTicketGrantingTicket() throws VSACException {
+    if (System.currentTimeMillis() - ticketGrantingTicketObtained >= refreshInterval) {
+      logger.info("VSACTicketManager::getTicketGrantingTicket() refreshing TGT before it expires");
+      refreshTicketGrantingTicket(ticketGrantingTicket);
+    }
+    return ticketGrantingTicket;
+  }
+
+  /**
+   * Requests a new Ticket Granting Ticket unless another thread has already replaced the rejected one.
+   * Prefetched service tickets are dropped along with the old TGT.
+   *
+   * @param rejected The TGT that VSAC rejected or that expired, null to always request one.
+   * @throws VSACException If the TGT could not be obtained.
+   */
+  private synchronized void refreshTicketGrantingTicket(String rejected) throws VSACException {
+    if (rejected != null && !rejected.equals(ticketGrantingTicket)) {
+      return;
+    }
+    ticketGrantingTicket = requestTicketGrantingTicket();
+    ticketGrantingTicketObtained = System.currentTimeMillis();
+    serviceTickets.clear();
+  }
+
+  /**
+   * Gets a one time use service ticket, a prefetched one if there is one that has not expired.
+   * If VSAC rejects the TGT a new TGT is requested and the service ticket request is retried once.
+   *
+   * @return The service ticket.
+   * @throws VSACException If there was an issue getting the service ticket.
+   */
+  public String getServiceTicket() throws VSACException {
+    boolean expected = expectedTickets.getAndUpdate(count -> Math.max(0, count - 1)) > 0;
+    String prefetched = takePrefetched();
+    if (expected) {
+      topUp();
+    }
+    if (prefetched != null) {
+      return prefetched;
+    }
+    return requestServiceTicketWithRefresh();
+  }
+
+  /**
+   * Takes a prefetched service ticket that has not expired, waiting for one if a prefetch is in flight,
+   * as that is no slower than requesting another.
+   *
+   * @return The ticket, or null if there are none and none are on their way.
+   */
+  private String takePrefetched() {
+    while (true) {
+      ServiceTicket prefetched = serviceTickets.poll();
+      if (prefetched == null) {
+        if (pendingPrefetches.get() == 0) {
+          return null;
+        }
+        try {
+          prefetched = serviceTickets.poll(PREFETCH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      if (prefetched != null && !prefetched.isExpired()) {
+        return prefetched.ticket;
+      }
+    }
+  }
+
+  /**
+   * Starts fetching service tickets in the background for upcoming requests. Up to the prefetch limit
+   * are held or in flight at a time, and more are fetched as they are taken until count of them have
+   * been taken or endPrefetch is called.
+   *
+   * @param count Number of service tickets that will be needed soon.
+   */
+  public void prefetch(int count) {
+    expectedTickets.addAndGet(Math.max(count, 0));
+    topUp();
+  }
+
+  /**
+   * Stops topping up the prefetched service tickets, for when the expected requests are done.
+   */
+  public void endPrefetch() {
+    expectedTickets.set(0);
+  }
+
+  /**
+   * Starts prefetches until the tickets held and in flight cover the expected requests, up to the
+   * prefetch limit.
+   */
+  private void topUp() {
+    while (true) {
+      int wanted = Math.min(maxPrefetch, expectedTickets.get());
+      if (serviceTickets.size() + pendingPrefetches.incrementAndGet() > wanted) {
+        pendingPrefetches.decrementAndGet();
+        return;
+      }
+      try {
+        prefetcher.submit(() -> {
+          try {
+            serviceTickets.offer(new ServiceTicket(requestServiceTicketWithRefresh()));
+          } catch (VSACException e) {
+            // the ticket will be requested again when it is needed
+            logger.warn("VSACTicketManager::prefetch() failed to get service ticket: " + e.getMessage());
+          } finally {
+            pendingPrefetches.decrementAndGet();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // closed
+        pendingPrefetches.decrementAndGet();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drops prefetched service tickets, for example after VSAC rejected one of them.
+   */
+  public void clearServiceTickets() {
+    serviceTickets.clear();
+  }
+
+  /**
+   * Stops prefetching. The Http client belongs to the caller and is not closed.
+   */
+  public void close() {
+    expectedTickets.set(0);
+    // prefetches that never started will not count themselves down, waiting getServiceTicket calls
+    // would otherwise wait for them
+    pendingPrefetches.addAndGet(-prefetcher.shutdownNow().size());
+    serviceTickets.clear();
+  }
+
+  private String requestServiceTicketWithRefresh() throws VSACException {
+    String tgt = getTicketGrantingTicket();
+    try {
+      return requestServiceTicket(tgt);
+    } catch (VSACInvalidCredentialsException e) {
+      // This usually means the ticket granting ticket expired early.
+      logger.info("VSACTicketManager::getServiceTicket() TGT rejected, requesting a new one");
+      refreshTicketGrantingTicket(tgt);
+      return requestServiceTicket(getTicketGrantingTicket());
+    }
+  }
+
+  /**
+   * Grabs a Ticket Granting Ticket. This is the first step in using the API. This ticket is used to get service tickets which are
+   * needed for each request. This ticket /should/ last 8 hours. But in practice it does not, so it is refreshed early and again
+   * whenever VSAC rejects it.
+   *
+   * @return The Ticket Granting Ticket
+   * @throws VSACException If there was an issue getting the TGT.
+   */
+  private String requestTicketGrantingTicket() throws VSACException {
+    // Build parameter pair for form urlencoded data that will be posted.
+    List<NameValuePair> credentials = new ArrayList<NameValuePair>();
+    credentials.add(new BasicNameValuePair("username", username));
+    credentials.add(new BasicNameValuePair("password", password));
+
+    // Build request to authorization url.
+    HttpPost tgtRequest = new HttpPost(this.authUrl);
+    tgtRequest.addHeader("Content-Type", "application/x-www-form-urlencoded");
+    try {
+      tgtRequest.setEntity(new UrlEncodedFormEntity(credentials, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      // This shouldn't happen.
+    }
+
+    try {
+      CloseableHttpResponse response = this.client.execute(tgtRequest);
+      try {
+        HttpEntity responseEntity = response.getEntity();
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == 401) {
+          throw new VSACInvalidCredentialsException();
+        } else if (statusCode == 200) {
+          return EntityUtils.toString(responseEntity);
+        } else {
+          throw new VSACException("Unexpected response in getting ticket granting ticket. Status code: " + statusCode);
+        }
+      } finally {
+        response.close();
+      }
+    } catch (IOException ioe) {
+      throw new VSACException("Unexpected error in getting ticket granting ticket.", ioe);
+    }
+  }
+
+  /**
+   * Get a one time use service ticket from VSAC.
+   *
+   * @param tgt The Ticket Granting Ticket to get it with.
+   * @return The service ticket.
+   * @throws VSACException If there was an issue getting the service ticket.
+   */
+  private String requestServiceTicket(String tgt) throws VSACException {
+    // Service info that needs to be passed when getting a ticket.
+    List<NameValuePair> serviceInfo = new ArrayList<NameValuePair>();
+    serviceInfo.add(new BasicNameValuePair("service", "http://umlsks.nlm.nih.gov"));
+
+    // Auth url with the ticket granting ticket added to it is the url to hit.
+    HttpPost ticketRequest = new HttpPost(this.authUrl + '/' + tgt);
+    ticketRequest.addHeader("Content-Type", "application/x-www-form-urlencoded");
+    try {
+      ticketRequest.setEntity(new UrlEncodedFormEntity(serviceInfo, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      // This shouldn't happen.
+    }
+
+    try {
+      CloseableHttpResponse response = this.client.execute(ticketRequest);
+      try {
+        HttpEntity responseEntity = response.getEntity();
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode == 401) {
+          throw new VSACInvalidCredentialsException();
+        } else if (statusCode == 200) {
+          return EntityUtils.toString(responseEntity);
+        } else {
+          throw new VSACException("Unexpected response in getting service ticket. Status code: " + statusCode);
+        }
+      } finally {
+        response.close();
+      }
+    } catch (IOException ioe) {
+      throw new VSACException("Unexpected error in getting service ticket.", ioe);
+    }
+  }
+
+  private static class ServiceTicket {
+    private final String ticket;
+    private final long obtained = System.currentTimeMillis();
+
+    private ServiceTicket(String ticket) {
+      this.ticket = ticket;
+    }
+
+    private boolean isExpired() {
+      return System.currentTimeMillis() - obtained >= SERVICE_TICKET_LIFETIME;
+    }
+  }
+}
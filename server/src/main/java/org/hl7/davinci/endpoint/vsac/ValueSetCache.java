@@ -1,16 +1,38 @@
 package org.hl7.davinci.endpoint.vsac;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.hl7.davinci.endpoint.config.VsacConfig;
 import org.hl7.davinci.endpoint.database.FhirResource;
-import org.hl7.davinci.endpoint.database.FhirResourceCriteria;
 import org.hl7.davinci.endpoint.database.FhirResourceRepository;
 import org.hl7.davinci.endpoint.vsac.errors.VSACException;
+import org.hl7.davinci.endpoint.vsac.errors.VSACInvalidCredentialsException;
+import org.hl7.davinci.endpoint.vsac.errors.VSACValueSetNotFoundException;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +59,11 @@ public class ValueSetCache {
 
   private File cacheDir;
 
+  /**
+   * Version, fetch time and hash of each ValueSet in the cache dir.
+   */
+  private ValueSetCacheManifest manifest;
+
   /**
    * Currently initialized VSACLoader. This may be null if there are no credentials found.
    */
@@ -47,13 +74,45 @@ public class ValueSetCache {
    */
   private FhirContext fhirContext;
 
+  /**
+   * VSAC endpoints and settings for fetching many ValueSets at once.
+   */
+  private VsacConfig vsacConfig;
+
+  /**
+   * The ValueSets loaded since the last reload, keyed by OID. Used instead of querying the
+   * FhirResourceRepository to find out if a ValueSet is already loaded.
+   */
+  private Map<String, FhirResource> loadedValueSets = new ConcurrentHashMap<>();
+
+  /**
+   * FhirResource rows for loaded ValueSets that have not been saved to the FhirResourceRepository yet.
+   */
+  private Queue<FhirResource> pendingFhirResources = new ConcurrentLinkedQueue<>();
+
+  /**
+   * One lock per OID so that parallel callers asking for the same ValueSet only fetch it once.
+   */
+  private Map<String, Object> fetchLocks = new ConcurrentHashMap<>();
+
   /**
    * Initializes the cache with no credentials passed in. Note. initializeLoader function may find credentials in the environement variables.
    * 
    * @param cacheDir Location of the ValueSet cache folder.
    */
   public ValueSetCache(String cacheDir) {
+    this(cacheDir, new VsacConfig());
+  }
+
+  /**
+   * Initializes the cache with no credentials passed in. Note. initializeLoader function may find credentials in the environement variables.
+   *
+   * @param cacheDir Location of the ValueSet cache folder.
+   * @param vsacConfig VSAC endpoints and fetch settings.
+   */
+  public ValueSetCache(String cacheDir, VsacConfig vsacConfig) {
     this.fhirContext = ca.uhn.fhir.context.FhirContext.forR4();
+    this.vsacConfig = vsacConfig;
     this.initializeLoader();
     this.initializeCacheDir(cacheDir);
   }
@@ -66,7 +125,20 @@ public class ValueSetCache {
    * @param password UMLS/VSAC Password
    */
   public ValueSetCache(String cacheDir, String username, String password) {
+    this(cacheDir, username, password, new VsacConfig());
+  }
+
+  /**
+   * Initializes the cache with credentials passed in.
+   *
+   * @param cacheDir Location of the ValueSet cache folder.
+   * @param username UMLS/VSAC Username
+   * @param password UMLS/VSAC Password
+   * @param vsacConfig VSAC endpoints and fetch settings.
+   */
+  public ValueSetCache(String cacheDir, String username, String password, VsacConfig vsacConfig) {
     this.fhirContext = ca.uhn.fhir.context.FhirContext.forR4();
+    this.vsacConfig = vsacConfig;
     this.initializeLoader(username, password);
     this.initializeCacheDir(cacheDir);
   }
@@ -93,7 +165,7 @@ public class ValueSetCache {
    */
   private void initializeLoader(String username, String password) {
     try {
-      this.vsacLoader = new VSACLoader(username, password);
+      this.vsacLoader = new VSACLoader(username, password, vsacConfig);
       logger.info("VSACLoader sucessfully initialized.");
     } catch (VSACException e) {
       logger.error("Exception setting up VSACLoader. ValueSetCache will not be able to fetch valuesets.", e);
@@ -116,10 +188,11 @@ public class ValueSetCache {
         logger.error("Failed to create ValueSetCache directory at " + this.cacheDir.getAbsolutePath());
       }
     }
+    this.manifest = new ValueSetCacheManifest(this.cacheDir);
   }
 
   /**
-   * Wipe out the VSACLoader. This should be done before each reload of rulesets because the Ticket Granting Tickets are not eternal.
+   * Wipe out the VSACLoader. This is only needed when the credentials change, the loader refreshes its Ticket Granting Ticket itself.
    */
   private void clearLoader() {
     if (this.vsacLoader != null) {
@@ -134,11 +207,13 @@ public class ValueSetCache {
   }
 
   /**
-   * Reinitializes the loader if possible using environment variables.
+   * Initializes the loader if possible using environment variables, if there is no loader yet. An existing loader is kept
+   * since it refreshes its own tickets.
    */
   public void reinitializeLoader() {
-    this.clearLoader();
-    this.initializeLoader();
+    if (this.vsacLoader == null) {
+      this.initializeLoader();
+    }
   }
 
   /**
@@ -158,24 +233,194 @@ public class ValueSetCache {
    * @return true if sucessful, false if failed to fetch ValueSet.
    */
   public boolean fetchValueSet(String oid) {
-    // check if the valueset has already been loaded
-    FhirResourceCriteria criteria = new FhirResourceCriteria();
-    criteria.setFhirVersion("R4")
-        .setResourceType("valueset")
-        .setId("valueset/" + oid);
-    List<FhirResource> fhirResourceList = fhirResources.findById(criteria);
+    boolean success = fetchValueSetIfNotLoaded(oid);
+    flushFhirResources();
+    return success;
+  }
 
+  /**
+   * Fetch a ValueSet from VSAC or cache unless it has already been loaded. The FhirResource row is
+   * queued, flushFhirResources must be called to save it. Safe to call from several threads.
+   *
+   * @param oid The VSAC OID of the ValueSet to fetch.
+   * @return true if sucessful, false if failed to fetch ValueSet.
+   */
+  private boolean fetchValueSetIfNotLoaded(String oid) {
     // Skip fetching if it already has been loaded
-    if (!fhirResourceList.isEmpty()) {
+    if (isLoaded(oid)) {
       logger.info("ValueSet (" + oid + ") already loaded.");
       return true;
     }
 
-    // If the VSACLoader is initialized, attempt to fetch from VSAC. Otherwise fall back to cache dir.
+    synchronized (fetchLocks.computeIfAbsent(oid, key -> new Object())) {
+      // another thread may have loaded it while we waited
+      if (isLoaded(oid)) {
+        return true;
+      }
+
+      // If the VSACLoader is initialized, attempt to fetch from VSAC. Otherwise fall back to cache dir.
+      if (this.vsacLoader == null) {
+        return this.fetchValueSetFromCache(oid);
+      } else {
+        return this.fetchValueSetFromVSAC(oid);
+      }
+    }
+  }
+
+  /**
+   * Fetch a set of ValueSets from VSAC or cache and add them to the FhirResourceRepository. Duplicate
+   * and already loaded OIDs are skipped. The rest are fetched from VSAC in parallel, with retries.
+   *
+   * @param oids The VSAC OIDs of the ValueSets to fetch.
+   * @return The number of ValueSets that could not be fetched.
+   */
+  public int fetchValueSets(Collection<String> oids) {
+    List<String> toFetch = new ArrayList<>();
+    for (String oid : new LinkedHashSet<>(oids)) {
+      if (isLoaded(oid)) {
+        logger.info("ValueSet (" + oid + ") already loaded.");
+      } else {
+        toFetch.add(oid);
+      }
+    }
+    if (toFetch.isEmpty()) {
+      return 0;
+    }
+
+    int failed = 0;
     if (this.vsacLoader == null) {
-      return this.fetchValueSetFromCache(oid);
+      for (String oid : toFetch) {
+        if (!this.fetchValueSetIfNotLoaded(oid)) {
+          failed++;
+        }
+      }
+      flushFhirResources();
+      return failed;
+    }
+
+    int threads = Math.max(1, Math.min(vsacConfig.getFetchThreads(), toFetch.size()));
+    logger.info("Fetching " + toFetch.size() + " ValueSets from VSAC using " + threads + " threads");
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    // ValueSets still fresh in the cache folder do not need a ticket
+    int needTickets = 0;
+    for (String oid : toFetch) {
+      if (getFreshCacheEntry(oid) == null) {
+        needTickets++;
+      }
+    }
+    this.vsacLoader.prefetchTickets(needTickets);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (String oid : toFetch) {
+        results.add(executor.submit(() -> this.fetchValueSetIfNotLoaded(oid)));
+      }
+      for (Future<Boolean> result : results) {
+        try {
+          if (!result.get()) {
+            failed++;
+          }
+        } catch (ExecutionException e) {
+          logger.error("Failed to fetch ValueSet: " + e.getCause().getMessage(), e.getCause());
+          failed++;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      logger.error("Interrupted while fetching ValueSets from VSAC");
+    } finally {
+      executor.shutdownNow();
+      this.vsacLoader.endTicketPrefetch();
+    }
+    flushFhirResources();
+    return failed;
+  }
+
+  /**
+   * Gets the manifest entry of a ValueSet if it is in the cache folder and was fetched less than
+   * cacheMaxAge hours ago, so it does not need to be fetched from VSAC again.
+   *
+   * @param oid The VSAC OID of the ValueSet.
+   * @return The manifest entry, or null if the ValueSet has to be fetched.
+   */
+  private ValueSetCacheManifest.Entry getFreshCacheEntry(String oid) {
+    ValueSetCacheManifest.Entry cached = manifest.get(oid);
+    if (cached == null || !this.pathForOID(oid).isFile()) {
+      return null;
+    }
+    long maxAge = TimeUnit.HOURS.toMillis(vsacConfig.getCacheMaxAge());
+    return System.currentTimeMillis() - cached.getFetched() < maxAge ? cached : null;
+  }
+
+  /**
+   * Checks if a ValueSet has already been loaded since the last reload.
+   *
+   * @param oid The VSAC OID of the ValueSet.
+   * @return true if already loaded.
+   */
+  private boolean isLoaded(String oid) {
+    return loadedValueSets.containsKey(oid);
+  }
+
+  /**
+   * Saves the FhirResource rows of the ValueSets loaded since the last flush in one batch, along with
+   * the cache manifest.
+   */
+  public void flushFhirResources() {
+    List<FhirResource> rows = new ArrayList<>();
+    FhirResource row;
+    while ((row = pendingFhirResources.poll()) != null) {
+      rows.add(row);
+    }
+    if (rows.isEmpty()) {
+      return;
+    }
+    manifest.save();
+    if (this.fhirResources != null) {
+      fhirResources.saveAll(rows);
+      logger.info("Added " + rows.size() + " ValueSets to FhirResourceRepository");
     } else {
-      return this.fetchValueSetFromVSAC(oid);
+      logger.info("Cannot add to FhirResourceRepository, it wasn't provided");
+    }
+  }
+
+  /**
+   * Forgets which ValueSets have been loaded. Must be called whenever the FhirResourceRepository is cleared.
+   */
+  public void clearLoadedValueSets() {
+    loadedValueSets.clear();
+    pendingFhirResources.clear();
+  }
+
+  /**
+   * Fetches a ValueSet from VSAC, retrying with an exponential backoff on errors that may be temporary.
+   * ValueSets that do not exist and bad credentials are not retried.
+   *
+   * @param oid The VSAC OID of the ValueSet to fetch.
+   * @return The ValueSet.
+   * @throws VSACException If the ValueSet could not be fetched.
+   */
+  private ValueSet getValueSetWithRetries(String oid) throws VSACException {
+    int attempt = 0;
+    while (true) {
+      try {
+        return vsacLoader.getValueSet(oid);
+      } catch (VSACValueSetNotFoundException | VSACInvalidCredentialsException e) {
+        throw e;
+      } catch (VSACException e) {
+        if (attempt >= vsacConfig.getFetchRetries()) {
+          throw e;
+        }
+        long backoff = vsacConfig.getRetryBackoff() << attempt;
+        attempt++;
+        logger.warn("Failed to fetch ValueSet (" + oid + "), retry " + attempt + " in " + backoff + "ms: "
+            + e.getMessage());
+        try {
+          Thread.sleep(backoff);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
     }
   }
 
@@ -187,16 +432,23 @@ public class ValueSetCache {
    */
   private boolean fetchValueSetFromCache(String oid) {
     logger.warn("VSACLoader was not setup, possibly due to lack of credentials. ValueSets already in directory will be considered.");
-    File valueSetPath = new File(this.cacheDir, "ValueSet-R4-" + oid + ".json");
+    File valueSetPath = this.pathForOID(oid);
+
+    // the manifest has everything needed without parsing the file
+    ValueSetCacheManifest.Entry entry = manifest.get(oid);
+    if (entry != null && valueSetPath.isFile()) {
+      logger.info("ValueSet (" + oid + ") found in cache dir, will use.");
+      this.addValueSetToFhirResources(oid, entry.getName(), entry.getContentHash(), valueSetPath);
+      return true;
+    }
 
     try {
-      ValueSet valueSet = (ValueSet) this.fhirContext.newJsonParser().parseResource(new FileInputStream(valueSetPath));
-      // fix id, for some reason the parser adds 'ValueSet' on it
-      valueSet.setId(oid);
+      byte[] json = Files.readAllBytes(valueSetPath.toPath());
+      ValueSet valueSet = (ValueSet) this.fhirContext.newJsonParser().parseResource(new String(json, StandardCharsets.UTF_8));
       logger.info("ValueSet (" + oid + ") found in cache dir, will use.");
-      this.addValueSetToFhirResources(valueSet, valueSetPath);
+      this.addValueSetToFhirResources(oid, valueSet.getName(), DigestUtils.sha256Hex(json), valueSetPath);
       return true;
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       logger.error("ValueSet (" + oid + ") not found in cache dir. It will NOT be available!");
       return false;
     } catch (DataFormatException e) {
@@ -206,37 +458,82 @@ public class ValueSetCache {
   }
 
   /**
-   * Fetches a ValueSet from VSAC and adds it to the FhirResourceRepository. 
+   * Fetches a ValueSet from VSAC and adds it to the FhirResourceRepository. VSAC is not asked again for
+   * ValueSets fetched within the cacheMaxAge, and the cached file is kept if the version has not changed.
    * 
    * @param oid The VSAC OID of the ValueSet to fetch.
    * @return true if sucessfully fetched. Otherwise, false.
    */
   private boolean fetchValueSetFromVSAC(String oid) {
+    File valueSetPath = this.pathForOID(oid);
+    ValueSetCacheManifest.Entry fresh = getFreshCacheEntry(oid);
+    if (fresh != null) {
+      logger.info("ValueSet (" + oid + ") in cache dir is fresh, will use.");
+      this.addValueSetToFhirResources(oid, fresh.getName(), fresh.getContentHash(), valueSetPath);
+      return true;
+    }
+
+    ValueSetCacheManifest.Entry cached = manifest.get(oid);
+    if (cached != null && !valueSetPath.isFile()) {
+      cached = null;
+    }
+
     try {
-      ValueSet valueSet = vsacLoader.getValueSet(oid);
-      File valueSetPath = this.pathForOID(oid);
+      ValueSet valueSet = getValueSetWithRetries(oid);
 
-      if (valueSetPath.exists()) {
-        valueSetPath.delete();
-        logger.info("Replacing ValueSet (" + oid + ") in cache dir.");
+      ValueSetCacheManifest.Entry entry = new ValueSetCacheManifest.Entry();
+      entry.setVersion(valueSet.getVersion());
+      entry.setName(valueSet.getName());
+      entry.setFetched(System.currentTimeMillis());
+
+      if (cached != null && valueSet.getVersion() != null && valueSet.getVersion().equals(cached.getVersion())) {
+        logger.info("ValueSet (" + oid + ") version " + valueSet.getVersion() + " unchanged, keeping cached file.");
+        entry.setContentHash(cached.getContentHash());
+      } else {
+        entry.setContentHash(writeValueSet(valueSetPath, valueSet));
       }
 
-      try {
-        FileWriter jsonWriter = new FileWriter(valueSetPath);
-        this.fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToWriter(valueSet, jsonWriter);
-        jsonWriter.close();
-        this.addValueSetToFhirResources(valueSet, valueSetPath);
+      manifest.put(oid, entry);
+      this.addValueSetToFhirResources(oid, entry.getName(), entry.getContentHash(), valueSetPath);
+      return true;
+    } catch (IOException ioe) {
+      logger.error("Failed to save ValueSet (" + oid + ") to cache dir:", ioe);
+      return false;
+    } catch(VSACException e) {
+      if (cached != null) {
+        logger.warn("Failed to fetch ValueSet (" + oid + "), using the cached copy: " + e.getMessage());
+        this.addValueSetToFhirResources(oid, cached.getName(), cached.getContentHash(), valueSetPath);
         return true;
-      } catch (IOException ioe) {
-        logger.error("Failed to save ValueSet (" + oid + ") to cache dir:", ioe);
-        return false;
       }
-    } catch(VSACException e) {
       logger.error("Failed to fetch ValueSet (" + oid + "): " + e.getMessage(), e);
       return false;
     }
   }
 
+  /**
+   * Encodes a ValueSet straight into a file in the cache dir, hashing it on the way. The file is
+   * written through a temporary file so that a reader never sees it half written.
+   *
+   * @param path The file to write.
+   * @param valueSet The ValueSet to write.
+   * @return The hash of the file.
+   * @throws IOException If the file could not be written.
+   */
+  private String writeValueSet(File path, ValueSet valueSet) throws IOException {
+    File tempFile = File.createTempFile(path.getName(), ".tmp", this.cacheDir);
+    try {
+      MessageDigest digest = DigestUtils.getSha256Digest();
+      try (Writer writer = new OutputStreamWriter(new DigestOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile)), digest), StandardCharsets.UTF_8)) {
+        this.fhirContext.newJsonParser().encodeResourceToWriter(valueSet, writer);
+      }
+      Files.move(tempFile.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return Hex.encodeHexString(digest.digest());
+    } finally {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+
   /**
    * Helper function to turn a ValueSet oid into to the expected path of the ValueSet in the cache dir.
    * 
@@ -248,27 +545,27 @@ public class ValueSetCache {
   }
 
   /**
-   * Add a ValueSet to the FhirResourcesRepository.
+   * Add a ValueSet to the loaded ValueSets and queue its row for the FhirResourcesRepository.
    * 
-   * @param valueSet The ValueSet to add.
+   * @param oid The VSAC OID of the ValueSet.
+   * @param name The name of the ValueSet.
+   * @param contentHash Hash of the ValueSet file.
    * @param valueSetPath The path to the JSON file for this value set in the cache folder.
    */
-  private void addValueSetToFhirResources(ValueSet valueSet, File valueSetPath) {
-    if (this.fhirResources != null) {
-      // create a FhirResource and save it back to the table
-      FhirResource fhirResource = new FhirResource();
-      fhirResource.setId("valueset/" + valueSet.getId())
-          .setFhirVersion("R4")
-          .setResourceType("valueset")
-          .setTopic(VSAC_TOPIC)
-          .setFilename(valueSetPath.getName())
-          .setName(valueSet.getName())
-          .setUrl(valueSet.getUrl());
-      fhirResources.save(fhirResource);
-      logger.info("Added ValueSet (" + valueSet.getId() + ") to FhirResourceRepository");
-    } else {
-      logger.info("Cannot add to FhirResourceRepository, it wasn't provided");
-    }
+  private void addValueSetToFhirResources(String oid, String name, String contentHash, File valueSetPath) {
+    // create a FhirResource, it is saved back to the table by flushFhirResources
+    FhirResource fhirResource = new FhirResource();
+    fhirResource.setId("valueset/" + oid)
+        .setFhirVersion("R4")
+        .setResourceType("valueset")
+        .setTopic(VSAC_TOPIC)
+        .setFilename(valueSetPath.getName())
+        .setName(name)
+        .setUrl(VSAC_CANONICAL_BASE + oid)
+        .setContentHash(contentHash)
+        .setVerbatim(true);
+    loadedValueSets.put(oid, fhirResource);
+    pendingFhirResources.add(fhirResource);
   }
 
   /**
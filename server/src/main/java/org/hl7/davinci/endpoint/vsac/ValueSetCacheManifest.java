@@ -0,0 +1,103 @@
+package org.hl7.davinci.endpoint.vsac;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records what is known about each ValueSet in the cache folder (VSAC version, when it was fetched and
+ * the hash of the file) so that the ValueSetCache can decide if it needs to be fetched again. Stored as
+ * JSON next to the ValueSets.
+ */
+public class ValueSetCacheManifest {
+
+  public static final String FILENAME = "manifest.json";
+
+  static final Logger logger = LoggerFactory.getLogger(ValueSetCacheManifest.class);
+
+  private final File manifestFile;
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * Loads the manifest from the cache folder. A missing or unreadable manifest is treated as empty.
+   *
+   * @param cacheDir The ValueSet cache folder.
+   */
+  public ValueSetCacheManifest(File cacheDir) {
+    this.manifestFile = new File(cacheDir, FILENAME);
+    if (manifestFile.exists()) {
+      try {
+        Map<String, Entry> stored = objectMapper.readValue(manifestFile, new TypeReference<Map<String, Entry>>() {});
+        entries.putAll(stored);
+        logger.info("Loaded ValueSet cache manifest with " + entries.size() + " entries");
+      } catch (IOException e) {
+        logger.warn("Failed to read ValueSet cache manifest, all ValueSets will be fetched: " + e.getMessage());
+      }
+    }
+  }
+
+  public Entry get(String oid) {
+    return entries.get(oid);
+  }
+
+  public void put(String oid, Entry entry) {
+    entries.put(oid, entry);
+  }
+
+  /**
+   * Writes the manifest to the cache folder, replacing the previous one atomically.
+   */
+  public synchronized void save() {
+    File tempFile = null;
+    try {
+      tempFile = File.createTempFile(FILENAME, ".tmp", manifestFile.getParentFile());
+      objectMapper.writeValue(tempFile, entries);
+      Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("Failed to save ValueSet cache manifest: " + e.getMessage());
+    } finally {
+      // only still there if the write or the move failed
+      if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+        logger.warn("Failed to delete " + tempFile);
+      }
+    }
+  }
+
+  /**
+   * What is known about a single cached ValueSet.
+   */
+  public static class Entry {
+    private String version;
+    private String name;
+    private long fetched;
+    private String contentHash;
+
+    public String getVersion() { return version; }
+
+    public void setVersion(String version) { this.version = version; }
+
+    public String getName() { return name; }
+
+    public void setName(String name) { this.name = name; }
+
+    public long getFetched() { return fetched; }
+
+    public void setFetched(long fetched) { this.fetched = fetched; }
+
+    public String getContentHash() { return contentHash; }
+
+    public void setContentHash(String contentHash) { this.contentHash = contentHash; }
+  }
+}
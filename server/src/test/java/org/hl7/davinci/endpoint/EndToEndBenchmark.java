@@ -0,0 +1,278 @@
+package org.hl7.davinci.endpoint;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlMatching;
+import static org.junit.Assert.assertEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.test.context.junit4.SpringRunner;
+
+/**
+ * Boots the server with the localDb profile on the test CDS-Library and sends requests to the hook,
+ * Questionnaire and file endpoints at a few fixed concurrency levels. WireMock stands in for the EHR
+ * FHIR server, as in EndToEndRequestPrefetchTest. The latency percentiles and the bytes allocated
+ * per request are written as JSON so runs can be compared over time.
+ *
+ * <p>Not part of the test task, run it with gradle :server:endToEndBenchmark. System properties:
+ * <ul>
+ *   <li>benchmark.concurrency comma separated concurrency levels, default 1,4,16</li>
+ *   <li>benchmark.requests requests measured per target and level, default 2000</li>
+ *   <li>benchmark.warmup requests sent per target and level before measuring, default 500</li>
+ *   <li>benchmark.output file to write the results to, default build/end-to-end-benchmark.json</li>
+ * </ul>
+ *
+ * <p>The client, WireMock and the server share the JVM, so the numbers are for comparing runs on
+ * the same machine rather than for capacity planning. Allocations are counted on the Tomcat request
+ * threads and the HookExecutor threads that do the hook work, not on the client or WireMock threads.
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class, webEnvironment = WebEnvironment.RANDOM_PORT)
+public class EndToEndBenchmark {
+
+  static final Logger logger = LoggerFactory.getLogger(EndToEndBenchmark.class);
+
+  private static final String PREFETCH_URL_MATCHER = "\\/DeviceRequest\\?_id=123.*";
+
+  @Rule
+  public WireMockRule wireMockRule = new WireMockRule(9089);
+
+  @LocalServerPort
+  private int port;
+
+  private final com.sun.management.ThreadMXBean threads =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  private CloseableHttpClient client;
+
+  @Test
+  public void run() throws Exception {
+    int[] levels = levels(System.getProperty("benchmark.concurrency", "1,4,16"));
+    int requests = Integer.getInteger("benchmark.requests", 2000);
+    int warmup = Integer.getInteger("benchmark.warmup", 500);
+    String output = System.getProperty("benchmark.output", "build/end-to-end-benchmark.json");
+
+    stubFor(get(urlMatching(PREFETCH_URL_MATCHER))
+        .willReturn(aResponse()
+            .withStatus(200)
+            .withHeader("Content-Type", "application/json")
+            .withBody(read("deviceRequestPrefetchResponse_r4.json"))));
+
+    int maxLevel = 0;
+    for (int level : levels) {
+      maxLevel = Math.max(maxLevel, level);
+    }
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(maxLevel);
+    connectionManager.setDefaultMaxPerRoute(maxLevel);
+    client = HttpClients.custom().setConnectionManager(connectionManager).build();
+
+    Map<String, Object> results = new LinkedHashMap<>();
+    long errors = 0;
+    try {
+      for (Map.Entry<String, Supplier<HttpUriRequest>> target : targets().entrySet()) {
+        Map<String, Object> byLevel = new LinkedHashMap<>();
+        for (int level : levels) {
+          drive(target.getValue(), level, warmup);
+          Stats stats = drive(target.getValue(), level, requests);
+          byLevel.put(String.valueOf(level), stats.toMap());
+          errors += stats.errors.sum();
+        }
+        results.put(target.getKey(), byLevel);
+      }
+    } finally {
+      client.close();
+    }
+
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("timestamp", System.currentTimeMillis());
+    report.put("javaVersion", System.getProperty("java.version"));
+    report.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+    report.put("requests", requests);
+    report.put("warmup", warmup);
+    report.put("targets", results);
+    File file = new File(output);
+    new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(file, report);
+    logger.info("EndToEndBenchmark: results written to " + file.getAbsolutePath());
+
+    assertEquals("requests failed during the benchmark", 0, errors);
+  }
+
+  /**
+   * The requests to send, by name. The hook requests are built from the EndToEndRequestPrefetchTest
+   * fixtures, the order-review one without prefetch so it is hydrated from WireMock.
+   */
+  private Map<String, Supplier<HttpUriRequest>> targets() throws IOException {
+    String baseUrl = "http://localhost:" + port;
+    ObjectMapper mapper = new ObjectMapper();
+
+    ObjectNode orderSign = (ObjectNode) mapper.readTree(read("deviceRequestFullPrefetch_r4.json"));
+    orderSign.put("hook", "order-sign");
+    ObjectNode context = (ObjectNode) orderSign.get("context");
+    context.set("draftOrders", context.remove("orders"));
+    String orderSignBody = mapper.writeValueAsString(orderSign);
+    String hydratedBody = read("deviceRequestEmptyPrefetch_r4.json");
+
+    Map<String, Supplier<HttpUriRequest>> targets = new LinkedHashMap<>();
+    targets.put("order-sign", () -> post(baseUrl + "/r4/cds-services/order-sign-crd", orderSignBody));
+    targets.put("order-review-hydrated",
+        () -> post(baseUrl + "/r4/cds-services/order-review-crd", hydratedBody));
+    targets.put("questionnaire", () -> new HttpGet(baseUrl + "/fhir/R4/Questionnaire/HomeOxygenTherapy"));
+    targets.put("files-elm", () -> new HttpGet(baseUrl + "/files/Shared/R4/FHIRHelpers-4.0.0.cql"));
+    return targets;
+  }
+
+  private Stats drive(Supplier<HttpUriRequest> target, int concurrency, int requests)
+      throws InterruptedException {
+    Stats stats = new Stats();
+    AtomicInteger remaining = new AtomicInteger(requests);
+    ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+    Map<Long, Long> allocatedBefore = allocatedByServerThreads();
+    long start = System.nanoTime();
+    for (int i = 0; i < concurrency; i++) {
+      workers.execute(() -> {
+        while (remaining.getAndDecrement() > 0) {
+          send(target.get(), stats);
+        }
+      });
+    }
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.HOURS);
+    stats.nanos = System.nanoTime() - start;
+
+    long allocated = 0;
+    for (Map.Entry<Long, Long> thread : allocatedByServerThreads().entrySet()) {
+      allocated += thread.getValue() - allocatedBefore.getOrDefault(thread.getKey(), 0L);
+    }
+    stats.allocatedBytes = allocated;
+    return stats;
+  }
+
+  private void send(HttpUriRequest request, Stats stats) {
+    long start = System.nanoTime();
+    boolean error;
+    try (CloseableHttpResponse response = client.execute(request)) {
+      error = response.getStatusLine().getStatusCode() >= 300;
+      EntityUtils.consume(response.getEntity());
+    } catch (IOException e) {
+      error = true;
+    }
+    stats.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), error);
+  }
+
+  /**
+   * Bytes allocated so far by each of the Tomcat request threads and HookExecutor threads, by thread id.
+   */
+  private Map<Long, Long> allocatedByServerThreads() {
+    List<Long> ids = new ArrayList<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      String name = thread.getName();
+      if ((name.startsWith("http-nio-") && name.contains("-exec-")) || name.startsWith("hook-")) {
+        ids.add(thread.getId());
+      }
+    }
+    long[] idArray = ids.stream().mapToLong(Long::longValue).toArray();
+    long[] allocated = threads.getThreadAllocatedBytes(idArray);
+    Map<Long, Long> byThread = new HashMap<>();
+    for (int i = 0; i < idArray.length; i++) {
+      if (allocated[i] >= 0) {
+        byThread.put(idArray[i], allocated[i]);
+      }
+    }
+    return byThread;
+  }
+
+  private static HttpPost post(String url, String body) {
+    HttpPost post = new HttpPost(url);
+    post.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+    post.setHeader("Accept", "application/json");
+    return post;
+  }
+
+  private static String read(String resource) throws IOException {
+    return FileUtils.readFileToString(new ClassPathResource(resource).getFile(), Charset.defaultCharset());
+  }
+
+  private static int[] levels(String property) {
+    String[] parts = property.split(",");
+    int[] levels = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      levels[i] = Integer.parseInt(parts[i].trim());
+    }
+    return levels;
+  }
+
+  private static class Stats {
+    // latencies in microseconds, resized as needed
+    private final Histogram latency = new ConcurrentHistogram(3);
+    private final LongAdder errors = new LongAdder();
+    private long nanos;
+    private long allocatedBytes;
+
+    private void record(long micros, boolean error) {
+      latency.recordValue(micros);
+      if (error) {
+        errors.increment();
+      }
+    }
+
+    private Map<String, Object> toMap() {
+      Map<String, Object> map = new LinkedHashMap<>();
+      long requests = latency.getTotalCount();
+      map.put("requests", requests);
+      map.put("errors", errors.sum());
+      map.put("throughput", requests / (nanos / 1e9));
+      Map<String, Object> millis = new LinkedHashMap<>();
+      millis.put("mean", latency.getMean() / 1000);
+      millis.put("p50", latency.getValueAtPercentile(50) / 1000.0);
+      millis.put("p99", latency.getValueAtPercentile(99) / 1000.0);
+      millis.put("p99.9", latency.getValueAtPercentile(99.9) / 1000.0);
+      millis.put("max", latency.getMaxValue() / 1000.0);
+      map.put("latencyMillis", millis);
+      map.put("allocatedBytesPerRequest", requests == 0 ? 0 : allocatedBytes / requests);
+      return map;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package org.hl7.davinci.endpoint;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.hl7.davinci.endpoint.JtiReplayCache.Result;
+import org.junit.jupiter.api.Test;
+
+public class JtiReplayCacheTest {
+
+  private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+  @Test
+  public void testReplaysAreRejected() {
+    JtiReplayCache cache = new JtiReplayCache(TimeUnit.SECONDS.toMillis(30), 10 * MINUTE, 1024);
+    long now = 1_000_000_000L;
+
+    assertEquals(Result.ADDED, cache.add("ehr", "jti-1", now + 5 * MINUTE, now));
+    assertEquals(Result.REPLAYED, cache.add("ehr", "jti-1", now + 5 * MINUTE, now + MINUTE));
+    assertEquals(Result.ADDED, cache.add("ehr", "jti-2", now + 5 * MINUTE, now));
+    assertEquals(Result.ADDED, cache.add("other-ehr", "jti-1", now + 5 * MINUTE, now));
+
+    // remembered right up to the end of the window
+    assertEquals(Result.ADDED, cache.add("ehr", "jti-3", now + 10 * MINUTE, now));
+    assertEquals(Result.REPLAYED, cache.add("ehr", "jti-3", now + 10 * MINUTE, now + 10 * MINUTE - 1));
+  }
+
+  @Test
+  public void testTokensExpiringPastTheWindowAreRejected() {
+    JtiReplayCache cache = new JtiReplayCache(TimeUnit.SECONDS.toMillis(30), 10 * MINUTE, 1024);
+    long now = 1_000_000_000L;
+
+    assertEquals(Result.EXPIRES_TOO_LATE, cache.add("ehr", "jti-1", now + 60 * MINUTE, now));
+    assertEquals(Result.EXPIRES_TOO_LATE, cache.add("ehr", "jti-1", now + 60 * MINUTE, now + 11 * MINUTE));
+    // accepted once it is inside the window, and only once
+    assertEquals(Result.ADDED, cache.add("ehr", "jti-1", now + 60 * MINUTE, now + 50 * MINUTE));
+    assertEquals(Result.REPLAYED, cache.add("ehr", "jti-1", now + 60 * MINUTE, now + 59 * MINUTE));
+  }
+
+  @Test
+  public void testFullBucketsAreReported() {
+    JtiReplayCache cache = new JtiReplayCache(TimeUnit.SECONDS.toMillis(30), 10 * MINUTE, 64);
+    long now = 1_000_000_000L;
+
+    for (int i = 0; i < 64; i++) {
+      assertEquals(Result.ADDED, cache.add("ehr", "jti-" + i, now + 5 * MINUTE, now));
+    }
+    assertEquals(Result.FULL, cache.add("ehr", "jti-64", now + 5 * MINUTE, now));
+    // a different slice of time has room
+    assertEquals(Result.ADDED, cache.add("ehr", "jti-64", now + 6 * MINUTE, now));
+  }
+
+  @Test
+  public void testBucketsAreReused() {
+    JtiReplayCache cache = new JtiReplayCache(TimeUnit.SECONDS.toMillis(30), 10 * MINUTE, 64);
+    long now = 1_000_000_000L;
+
+    for (int i = 0; i < 1000; i++) {
+      long later = now + i * MINUTE;
+      assertEquals(Result.ADDED, cache.add("ehr", "jti-" + i, later + 5 * MINUTE, later));
+      assertEquals(Result.REPLAYED, cache.add("ehr", "jti-" + i, later + 5 * MINUTE, later));
+    }
+  }
+}
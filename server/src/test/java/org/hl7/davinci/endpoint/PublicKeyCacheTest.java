@@ -0,0 +1,54 @@
+package org.hl7.davinci.endpoint;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Base64;
+import java.util.Optional;
+import org.hl7.davinci.endpoint.database.PublicKey;
+import org.hl7.davinci.endpoint.database.PublicKeyRepository;
+import org.junit.jupiter.api.Test;
+
+public class PublicKeyCacheTest {
+
+  private static String toJwk(RSAPublicKey key) {
+    Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    return "{\"kty\":\"RSA\",\"n\":\"" + encoder.encodeToString(key.getModulus().toByteArray())
+        + "\",\"e\":\"" + encoder.encodeToString(key.getPublicExponent().toByteArray()) + "\"}";
+  }
+
+  @Test
+  public void testKeysAreCached() throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    RSAPublicKey rsaKey = (RSAPublicKey) generator.generateKeyPair().getPublic();
+
+    PublicKey stored = new PublicKey();
+    stored.setId("kid-1");
+    stored.setKey(toJwk(rsaKey));
+    PublicKeyRepository repository = mock(PublicKeyRepository.class);
+    when(repository.findById("kid-1")).thenReturn(Optional.of(stored));
+    when(repository.findById("kid-2")).thenReturn(Optional.empty());
+
+    PublicKeyCache cache = new PublicKeyCache(repository, null);
+
+    assertEquals(rsaKey, cache.getKey("kid-1", null));
+    assertEquals(rsaKey, cache.getKey("kid-1", null));
+    verify(repository, times(1)).findById("kid-1");
+
+    // missing keys are remembered too
+    assertNull(cache.getKey("kid-2", null));
+    assertNull(cache.getKey("kid-2", null));
+    verify(repository, times(1)).findById("kid-2");
+
+    cache.invalidate("kid-1");
+    assertEquals(rsaKey, cache.getKey("kid-1", null));
+    verify(repository, times(2)).findById("kid-1");
+  }
+}
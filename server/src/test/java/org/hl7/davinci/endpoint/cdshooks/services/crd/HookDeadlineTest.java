@@ -0,0 +1,71 @@
+package org.hl7.davinci.endpoint.cdshooks.services.crd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.cdshooks.Card;
+import org.cdshooks.CdsResponse;
+import org.hl7.davinci.endpoint.components.CardBuilder;
+import org.junit.jupiter.api.Test;
+
+public class HookDeadlineTest {
+
+  @Test
+  public void testNoDeadlineNeverPasses() {
+    HookDeadline deadline = HookDeadline.none();
+    assertFalse(deadline.hasPassed());
+    assertEquals(Long.MAX_VALUE, deadline.remainingMillis());
+  }
+
+  @Test
+  public void testDeadlinePasses() throws InterruptedException {
+    HookDeadline deadline = new HookDeadline(1);
+    Thread.sleep(5);
+    assertTrue(deadline.hasPassed());
+    assertEquals(0, deadline.remainingMillis());
+  }
+
+  @Test
+  public void testCardsSoFarWithIncompleteCard() {
+    HookDeadline deadline = new HookDeadline(1000);
+    deadline.addCard(CardBuilder.summaryCard("Home Oxygen Therapy: Documentation Required."));
+    assertEquals(1, deadline.toResponse().getCards().size());
+
+    deadline.incomplete("prefetch deviceRequestBundle");
+    deadline.incomplete("rule HospitalBeds");
+    CdsResponse response = deadline.toResponse();
+    assertEquals(2, response.getCards().size());
+    Card incomplete = response.getCards().get(1);
+    assertEquals(Card.IndicatorEnum.WARNING, incomplete.getIndicator());
+    assertEquals("Not finished in time: prefetch deviceRequestBundle, rule HospitalBeds.", incomplete.getDetail());
+    assertEquals("Incomplete after 1000ms: prefetch deviceRequestBundle, rule HospitalBeds",
+        deadline.describeIncomplete());
+  }
+
+  @Test
+  public void testRespondAtDeadlineNotesTheStage() {
+    HookDeadline deadline = new HookDeadline(1000);
+    deadline.enter("rule HomeOxygenTherapy");
+    CdsResponse response = deadline.respondAtDeadline();
+    assertEquals("Not finished in time: rule HomeOxygenTherapy.", response.getCards().get(0).getDetail());
+    // skipped later by the request itself
+    deadline.incomplete("rule HomeOxygenTherapy");
+    deadline.incomplete("rule HospitalBeds");
+    assertEquals("Incomplete after 1000ms: rule HomeOxygenTherapy, rule HospitalBeds", deadline.describeIncomplete());
+  }
+
+  @Test
+  public void testRespondAtDeadlineDuringPrefetch() {
+    HookDeadline deadline = new HookDeadline(1000);
+    deadline.enter("prefetch");
+    deadline.incomplete("prefetch deviceRequestBundle");
+    deadline.respondAtDeadline();
+    assertEquals("Incomplete after 1000ms: prefetch deviceRequestBundle", deadline.describeIncomplete());
+
+    deadline = new HookDeadline(1000);
+    deadline.enter("prefetch");
+    deadline.respondAtDeadline();
+    assertEquals("Incomplete after 1000ms: prefetch", deadline.describeIncomplete());
+  }
+}
@@ -0,0 +1,166 @@
+package org.hl7.davinci.endpoint.cdshooks.services.crd;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import org.cdshooks.Card;
+import org.cdshooks.CdsResponse;
+import org.cdshooks.Hook;
+import org.hl7.davinci.endpoint.components.CardBuilder;
+import org.hl7.davinci.endpoint.config.YamlConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncManager;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+public class HookExecutorTest {
+
+  private HookExecutor hookExecutor;
+
+  @AfterEach
+  public void shutdown() {
+    if (hookExecutor != null) {
+      hookExecutor.shutdown();
+    }
+  }
+
+  private HookExecutor hookExecutor(int cqlQueue, long timeout) {
+    YamlConfig config = new YamlConfig();
+    config.getHooks().setCqlThreads(1);
+    config.getHooks().setCqlQueue(cqlQueue);
+    config.getHooks().setIoThreads(1);
+    config.getHooks().setTimeout(Collections.singletonMap("default", timeout));
+    hookExecutor = new HookExecutor(config);
+    return hookExecutor;
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static CdsService service() {
+    CdsService service = mock(CdsService.class);
+    service.id = "order-sign-crd";
+    service.hook = Hook.ORDER_SIGN;
+    return service;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static DeferredResult<CdsResponse> submit(HookExecutor executor, CdsService service) {
+    return executor.submit(service, null, null);
+  }
+
+  /**
+   * Starts async processing of the result the way Spring MVC does for a controller returning it.
+   */
+  private static MockAsyncContext startAsync(DeferredResult<CdsResponse> result) throws Exception {
+    MockHttpServletRequest request = new MockHttpServletRequest();
+    request.setAsyncSupported(true);
+    WebAsyncManager asyncManager = WebAsyncUtils.getAsyncManager(request);
+    asyncManager.setAsyncWebRequest(new StandardServletAsyncWebRequest(request, new MockHttpServletResponse()));
+    asyncManager.startDeferredResultProcessing(result);
+    return (MockAsyncContext) request.getAsyncContext();
+  }
+
+  @Test
+  public void testBusyCardWhenCqlQueueIsFull() throws Exception {
+    HookExecutor executor = hookExecutor(1, 10000);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      // one request running and one waiting fill the pool
+      for (int i = 0; i < 2; i++) {
+        executor.getCqlExecutor().execute(() -> {
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+      }
+
+      CdsService service = service();
+      when(service.handleRequestAsync(any(), any(), any())).thenAnswer(invocation -> CompletableFuture
+          .completedFuture(null)
+          .thenApplyAsync(ignored -> new CdsResponse(), executor.getCqlExecutor()));
+
+      DeferredResult<CdsResponse> result = submit(executor, service);
+      assertTrue(result.hasResult());
+      CdsResponse response = (CdsResponse) result.getResult();
+      assertEquals(1, response.getCards().size());
+      assertEquals(HookExecutor.BUSY_SUMMARY, response.getCards().get(0).getSummary());
+    } finally {
+      release.countDown();
+    }
+  }
+
+  @Test
+  public void testCardsSoFarAndIncompleteCardAtTimeout() throws Exception {
+    HookExecutor executor = hookExecutor(1, 200);
+    CdsService service = service();
+    when(service.handleRequestAsync(any(), any(), any())).thenAnswer(invocation -> {
+      HookDeadline deadline = invocation.getArgument(2);
+      deadline.addCard(CardBuilder.summaryCard("Home Oxygen Therapy: Documentation Required."));
+      deadline.enter("rule HospitalBeds");
+      // still being worked on when the deadline passes
+      return new CompletableFuture<CdsResponse>();
+    });
+
+    DeferredResult<CdsResponse> result = submit(executor, service);
+    MockAsyncContext asyncContext = startAsync(result);
+    assertEquals(200L, asyncContext.getTimeout());
+    assertFalse(result.hasResult());
+
+    for (AsyncListener listener : asyncContext.getListeners()) {
+      listener.onTimeout(new AsyncEvent(asyncContext));
+    }
+
+    assertTrue(result.hasResult());
+    CdsResponse response = (CdsResponse) result.getResult();
+    assertEquals(2, response.getCards().size());
+    assertEquals("Home Oxygen Therapy: Documentation Required.", response.getCards().get(0).getSummary());
+    assertEquals(Card.IndicatorEnum.WARNING, response.getCards().get(1).getIndicator());
+    assertEquals("Not finished in time: rule HospitalBeds.", response.getCards().get(1).getDetail());
+  }
+
+  @Test
+  public void testNoAsyncTimeoutWithoutDeadline() throws Exception {
+    HookExecutor executor = hookExecutor(1, 0);
+    CdsService service = service();
+    CompletableFuture<CdsResponse> future = new CompletableFuture<>();
+    when(service.handleRequestAsync(any(), any(), any())).thenReturn(future);
+
+    DeferredResult<CdsResponse> result = submit(executor, service);
+    assertEquals(0L, startAsync(result).getTimeout());
+
+    CdsResponse response = new CdsResponse();
+    future.complete(response);
+    assertSame(response, result.getResult());
+  }
+
+  @Test
+  public void testFailureIsPassedOn() throws Exception {
+    HookExecutor executor = hookExecutor(1, 10000);
+    CdsService service = service();
+    CompletableFuture<CdsResponse> future = new CompletableFuture<>();
+    when(service.handleRequestAsync(any(), any(), any())).thenReturn(future);
+
+    DeferredResult<CdsResponse> result = submit(executor, service);
+    IllegalStateException failure = new IllegalStateException("rule failed");
+    // failures of the later stages arrive wrapped
+    future.completeExceptionally(new CompletionException(failure));
+    assertSame(failure, result.getResult());
+  }
+}
@@ -0,0 +1,180 @@
+package org.hl7.davinci.endpoint.controllers;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.File;
+import java.util.Arrays;
+import org.apache.commons.io.FileUtils;
+import org.hl7.davinci.endpoint.Application;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+@RunWith(SpringRunner.class)
+@AutoConfigureMockMvc
+@SpringBootTest(classes = Application.class,
+    properties = {"cacheControl.default=no-cache", "cacheControl.files=max-age=60"})
+public class DataControllerTest {
+
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  private static final String FILES_PATH = "src/test/resources/CDS-Library/Shared/R4/files/";
+  private static final String LARGE_FILE = "SendfileTest.txt";
+  private static final int LARGE_FILE_SIZE = 64 * 1024;
+  private static final String SMALL_FILE = "/files/Shared/R4/FHIRHelpers-4.0.0.cql";
+  private static final String QUESTIONNAIRE = "/fhir/R4/Questionnaire/HomeOxygenTherapy";
+
+  @Autowired
+  private MockMvc mockMvc;
+
+  private File largeFile;
+
+  @Before
+  public void createLargeFile() throws Exception {
+    // files are read from the files folder when they are requested, so it does not need a reload
+    largeFile = new File(FILES_PATH + LARGE_FILE);
+    byte[] data = new byte[LARGE_FILE_SIZE];
+    Arrays.fill(data, (byte) 'a');
+    FileUtils.writeByteArrayToFile(largeFile, data);
+  }
+
+  @After
+  public void deleteLargeFile() {
+    FileUtils.deleteQuietly(largeFile);
+  }
+
+  @Test
+  public void sendsLargeFileWithSendfileWhenGzipIsAccepted() throws Exception {
+    mockMvc.perform(get("/files/Shared/R4/" + LARGE_FILE).param("noconvert", "true")
+        .requestAttr(SENDFILE_SUPPORT, Boolean.TRUE)
+        .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate"))
+        .andExpect(status().isOk())
+        .andExpect(request().attribute(SENDFILE_FILENAME, largeFile.getCanonicalPath()))
+        .andExpect(request().attribute(SENDFILE_START, 0L))
+        .andExpect(request().attribute(SENDFILE_END, (long) LARGE_FILE_SIZE))
+        .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+        .andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, LARGE_FILE_SIZE))
+        .andExpect(header().exists(HttpHeaders.ETAG))
+        .andExpect(content().bytes(new byte[0]));
+  }
+
+  @Test
+  public void copiesLargeFileWithoutSendfileSupport() throws Exception {
+    mockMvc.perform(get("/files/Shared/R4/" + LARGE_FILE).param("noconvert", "true")
+        .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+        .andExpect(status().isOk())
+        .andExpect(request().attribute(SENDFILE_FILENAME, (Object) null))
+        .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+        .andExpect(content().bytes(FileUtils.readFileToByteArray(largeFile)));
+  }
+
+  @Test
+  public void sendsGzipVariantOfSmallFile() throws Exception {
+    String etag = mockMvc.perform(get(SMALL_FILE).param("noconvert", "true"))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+        .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+        .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+    // the gzip variant is a different representation, so it gets its own ETag
+    String gzipEtag = etag.substring(0, etag.length() - 1) + "-gzip\"";
+    mockMvc.perform(get(SMALL_FILE).param("noconvert", "true")
+        .requestAttr(SENDFILE_SUPPORT, Boolean.TRUE)
+        .header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+        .andExpect(status().isOk())
+        .andExpect(request().attribute(SENDFILE_FILENAME, (Object) null))
+        .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"))
+        .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+        .andExpect(header().string(HttpHeaders.ETAG, gzipEtag));
+
+    mockMvc.perform(get(SMALL_FILE).param("noconvert", "true")
+        .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+        .header(HttpHeaders.IF_NONE_MATCH, gzipEtag))
+        .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void doesNotSendGzipVariantWhenGzipIsRefused() throws Exception {
+    mockMvc.perform(get(SMALL_FILE).param("noconvert", "true")
+        .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, deflate"))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING))
+        .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING));
+  }
+
+  @Test
+  public void answersConditionalGetForFileWithNotModified() throws Exception {
+    MockHttpServletResponse response = mockMvc.perform(get(SMALL_FILE).param("noconvert", "true"))
+        .andExpect(status().isOk())
+        .andExpect(header().exists(HttpHeaders.ETAG))
+        .andExpect(header().exists(HttpHeaders.LAST_MODIFIED))
+        .andReturn().getResponse();
+
+    mockMvc.perform(get(SMALL_FILE).param("noconvert", "true")
+        .header(HttpHeaders.IF_NONE_MATCH, response.getHeader(HttpHeaders.ETAG)))
+        .andExpect(status().isNotModified())
+        .andExpect(content().bytes(new byte[0]));
+    mockMvc.perform(get(SMALL_FILE).param("noconvert", "true")
+        .header(HttpHeaders.IF_MODIFIED_SINCE, response.getHeader(HttpHeaders.LAST_MODIFIED)))
+        .andExpect(status().isNotModified())
+        .andExpect(content().bytes(new byte[0]));
+    mockMvc.perform(get(SMALL_FILE).param("noconvert", "true")
+        .header(HttpHeaders.IF_NONE_MATCH, "\"stale\""))
+        .andExpect(status().isOk());
+  }
+
+  @Test
+  public void answersConditionalGetForFhirResourceWithNotModified() throws Exception {
+    MockHttpServletResponse response = mockMvc.perform(get(QUESTIONNAIRE))
+        .andExpect(status().isOk())
+        .andExpect(header().exists(HttpHeaders.ETAG))
+        .andExpect(header().exists(HttpHeaders.LAST_MODIFIED))
+        .andReturn().getResponse();
+
+    mockMvc.perform(get(QUESTIONNAIRE)
+        .header(HttpHeaders.IF_NONE_MATCH, response.getHeader(HttpHeaders.ETAG)))
+        .andExpect(status().isNotModified());
+    mockMvc.perform(get(QUESTIONNAIRE)
+        .header(HttpHeaders.IF_MODIFIED_SINCE, response.getHeader(HttpHeaders.LAST_MODIFIED)))
+        .andExpect(status().isNotModified());
+  }
+
+  @Test
+  public void setsConfiguredCacheControl() throws Exception {
+    mockMvc.perform(get(SMALL_FILE).param("noconvert", "true"))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=60"));
+    // no entry for questionnaire, so the default is used
+    mockMvc.perform(get(QUESTIONNAIRE))
+        .andExpect(status().isOk())
+        .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"));
+  }
+
+  @Test
+  public void answersConditionalGetForLargeFileWithNotModified() throws Exception {
+    String etag = mockMvc.perform(get("/files/Shared/R4/" + LARGE_FILE).param("noconvert", "true"))
+        .andExpect(status().isOk())
+        .andReturn().getResponse().getHeader(HttpHeaders.ETAG);
+
+    mockMvc.perform(get("/files/Shared/R4/" + LARGE_FILE).param("noconvert", "true")
+        .requestAttr(SENDFILE_SUPPORT, Boolean.TRUE)
+        .header(HttpHeaders.IF_NONE_MATCH, etag))
+        .andExpect(status().isNotModified())
+        .andExpect(request().attribute(SENDFILE_FILENAME, (Object) null));
+  }
+}
@@ -0,0 +1,41 @@
+package org.hl7.davinci.endpoint.files.github;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.junit.jupiter.api.Test;
+
+public class GitHubSnapshotTest {
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testSnapshot() {
+    GitHubSnapshot snapshot = GitHubSnapshot.builder()
+        .addFile("HomeOxygenTherapy/R4/files/HomeOxygenTherapyRule-0.1.0.cql", bytes("rule"))
+        .addFile("HomeOxygenTherapy/R4/files/HomeOxygenTherapyPrepopulation-0.1.0.cql", bytes("prepopulation"))
+        .addFile("HomeOxygenTherapy/R4/resources/Questionnaire-R4-HomeOxygenTherapy.json", bytes("{}"))
+        .addFile("Shared/R4/files/FHIRHelpers-4.0.0.cql", bytes("helpers"))
+        .build();
+
+    assertArrayEquals(bytes("{}"),
+        snapshot.getFile("HomeOxygenTherapy/R4/resources/Questionnaire-R4-HomeOxygenTherapy.json"));
+    assertNull(snapshot.getFile("HomeOxygenTherapy/STU3/files/HomeOxygenTherapyRule-0.1.0.cql"));
+    assertEquals(Arrays.asList("HomeOxygenTherapyPrepopulation-0.1.0.cql", "HomeOxygenTherapyRule-0.1.0.cql"),
+        snapshot.getDirectory("HomeOxygenTherapy/R4/files/"));
+    assertTrue(snapshot.getDirectory("Missing/R4/files").isEmpty());
+
+    HashMap<String, byte[]> cqlFiles = snapshot.getCqlFiles("HomeOxygenTherapy", "R4");
+    assertEquals(2, cqlFiles.size());
+    assertArrayEquals(bytes("rule"), cqlFiles.get("HomeOxygenTherapyRule-0.1.0.cql"));
+    assertArrayEquals(bytes("helpers"), cqlFiles.get("FHIRHelpers-4.0.0.cql"));
+    assertTrue(snapshot.getCqlFiles("HomeOxygenTherapy", "STU3").isEmpty());
+  }
+}
@@ -0,0 +1,90 @@
+package org.hl7.davinci.endpoint.terminology;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.junit.jupiter.api.Test;
+
+public class ValueSetExpansionStoreTest {
+
+  private static final String HCPCS = "https://bluebutton.cms.gov/resources/codesystem/hcpcs";
+  private static final String ICD10 = "http://hl7.org/fhir/sid/icd-10-cm";
+
+  private static ValueSet valueSet(String url, int codes) {
+    ValueSet valueSet = new ValueSet();
+    valueSet.setUrl(url);
+    ValueSetExpansionComponent expansion = valueSet.getExpansion();
+    for (int i = 0; i < codes; i++) {
+      expansion.addContains().setSystem(HCPCS).setCode("E" + i).setDisplay("Code " + i);
+    }
+    // same code in a second system
+    expansion.addContains().setSystem(ICD10).setCode("E0").setDisplay("Other E0");
+    return valueSet;
+  }
+
+  @Test
+  public void testLookups() throws IOException {
+    File folder = Files.createTempDirectory("expansions").toFile();
+    ValueSetExpansionStore store = ValueSetExpansionStore.builder()
+        .addValueSet(Arrays.asList("valueset/small", "http://example.org/ValueSet/small"), valueSet("small", 3))
+        .addValueSet(Arrays.asList("valueset/large"), valueSet("large", 10000))
+        .build(folder);
+
+    assertEquals(4, store.size("valueset/small"));
+    assertEquals(4, store.size("http://example.org/ValueSet/small"));
+    assertEquals(10001, store.size("valueset/large"));
+    assertEquals(-1, store.size("valueset/missing"));
+
+    assertTrue(store.hasCode("valueset/large", HCPCS, "E9999"));
+    assertTrue(store.hasCode("valueset/large", ICD10, "E0"));
+    assertTrue(store.hasCode("valueset/small", null, "E2"));
+    assertFalse(store.hasCode("valueset/small", ICD10, "E1"));
+    assertFalse(store.hasCode("valueset/small", HCPCS, "E3"));
+    assertFalse(store.hasCode("valueset/missing", HCPCS, "E0"));
+
+    ValueSetExpansionStore.Concept concept = store.getConcept("valueset/small", 1);
+    assertEquals(HCPCS, concept.getSystem());
+    assertEquals("E1", concept.getCode());
+    assertEquals("Code 1", concept.getDisplay());
+    assertNull(concept.getVersion());
+    assertNull(store.getConcept("valueset/small", 4));
+
+    store.close();
+    folder.delete();
+  }
+
+  @Test
+  public void testExpand() throws IOException {
+    File folder = Files.createTempDirectory("expansions").toFile();
+    ValueSetExpansionStore store = ValueSetExpansionStore.builder()
+        .addValueSet(Arrays.asList("valueset/large"), valueSet("large", 100))
+        .build(folder);
+
+    ValueSetExpansionComponent page = store.expand("valueset/large", null, 10, 5).getExpansion();
+    assertEquals(101, page.getTotal());
+    assertEquals(10, page.getOffset());
+    assertEquals(5, page.getContains().size());
+    assertEquals("E10", page.getContains().get(0).getCode());
+
+    // matches E1 and E10-E19, case insensitive
+    ValueSetExpansionComponent filtered = store.expand("valueset/large", "e1", 0, null).getExpansion();
+    assertEquals(11, filtered.getTotal());
+    assertEquals(11, filtered.getContains().size());
+    filtered = store.expand("valueset/large", "OTHER", 0, 10).getExpansion();
+    assertEquals(1, filtered.getTotal());
+    assertEquals(ICD10, filtered.getContains().get(0).getSystem());
+
+    assertNull(store.expand("valueset/missing", null, 0, 10));
+
+    store.close();
+    folder.delete();
+  }
+}
@@ -0,0 +1,107 @@
+package org.hl7.davinci.endpoint.vsac;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.findAll;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.postRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.assertEquals;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class VSACTicketManagerTest {
+
+  private static final String AUTH_PATH = "/vsac/ws/Ticket";
+
+  private static final long AWAIT_MILLIS = 5000;
+
+  @Rule
+  public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+  private CloseableHttpClient client = HttpClients.createDefault();
+
+  private VSACTicketManager ticketManager;
+
+  @After
+  public void close() throws Exception {
+    if (ticketManager != null) {
+      ticketManager.close();
+    }
+    client.close();
+  }
+
+  private VSACTicketManager ticketManager(long refreshInterval, int maxPrefetch) throws Exception {
+    ticketManager = new VSACTicketManager(client, "http://localhost:" + wireMockRule.port() + AUTH_PATH,
+        "user", "password", refreshInterval, maxPrefetch);
+    return ticketManager;
+  }
+
+  /**
+   * Waits for the background prefetches to have requested the given number of service tickets.
+   */
+  private static void awaitServiceTicketRequests(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + AWAIT_MILLIS;
+    while (findAll(postRequestedFor(urlEqualTo(AUTH_PATH + "/TGT-1"))).size() < count
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void requestsNewTgtWhenRejected() throws Exception {
+    stubFor(post(urlEqualTo(AUTH_PATH)).inScenario("tgt").whenScenarioStateIs(Scenario.STARTED)
+        .willReturn(aResponse().withStatus(200).withBody("TGT-1")).willSetStateTo("expired"));
+    stubFor(post(urlEqualTo(AUTH_PATH)).inScenario("tgt").whenScenarioStateIs("expired")
+        .willReturn(aResponse().withStatus(200).withBody("TGT-2")));
+    stubFor(post(urlEqualTo(AUTH_PATH + "/TGT-1")).willReturn(aResponse().withStatus(401)));
+    stubFor(post(urlEqualTo(AUTH_PATH + "/TGT-2")).willReturn(aResponse().withStatus(200).withBody("ST-2")));
+
+    VSACTicketManager manager = ticketManager(60000, 0);
+
+    assertEquals("ST-2", manager.getServiceTicket());
+    assertEquals("TGT-2", manager.getTicketGrantingTicket());
+    verify(2, postRequestedFor(urlEqualTo(AUTH_PATH)));
+  }
+
+  @Test
+  public void refreshesTgtAfterInterval() throws Exception {
+    stubFor(post(urlEqualTo(AUTH_PATH)).willReturn(aResponse().withStatus(200).withBody("TGT-1")));
+    stubFor(post(urlEqualTo(AUTH_PATH + "/TGT-1")).willReturn(aResponse().withStatus(200).withBody("ST-1")));
+
+    VSACTicketManager manager = ticketManager(0, 0);
+    manager.getServiceTicket();
+
+    verify(2, postRequestedFor(urlEqualTo(AUTH_PATH)));
+  }
+
+  @Test
+  public void usesPrefetchedTickets() throws Exception {
+    stubFor(post(urlEqualTo(AUTH_PATH)).willReturn(aResponse().withStatus(200).withBody("TGT-1")));
+    stubFor(post(urlEqualTo(AUTH_PATH + "/TGT-1")).willReturn(aResponse().withStatus(200).withBody("ST-1")));
+
+    VSACTicketManager manager = ticketManager(60000, 2);
+    manager.prefetch(5);
+    awaitServiceTicketRequests(2);
+    verify(2, postRequestedFor(urlEqualTo(AUTH_PATH + "/TGT-1")));
+
+    // topped up as they are taken, but never past the 5 expected
+    for (int i = 0; i < 5; i++) {
+      manager.getServiceTicket();
+    }
+    awaitServiceTicketRequests(5);
+    verify(5, postRequestedFor(urlEqualTo(AUTH_PATH + "/TGT-1")));
+
+    // nothing left to use
+    manager.getServiceTicket();
+    verify(6, postRequestedFor(urlEqualTo(AUTH_PATH + "/TGT-1")));
+  }
+}
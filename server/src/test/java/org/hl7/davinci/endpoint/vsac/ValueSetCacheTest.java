@@ -0,0 +1,130 @@
+package org.hl7.davinci.endpoint.vsac;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.post;
+import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
+import java.io.File;
+import java.util.Arrays;
+import org.hl7.davinci.endpoint.config.VsacConfig;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ValueSetCacheTest {
+
+  private static final String SVS_PATH = "/vsac/svs/RetrieveMultipleValueSets";
+
+  @Rule
+  public WireMockRule wireMockRule = new WireMockRule(wireMockConfig().dynamicPort());
+
+  @Rule
+  public TemporaryFolder cacheDir = new TemporaryFolder();
+
+  private VsacConfig vsacConfig;
+
+  @Before
+  public void setup() {
+    stubFor(post(urlEqualTo("/vsac/ws/Ticket"))
+        .willReturn(aResponse().withStatus(200).withBody("TGT-1")));
+    stubFor(post(urlEqualTo("/vsac/ws/Ticket/TGT-1"))
+        .willReturn(aResponse().withStatus(200).withBody("ST-1")));
+
+    vsacConfig = new VsacConfig();
+    vsacConfig.setAuthUrl("http://localhost:" + wireMockRule.port() + "/vsac/ws/Ticket");
+    vsacConfig.setSvsUrl("http://localhost:" + wireMockRule.port() + SVS_PATH);
+    vsacConfig.setFetchThreads(4);
+    vsacConfig.setRetryBackoff(1);
+  }
+
+  private static String svsResponse(String oid) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<ns0:RetrieveMultipleValueSetsResponse xmlns:ns0=\"urn:ihe:iti:svs:2008\">"
+        + "<ns0:DescribedValueSet ID=\"" + oid + "\" displayName=\"Test " + oid + "\" version=\"20200101\">"
+        + "<ns0:ConceptList>"
+        + "<ns0:Concept code=\"E0424\" codeSystem=\"2.16.840.1.113883.6.285\" codeSystemVersion=\"2020\" displayName=\"Oxygen\"/>"
+        + "</ns0:ConceptList>"
+        + "<ns0:Source>Test</ns0:Source>"
+        + "<ns0:Status>Active</ns0:Status>"
+        + "</ns0:DescribedValueSet>"
+        + "</ns0:RetrieveMultipleValueSetsResponse>";
+  }
+
+  private static void stubValueSet(String oid) {
+    stubFor(get(urlPathEqualTo(SVS_PATH)).withQueryParam("id", equalTo(oid))
+        .willReturn(aResponse().withStatus(200).withBody(svsResponse(oid))));
+  }
+
+  @Test
+  public void fetchesEachValueSetOnce() {
+    String[] oids = {"1.2.3.1", "1.2.3.2", "1.2.3.3"};
+    for (String oid : oids) {
+      stubValueSet(oid);
+    }
+    ValueSetCache cache = new ValueSetCache(cacheDir.getRoot().getPath(), "user", "password", vsacConfig);
+
+    int failed = cache.fetchValueSets(Arrays.asList("1.2.3.1", "1.2.3.2", "1.2.3.1", "1.2.3.3", "1.2.3.2"));
+
+    assertEquals(0, failed);
+    for (String oid : oids) {
+      verify(1, getRequestedFor(urlPathEqualTo(SVS_PATH)).withQueryParam("id", equalTo(oid)));
+      assertTrue(new File(cacheDir.getRoot(), "ValueSet-R4-" + oid + ".json").exists());
+    }
+  }
+
+  @Test
+  public void retriesServerErrors() {
+    stubFor(get(urlPathEqualTo(SVS_PATH)).withQueryParam("id", equalTo("1.2.3.4"))
+        .inScenario("retry").whenScenarioStateIs(Scenario.STARTED)
+        .willReturn(aResponse().withStatus(503))
+        .willSetStateTo("recovered"));
+    stubFor(get(urlPathEqualTo(SVS_PATH)).withQueryParam("id", equalTo("1.2.3.4"))
+        .inScenario("retry").whenScenarioStateIs("recovered")
+        .willReturn(aResponse().withStatus(200).withBody(svsResponse("1.2.3.4"))));
+    ValueSetCache cache = new ValueSetCache(cacheDir.getRoot().getPath(), "user", "password", vsacConfig);
+
+    int failed = cache.fetchValueSets(Arrays.asList("1.2.3.4"));
+
+    assertEquals(0, failed);
+    verify(2, getRequestedFor(urlPathEqualTo(SVS_PATH)).withQueryParam("id", equalTo("1.2.3.4")));
+  }
+
+  @Test
+  public void doesNotRetryMissingValueSets() {
+    stubFor(get(urlPathEqualTo(SVS_PATH)).withQueryParam("id", equalTo("1.2.3.5"))
+        .willReturn(aResponse().withStatus(404)));
+    ValueSetCache cache = new ValueSetCache(cacheDir.getRoot().getPath(), "user", "password", vsacConfig);
+
+    int failed = cache.fetchValueSets(Arrays.asList("1.2.3.5"));
+
+    assertEquals(1, failed);
+    verify(1, getRequestedFor(urlPathEqualTo(SVS_PATH)).withQueryParam("id", equalTo("1.2.3.5")));
+  }
+
+  @Test
+  public void usesFreshCachedValueSets() {
+    stubValueSet("1.2.3.6");
+    new ValueSetCache(cacheDir.getRoot().getPath(), "user", "password", vsacConfig)
+        .fetchValueSets(Arrays.asList("1.2.3.6"));
+
+    // a new cache over the same folder, as after a restart
+    ValueSetCache cache = new ValueSetCache(cacheDir.getRoot().getPath(), "user", "password", vsacConfig);
+    int failed = cache.fetchValueSets(Arrays.asList("1.2.3.6"));
+
+    assertEquals(0, failed);
+    verify(1, getRequestedFor(urlPathEqualTo(SVS_PATH)).withQueryParam("id", equalTo("1.2.3.6")));
+    assertTrue(new File(cacheDir.getRoot(), ValueSetCacheManifest.FILENAME).exists());
+  }
+}
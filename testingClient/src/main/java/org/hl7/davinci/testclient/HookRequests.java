@@ -0,0 +1,92 @@
+package org.hl7.davinci.testclient;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+
+import org.cdshooks.CdsRequest;
+import org.hl7.fhir.r4.model.Enumerations;
+
+/**
+ * Builds the CDS Hooks requests for every hook and FHIR version the server supports with the
+ * CrdRequestCreator, with a random patient and provider. A target names the FHIR version and the
+ * hook, e.g. r4/order-sign.
+ */
+public class HookRequests {
+
+  public static final List<String> TARGETS = Arrays.asList(
+      "r4/order-review", "r4/order-select", "r4/order-sign", "r4/medication-prescribe",
+      "stu3/order-review", "stu3/order-select", "stu3/order-sign", "stu3/medication-prescribe");
+
+  private static final String[] STATES = { "MA", "VA", "NY", "CA", "TX" };
+
+  /**
+   * Gets the path of the service a target is sent to.
+   */
+  public static String path(String target) {
+    String[] parts = target.split("/");
+    return "/" + parts[0] + "/cds-services/" + parts[1] + "-crd";
+  }
+
+  /**
+   * Creates a request.
+   *
+   * @param target The FHIR version and hook.
+   * @param random Source of the patient and provider details.
+   * @param fhirServer null to send a full prefetch, otherwise the prefetch is left empty and the
+   *     server has to fetch it from this FHIR server.
+   * @return The request.
+   */
+  public static CdsRequest<?, ?> create(String target, Random random, String fhirServer) {
+    boolean male = random.nextBoolean();
+    Date birthDate = new GregorianCalendar(1930 + random.nextInt(70), random.nextInt(12), 1 + random.nextInt(28))
+        .getTime();
+    String patientState = STATES[random.nextInt(STATES.length)];
+    String providerState = STATES[random.nextInt(STATES.length)];
+
+    Enumerations.AdministrativeGender r4Gender = male
+        ? Enumerations.AdministrativeGender.MALE : Enumerations.AdministrativeGender.FEMALE;
+    org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender stu3Gender = male
+        ? org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender.MALE
+        : org.hl7.fhir.dstu3.model.Enumerations.AdministrativeGender.FEMALE;
+
+    switch (target) {
+      case "r4/order-review":
+        return withFhirServer(org.hl7.davinci.r4.CrdRequestCreator.createOrderReviewRequest(
+            r4Gender, birthDate, patientState, providerState), new org.hl7.davinci.r4.crdhook.CrdPrefetch(), fhirServer);
+      case "r4/order-select":
+        return withFhirServer(org.hl7.davinci.r4.CrdRequestCreator.createOrderSelectRequest(
+            r4Gender, birthDate, patientState, providerState), new org.hl7.davinci.r4.crdhook.CrdPrefetch(), fhirServer);
+      case "r4/order-sign":
+        return withFhirServer(org.hl7.davinci.r4.CrdRequestCreator.createOrderSignRequest(
+            r4Gender, birthDate, patientState, providerState), new org.hl7.davinci.r4.crdhook.CrdPrefetch(), fhirServer);
+      case "r4/medication-prescribe":
+        return withFhirServer(org.hl7.davinci.r4.CrdRequestCreator.createMedicationPrescribeRequest(
+            r4Gender, birthDate, patientState, providerState), new org.hl7.davinci.r4.crdhook.CrdPrefetch(), fhirServer);
+      case "stu3/order-review":
+        return withFhirServer(org.hl7.davinci.stu3.CrdRequestCreator.createOrderReviewRequest(
+            stu3Gender, birthDate, patientState, providerState), new org.hl7.davinci.stu3.crdhook.CrdPrefetch(), fhirServer);
+      case "stu3/order-select":
+        return withFhirServer(org.hl7.davinci.stu3.CrdRequestCreator.createOrderSelectRequest(
+            stu3Gender, birthDate, patientState, providerState), new org.hl7.davinci.stu3.crdhook.CrdPrefetch(), fhirServer);
+      case "stu3/order-sign":
+        return withFhirServer(org.hl7.davinci.stu3.CrdRequestCreator.createOrderSignRequest(
+            stu3Gender, birthDate, patientState, providerState), new org.hl7.davinci.stu3.crdhook.CrdPrefetch(), fhirServer);
+      case "stu3/medication-prescribe":
+        return withFhirServer(org.hl7.davinci.stu3.CrdRequestCreator.createMedicationPrescribeRequest(
+            stu3Gender, birthDate, patientState, providerState), new org.hl7.davinci.stu3.crdhook.CrdPrefetch(), fhirServer);
+      default:
+        throw new IllegalArgumentException("Unknown target: " + target + ", expected one of " + TARGETS);
+    }
+  }
+
+  private static <T> CdsRequest<T, ?> withFhirServer(CdsRequest<T, ?> request, T emptyPrefetch, String fhirServer) {
+    if (fhirServer != null) {
+      request.setPrefetch(emptyPrefetch);
+      request.setFhirServer(fhirServer);
+    }
+    return request;
+  }
+}
@@ -0,0 +1,294 @@
+package org.hl7.davinci.testclient;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends CDS Hooks requests to a CRD server for a fixed time and reports the throughput and the
+ * latency distribution as JSON, so runs before and after a change can be compared.
+ *
+ * <p>Options, all optional:
+ * <ul>
+ *   <li>--url base url of the server, default http://localhost:8090</li>
+ *   <li>--concurrency number of requests in flight at once, default 8</li>
+ *   <li>--rate requests per second, default 0 which sends as fast as the concurrency allows</li>
+ *   <li>--duration seconds to measure for, default 60</li>
+ *   <li>--warmup seconds to send requests for before measuring, default 10</li>
+ *   <li>--mix weights of the targets, e.g. r4/order-sign=3,stu3/medication-prescribe=1, default all
+ *   hooks of both FHIR versions equally</li>
+ *   <li>--hydrate send requests without prefetch so the server fetches it from a local stub FHIR
+ *   server</li>
+ *   <li>--stubPort port of the stub FHIR server, default any free port</li>
+ *   <li>--output file to write the report to, default standard out</li>
+ * </ul>
+ *
+ * <p>With a rate the latency of a request is measured from when it should have been sent, so a
+ * server that falls behind shows up in the latency rather than only in a lower request rate.
+ */
+public class LoadTest {
+
+  private static final int BODIES_PER_TARGET = 20;
+
+  private String url = "http://localhost:8090";
+  private int concurrency = 8;
+  private double rate = 0;
+  private int duration = 60;
+  private int warmup = 10;
+  private Map<String, Integer> mix = new LinkedHashMap<>();
+  private boolean hydrate = false;
+  private int stubPort = 0;
+  private String output = null;
+
+  private CloseableHttpClient client;
+  private final Map<String, List<String>> bodies = new LinkedHashMap<>();
+  private final Map<String, Stats> stats = new LinkedHashMap<>();
+  private final Stats total = new Stats();
+  private String[] targets;
+  private int[] cumulativeWeights;
+  private long measureStart;
+
+  /**
+   * Runs the load test.
+   * @param args options, see the class documentation
+   */
+  public static void main(String[] args) throws Exception {
+    LoadTest loadTest = new LoadTest();
+    loadTest.parseArgs(args);
+    loadTest.run();
+  }
+
+  private void parseArgs(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--hydrate")) {
+        hydrate = true;
+        continue;
+      }
+      if (i + 1 >= args.length) {
+        throw new IllegalArgumentException("Missing value for " + arg);
+      }
+      String value = args[++i];
+      switch (arg) {
+        case "--url":
+          url = value.endsWith("/") ? value.substring(0, value.length() - 1) : value;
+          break;
+        case "--concurrency":
+          concurrency = Integer.parseInt(value);
+          break;
+        case "--rate":
+          rate = Double.parseDouble(value);
+          break;
+        case "--duration":
+          duration = Integer.parseInt(value);
+          break;
+        case "--warmup":
+          warmup = Integer.parseInt(value);
+          break;
+        case "--mix":
+          for (String weight : value.split(",")) {
+            String[] parts = weight.split("=");
+            mix.put(parts[0].trim(), parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 1);
+          }
+          break;
+        case "--stubPort":
+          stubPort = Integer.parseInt(value);
+          break;
+        case "--output":
+          output = value;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+    if (mix.isEmpty()) {
+      for (String target : HookRequests.TARGETS) {
+        mix.put(target, 1);
+      }
+    }
+  }
+
+  private void run() throws Exception {
+    StubFhirServer stub = hydrate ? new StubFhirServer(stubPort) : null;
+
+    // build the bodies up front so the client spends its time sending
+    ObjectWriter writer = new ObjectMapper().writer();
+    Random random = new Random(0);
+    targets = mix.keySet().toArray(new String[0]);
+    cumulativeWeights = new int[targets.length];
+    int weights = 0;
+    for (int i = 0; i < targets.length; i++) {
+      String target = targets[i];
+      String fhirServer = stub == null ? null : stub.getUrl(target.split("/")[0]);
+      List<String> targetBodies = new ArrayList<>();
+      for (int j = 0; j < BODIES_PER_TARGET; j++) {
+        targetBodies.add(writer.writeValueAsString(HookRequests.create(target, random, fhirServer)));
+      }
+      bodies.put(target, targetBodies);
+      stats.put(target, new Stats());
+      weights += mix.get(target);
+      cumulativeWeights[i] = weights;
+    }
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(concurrency);
+    connectionManager.setDefaultMaxPerRoute(concurrency);
+    client = HttpClients.custom().setConnectionManager(connectionManager).build();
+
+    long start = System.nanoTime();
+    measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+    long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+    ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+    if (rate > 0) {
+      long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+      for (long next = start; next < end; next += interval) {
+        long wait = next - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        long intendedStart = next;
+        workers.execute(() -> send(pickTarget(), intendedStart));
+      }
+    } else {
+      for (int i = 0; i < concurrency; i++) {
+        workers.execute(() -> {
+          while (System.nanoTime() < end) {
+            send(pickTarget(), System.nanoTime());
+          }
+        });
+      }
+    }
+    workers.shutdown();
+    workers.awaitTermination(1, TimeUnit.HOURS);
+    client.close();
+    if (stub != null) {
+      stub.stop();
+    }
+
+    report();
+  }
+
+  private String pickTarget() {
+    int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (pick < cumulativeWeights[i]) {
+        return targets[i];
+      }
+    }
+    return targets[targets.length - 1];
+  }
+
+  private void send(String target, long intendedStart) {
+    List<String> targetBodies = bodies.get(target);
+    HttpPost post = new HttpPost(url + HookRequests.path(target));
+    post.setEntity(new StringEntity(targetBodies.get(ThreadLocalRandom.current().nextInt(targetBodies.size())),
+        ContentType.APPLICATION_JSON));
+    post.setHeader("Accept", "application/json");
+    boolean error;
+    try (CloseableHttpResponse response = client.execute(post)) {
+      error = response.getStatusLine().getStatusCode() >= 300;
+      EntityUtils.consume(response.getEntity());
+    } catch (IOException e) {
+      error = true;
+    }
+    if (intendedStart >= measureStart) {
+      long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intendedStart);
+      stats.get(target).record(micros, error);
+      total.record(micros, error);
+    }
+  }
+
+  private void report() throws IOException {
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("url", url);
+    report.put("concurrency", concurrency);
+    report.put("rate", rate);
+    report.put("durationSeconds", duration);
+    report.put("warmupSeconds", warmup);
+    report.put("hydrate", hydrate);
+    report.put("mix", mix);
+    report.putAll(total.toMap());
+    Map<String, Object> perTarget = new LinkedHashMap<>();
+    for (Map.Entry<String, Stats> target : stats.entrySet()) {
+      perTarget.put(target.getKey(), target.getValue().toMap());
+    }
+    report.put("targets", perTarget);
+    report.put("histogram", total.encode());
+
+    ObjectWriter writer = new ObjectMapper().writerWithDefaultPrettyPrinter();
+    if (output == null) {
+      System.out.println(writer.writeValueAsString(report));
+    } else {
+      writer.writeValue(new File(output), report);
+    }
+  }
+
+  private class Stats {
+    // latencies in microseconds, resized as needed
+    private final Histogram latency = new ConcurrentHistogram(3);
+    private final LongAdder errors = new LongAdder();
+
+    private void record(long micros, boolean error) {
+      latency.recordValue(micros);
+      if (error) {
+        errors.increment();
+      }
+    }
+
+    private Map<String, Object> toMap() {
+      Map<String, Object> map = new LinkedHashMap<>();
+      long requests = latency.getTotalCount();
+      map.put("requests", requests);
+      map.put("errors", errors.sum());
+      map.put("throughput", (double) requests / duration);
+      Map<String, Object> millis = new LinkedHashMap<>();
+      millis.put("mean", latency.getMean() / 1000);
+      millis.put("p50", latency.getValueAtPercentile(50) / 1000.0);
+      millis.put("p90", latency.getValueAtPercentile(90) / 1000.0);
+      millis.put("p99", latency.getValueAtPercentile(99) / 1000.0);
+      millis.put("p99.9", latency.getValueAtPercentile(99.9) / 1000.0);
+      millis.put("max", latency.getMaxValue() / 1000.0);
+      map.put("latencyMillis", millis);
+      return map;
+    }
+
+    /**
+     * Base64 of the compressed histogram, in microseconds, readable with Histogram.decodeFromCompressedByteBuffer.
+     */
+    private String encode() {
+      Histogram copy = latency.copy();
+      ByteBuffer buffer = ByteBuffer.allocate(copy.getNeededByteBufferCapacity());
+      int length = copy.encodeIntoCompressedByteBuffer(buffer);
+      byte[] bytes = new byte[length];
+      buffer.flip();
+      buffer.get(bytes);
+      return Base64.getEncoder().encodeToString(bytes);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package org.hl7.davinci.testclient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal FHIR server for the prefetch queries the CRD server makes when a request comes without a
+ * prefetch. A search for DeviceRequest, ServiceRequest or MedicationRequest under /r4/ or /stu3/
+ * returns a prefetch bundle made by the CrdRequestCreator, whatever the parameters, any other search
+ * returns an empty bundle. Only meant to keep hydration off the network during a LoadTest.
+ */
+public class StubFhirServer {
+
+  private static final String EMPTY_BUNDLE = "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":0}";
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final Map<String, byte[]> bundles = new HashMap<>();
+
+  /**
+   * Starts the server on localhost.
+   *
+   * @param port The port, 0 for any free port.
+   */
+  public StubFhirServer(int port) throws IOException {
+    Random random = new Random(0);
+    org.hl7.davinci.r4.crdhook.CrdPrefetch r4OrderReview = (org.hl7.davinci.r4.crdhook.CrdPrefetch)
+        HookRequests.create("r4/order-review", random, null).getPrefetch();
+    org.hl7.davinci.r4.crdhook.CrdPrefetch r4OrderSign = (org.hl7.davinci.r4.crdhook.CrdPrefetch)
+        HookRequests.create("r4/order-sign", random, null).getPrefetch();
+    org.hl7.davinci.r4.crdhook.CrdPrefetch r4Medication = (org.hl7.davinci.r4.crdhook.CrdPrefetch)
+        HookRequests.create("r4/medication-prescribe", random, null).getPrefetch();
+    org.hl7.davinci.stu3.crdhook.CrdPrefetch stu3OrderReview = (org.hl7.davinci.stu3.crdhook.CrdPrefetch)
+        HookRequests.create("stu3/order-review", random, null).getPrefetch();
+    org.hl7.davinci.stu3.crdhook.CrdPrefetch stu3Medication = (org.hl7.davinci.stu3.crdhook.CrdPrefetch)
+        HookRequests.create("stu3/medication-prescribe", random, null).getPrefetch();
+
+    org.hl7.davinci.r4.FhirComponents r4 = new org.hl7.davinci.r4.FhirComponents();
+    putBundle("r4/DeviceRequest", r4.getJsonParser().encodeResourceToString(r4OrderReview.getDeviceRequestBundle()));
+    putBundle("r4/ServiceRequest", r4.getJsonParser().encodeResourceToString(r4OrderSign.getServiceRequestBundle()));
+    putBundle("r4/MedicationRequest",
+        r4.getJsonParser().encodeResourceToString(r4Medication.getMedicationRequestBundle()));
+    org.hl7.davinci.stu3.FhirComponents stu3 = new org.hl7.davinci.stu3.FhirComponents();
+    putBundle("stu3/DeviceRequest",
+        stu3.getJsonParser().encodeResourceToString(stu3OrderReview.getDeviceRequestBundle()));
+    putBundle("stu3/MedicationRequest",
+        stu3.getJsonParser().encodeResourceToString(stu3Medication.getMedicationRequestBundle()));
+
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  private void putBundle(String key, String bundle) {
+    bundles.put(key, bundle.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Gets the FHIR server url to put in requests for a FHIR version, e.g. r4.
+   */
+  public String getUrl(String fhirVersion) {
+    return "http://localhost:" + server.getAddress().getPort() + "/" + fhirVersion + "/";
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    // path is /<fhir version>/<resource type>
+    String[] parts = exchange.getRequestURI().getPath().split("/");
+    byte[] body = parts.length == 3 ? bundles.get(parts[1] + "/" + parts[2]) : null;
+    if (body == null) {
+      body = EMPTY_BUNDLE.getBytes(StandardCharsets.UTF_8);
+    }
+    exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}